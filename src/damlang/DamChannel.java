@@ -0,0 +1,49 @@
+package damlang;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * A <code>DamChannel</code> is a bounded queue that Dam tasks pass values
+ * through.  <code>send</code> blocks while the channel is full and
+ * <code>receive</code> while it is empty; a channel of capacity 0 hands
+ * each value straight from a sender to a receiver.  Virtual threads blocked
+ * here give up their carrier thread.
+ *
+ * The compiler knows each channel's element type, so values are only
+ * checked there; here they are boxed <code>Float</code>,
+ * <code>String</code> or <code>Boolean</code>.
+ */
+public class DamChannel {
+	private final BlockingQueue<Object> queue;
+
+	private DamChannel(int capacity) {
+		queue = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : new SynchronousQueue<>();
+	}
+
+	public static DamChannel of(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("A channel cannot have a negative capacity.");
+		}
+		return new DamChannel(capacity);
+	}
+
+	public void send(Object value) {
+		try {
+			queue.put(value);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sending.", e);
+		}
+	}
+
+	public Object receive() {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while receiving.", e);
+		}
+	}
+}
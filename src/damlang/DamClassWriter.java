@@ -0,0 +1,950 @@
+package damlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static damlang.DamCode.*;
+
+/**
+ * The <code>DamClassWriter</code> writes a compiled Dam program straight to
+ * a class file, without going through Jasmin.
+ *
+ * The class files are version 55 (Java 11), so they are checked by the
+ * fast type-checking verifier, which needs a StackMapTable frame wherever
+ * control flow joins.  The generator keeps every local at one type for the
+ * whole method and initializes them all on entry, so the locals of every
+ * frame are the same and only the operand stack differs; the stack at each
+ * label is worked out by walking the code along every branch.  Dynamic
+ * operations become <code>invokedynamic</code> instructions bootstrapped by
+ * <code>DamRuntime.bootstrap</code>.
+ *
+ * A module's code goes in its static initializer instead, and each
+ * exported variable gets a public static final field.
+ *
+ * The code of <code>main</code> can be handed over in pieces as it is
+ * generated.  Each piece has to start and end with an empty stack and only
+ * jump within itself, as the code of a top-level statement does.
+ */
+public class DamClassWriter {
+	/** Java 11. */
+	private static final int VERSION = 55;
+	private static final int MAX_CODE = 65535;
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_STATIC = 0x0008;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int WIDE = 196;
+	private static final int LDC_W = 19;
+	private static final int REF_INVOKE_STATIC = 6;
+
+	private static final String THROWABLE = "java/lang/Throwable";
+	private static final String BOOTSTRAP = "damlang/DamRuntime/bootstrap("
+			+ "Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+			+ "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+	private final String className;
+	private final String sourceFile;
+	private final DamModule module;
+	private final String[] locals;
+	private final ConstantPool pool = new ConstantPool();
+
+	private int bootstrap = 0;
+	private final Map<String, String> fields = new LinkedHashMap<>();
+
+	/**
+	 * A method's code, with its line numbers and frames.
+	 */
+	private static class Method {
+		final int access;
+		final String name;
+		final String descriptor;
+		final int maxLocals;
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		int frameCount = 0;
+		int lastFrame = -1;
+		int[] lines = new int[64];
+		int lineCount = 0;
+		int maxStack = 0;
+
+		Method(int access, String name, String descriptor, int maxLocals) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.maxLocals = maxLocals;
+		}
+	}
+
+	/** Main, or a module's static initializer. */
+	private final Method main;
+	/** The methods added besides main, in order. */
+	private final List<Method> methods = new ArrayList<>();
+	/** The method code is being added to. */
+	private Method method;
+
+	/**
+	 * @param className the name of the class
+	 * @param sourceFile the name of the <code>.dam</code> file, for SourceFile
+	 * @param env every local of <code>main</code> and its type
+	 * @param module the module's interface, to write its code as the static
+	 * initializer and export its variables, or null for a program
+	 */
+	public DamClassWriter(String className, String sourceFile, DamEnvironment env, DamModule module) {
+		this.className = className;
+		this.sourceFile = sourceFile;
+		this.module = module;
+		this.locals = new String[env.numVars()];
+		for (DamEnvironment.Slot slot : env.locals()) {
+			locals[slot.index] = verificationType(slot.type.descriptor);
+		}
+		main = module == null
+				? new Method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", Math.max(locals.length, 1))
+				: new Method(ACC_STATIC, "<clinit>", "()V", Math.max(locals.length, 1));
+		method = main;
+	}
+
+	/**
+	 * Adds a static method whose locals are laid out like main's, with the
+	 * parameters moved out of the way and every local initialized before
+	 * the first label, so the same frames fit.
+	 */
+	public void addMethod(String name, String descriptor, DamCode body) {
+		method = new Method(ACC_PUBLIC | ACC_STATIC, name, descriptor, Math.max(locals.length, 2));
+		append(body);
+		methods.add(method);
+		method = main;
+	}
+
+	/**
+	 * Adds a private static field.
+	 */
+	public void addField(String name, String descriptor) {
+		fields.put(name, descriptor);
+	}
+
+	/**
+	 * Adds a piece of the code of <code>main</code>.
+	 */
+	public void append(DamCode piece) {
+		int n = piece.size();
+		int[] labelAt = piece.labelPositions();
+		String[][] stacks = simulate(piece, labelAt);
+
+		// Lay the piece out: constant pool entries first, as their indexes
+		// decide between ldc and ldc_w.
+		int[] offset = new int[n + 1];
+		int[] index = new int[n];
+		int pc = method.code.size();
+		for (int i = 0; i < n; i++) {
+			offset[i] = pc;
+			index[i] = constant(piece, i);
+			pc += isSwitch(piece.opcode(i)) ? switchLength(piece, i, pc)
+					: length(piece.opcode(i), piece.operand(i), index[i]);
+		}
+		offset[n] = pc;
+		// With --no-assemble no class file is written, so a program too
+		// big for one method can still be generated, as the scaling suite does.
+		if (DamCompiler.assemble && pc + 1 > MAX_CODE) {
+			DamCompiler.error("The program is too big: " + method.name + " needs more than "
+					+ MAX_CODE + " bytes of bytecode.");
+		}
+
+		DataOutputStream out = new DataOutputStream(method.code);
+		try {
+			for (int i = 0; i < n; i++) {
+				int opcode = piece.opcode(i);
+				if (stacks[i] == null && opcode != LABEL && opcode != LINE) {
+					i = unreachable(piece, stacks, offset, i, out) - 1;
+					continue;
+				}
+
+				if (opcode == LABEL) {
+					if (stacks[i] != null) frame(offset[i], stacks[i]);
+				} else if (opcode == LINE) {
+					line(offset[i], piece.operand(i));
+				} else if (isBranch(opcode)) {
+					int target = offset[labelAt[piece.operand(i) - piece.firstLabel()]];
+					int jump = target - offset[i];
+					if (DamCompiler.assemble && (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE)) {
+						DamCompiler.error("The program is too big: a jump spans more than "
+								+ Short.MAX_VALUE + " bytes of bytecode.");
+					}
+					out.writeByte(opcode);
+					out.writeShort(jump);
+				} else if (isSwitch(opcode)) {
+					writeSwitch(out, piece, i, offset, labelAt);
+				} else {
+					instruction(out, opcode, piece.operand(i), index[i]);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Finishes <code>main</code> and returns the whole class file.
+	 */
+	public byte[] toByteArray() {
+		main.code.write(RETURN);
+
+		try {
+			int thisClass = pool.classRef(className);
+			int superClass = pool.classRef("java/lang/Object");
+			int objectInit = pool.methodRef("java/lang/Object/<init>()V");
+			int source = pool.utf8(sourceFile);
+			int sourceName = pool.utf8("SourceFile");
+			int bootstrapName = bootstrap != 0 ? pool.utf8("BootstrapMethods") : 0;
+
+			Method init = new Method(ACC_PUBLIC, "<init>", "()V", 1);
+			init.maxStack = 1;
+			init.code.write(ALOAD_0);
+			init.code.write(INVOKESPECIAL);
+			init.code.write(objectInit >> 8);
+			init.code.write(objectInit);
+			init.code.write(RETURN);
+			List<Method> all = new ArrayList<>();
+			all.add(init);
+			all.add(main);
+			if (module != null) {
+				// A module's code is its static initializer, and its main
+				// does nothing.
+				Method empty = new Method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", 1);
+				empty.code.write(RETURN);
+				all.add(empty);
+			}
+			all.addAll(methods);
+
+			// Everything after the constant pool is written first, as it
+			// adds the last names to the pool.
+			ByteArrayOutputStream members = new ByteArrayOutputStream();
+			DataOutputStream rest = new DataOutputStream(members);
+			rest.writeShort(ACC_PUBLIC | ACC_SUPER);
+			rest.writeShort(thisClass);
+			rest.writeShort(superClass);
+			rest.writeShort(0); // interfaces
+
+			Map<String, DamType> exports = module == null ? Map.of() : module.exports;
+			rest.writeShort(exports.size() + fields.size());
+			for (Map.Entry<String, DamType> export : exports.entrySet()) {
+				field(rest, ACC_PUBLIC | ACC_STATIC | ACC_FINAL, export.getKey(), export.getValue().descriptor);
+			}
+			for (Map.Entry<String, String> field : fields.entrySet()) {
+				field(rest, ACC_PRIVATE | ACC_STATIC, field.getKey(), field.getValue());
+			}
+
+			rest.writeShort(all.size());
+			for (Method m : all) {
+				method(rest, m);
+			}
+
+			rest.writeShort(bootstrap != 0 ? 2 : 1); // attributes
+			rest.writeShort(sourceName);
+			rest.writeInt(2);
+			rest.writeShort(source);
+			if (bootstrap != 0) {
+				rest.writeShort(bootstrapName);
+				rest.writeInt(6);
+				rest.writeShort(1);
+				rest.writeShort(bootstrap);
+				rest.writeShort(0); // no static arguments
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			pool.write(out);
+			members.writeTo(out);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void field(DataOutputStream out, int access, String name, String descriptor) throws IOException {
+		out.writeShort(access);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(0);
+	}
+
+	private void method(DataOutputStream out, Method m) throws IOException {
+		int lineTable = 2 + m.lineCount * 4;
+		int frameTable = 2 + m.frames.size();
+		boolean withLines = m.lineCount > 0;
+		boolean withFrames = m.frameCount > 0;
+
+		out.writeShort(m.access);
+		out.writeShort(pool.utf8(m.name));
+		out.writeShort(pool.utf8(m.descriptor));
+		out.writeShort(1);
+		out.writeShort(pool.utf8("Code"));
+		out.writeInt(2 + 2 + 4 + m.code.size() + 2 + 2
+				+ (withLines ? 6 + lineTable : 0) + (withFrames ? 6 + frameTable : 0));
+		out.writeShort(m.maxStack);
+		out.writeShort(m.maxLocals);
+		out.writeInt(m.code.size());
+		m.code.writeTo(out);
+		out.writeShort(0); // exception table
+		out.writeShort((withLines ? 1 : 0) + (withFrames ? 1 : 0));
+		if (withLines) {
+			out.writeShort(pool.utf8("LineNumberTable"));
+			out.writeInt(lineTable);
+			out.writeShort(m.lineCount);
+			for (int i = 0; i < m.lineCount * 2; i++) {
+				out.writeShort(m.lines[i]);
+			}
+		}
+		if (withFrames) {
+			out.writeShort(pool.utf8("StackMapTable"));
+			out.writeInt(frameTable);
+			out.writeShort(m.frameCount);
+			m.frames.writeTo(out);
+		}
+	}
+
+	private static final int ALOAD_0 = 42;
+
+	/**
+	 * The constant pool index an instruction refers to, or 0.
+	 */
+	private int constant(DamCode piece, int i) {
+		switch (piece.opcode(i)) {
+		case LDC:
+			Object value = piece.ref(i);
+			if (value instanceof Float) return pool.floatConstant((Float) value);
+			if (value instanceof Integer) return pool.intConstant((Integer) value);
+			if (value instanceof Handle) {
+				return pool.methodHandle(REF_INVOKE_STATIC, pool.methodRef(((Handle) value).method()));
+			}
+			return pool.string((String) value);
+		case GETSTATIC:
+		case PUTSTATIC:
+			return pool.fieldRef((String) piece.ref(i));
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+			return pool.methodRef((String) piece.ref(i));
+		case INVOKEDYNAMIC:
+			if (bootstrap == 0) {
+				bootstrap = pool.methodHandle(REF_INVOKE_STATIC, pool.methodRef(BOOTSTRAP));
+			}
+			String site = (String) piece.ref(i);
+			int space = site.indexOf(' ');
+			return pool.invokeDynamic(0, site.substring(0, space), site.substring(space + 1));
+		case NEW:
+		case ANEWARRAY:
+		case CHECKCAST:
+		case INSTANCEOF:
+			return pool.classRef((String) piece.ref(i));
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * The number of bytes an instruction takes.
+	 */
+	private static int length(int opcode, int operand, int index) {
+		switch (opcode) {
+		case LABEL:
+		case LINE:
+			return 0;
+		case ILOAD:
+		case FLOAD:
+		case ALOAD:
+		case ISTORE:
+		case FSTORE:
+		case ASTORE:
+			return operand <= 3 ? 1 : operand <= 255 ? 2 : 4;
+		case IINC:
+			int local = operand & 0xFFFF;
+			int delta = operand >> 16;
+			return local <= 255 && delta == (byte) delta ? 3 : 6;
+		case BIPUSH:
+		case NEWARRAY:
+			return 2;
+		case LDC:
+			return index <= 255 ? 2 : 3;
+		case SIPUSH:
+		case GETSTATIC:
+		case PUTSTATIC:
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+		case NEW:
+		case ANEWARRAY:
+		case CHECKCAST:
+		case INSTANCEOF:
+			return 3;
+		case INVOKEDYNAMIC:
+			return 5;
+		default:
+			return isBranch(opcode) ? 3 : 1;
+		}
+	}
+
+	/**
+	 * The number of bytes a switch takes at <code>pc</code>: its table
+	 * starts on a multiple of four bytes from the start of the code.
+	 */
+	private static int switchLength(DamCode piece, int i, int pc) {
+		int padding = 3 - pc % 4;
+		int keys = ((Switch) piece.ref(i)).keys().length;
+		return 1 + padding + (piece.opcode(i) == TABLESWITCH ? 12 + 4 * keys : 8 + 8 * keys);
+	}
+
+	private static void writeSwitch(DataOutputStream out, DamCode piece, int i, int[] offset, int[] labelAt) throws IOException {
+		Switch table = (Switch) piece.ref(i);
+		int[] keys = table.keys();
+		int[] labels = table.labels();
+		int pc = offset[i];
+		out.writeByte(piece.opcode(i));
+		for (int pad = 3 - pc % 4; pad > 0; pad--) {
+			out.writeByte(0);
+		}
+		out.writeInt(offset[labelAt[table.otherwise() - piece.firstLabel()]] - pc);
+		if (piece.opcode(i) == TABLESWITCH) {
+			out.writeInt(keys[0]);
+			out.writeInt(keys[keys.length - 1]);
+			for (int label : labels) {
+				out.writeInt(offset[labelAt[label - piece.firstLabel()]] - pc);
+			}
+		} else {
+			out.writeInt(keys.length);
+			for (int k = 0; k < keys.length; k++) {
+				out.writeInt(keys[k]);
+				out.writeInt(offset[labelAt[labels[k] - piece.firstLabel()]] - pc);
+			}
+		}
+	}
+
+	private static void instruction(DataOutputStream out, int opcode, int operand, int index) throws IOException {
+		switch (opcode) {
+		case ILOAD:
+		case FLOAD:
+		case ALOAD:
+		case ISTORE:
+		case FSTORE:
+		case ASTORE:
+			if (operand <= 3) {
+				// iload_0 and friends: four of each, starting at 26 for loads
+				// and 59 for stores.
+				int first = opcode < ISTORE ? 26 + (opcode - ILOAD) * 4 : 59 + (opcode - ISTORE) * 4;
+				out.writeByte(first + operand);
+			} else if (operand <= 255) {
+				out.writeByte(opcode);
+				out.writeByte(operand);
+			} else {
+				out.writeByte(WIDE);
+				out.writeByte(opcode);
+				out.writeShort(operand);
+			}
+			break;
+		case IINC:
+			int local = operand & 0xFFFF;
+			int delta = operand >> 16;
+			if (local <= 255 && delta == (byte) delta) {
+				out.writeByte(IINC);
+				out.writeByte(local);
+				out.writeByte(delta);
+			} else {
+				out.writeByte(WIDE);
+				out.writeByte(IINC);
+				out.writeShort(local);
+				out.writeShort(delta);
+			}
+			break;
+		case BIPUSH:
+		case NEWARRAY:
+			out.writeByte(opcode);
+			out.writeByte(operand);
+			break;
+		case SIPUSH:
+			out.writeByte(opcode);
+			out.writeShort(operand);
+			break;
+		case LDC:
+			if (index <= 255) {
+				out.writeByte(LDC);
+				out.writeByte(index);
+			} else {
+				out.writeByte(LDC_W);
+				out.writeShort(index);
+			}
+			break;
+		case INVOKEDYNAMIC:
+			out.writeByte(opcode);
+			out.writeShort(index);
+			out.writeShort(0);
+			break;
+		default:
+			out.writeByte(opcode);
+			if (index != 0) out.writeShort(index);
+		}
+	}
+
+	/**
+	 * Replaces code that nothing can reach, from instruction <code>i</code>
+	 * up to the next reachable one, by <code>nop</code>s ending in
+	 * <code>athrow</code>, the only filler the verifier accepts without
+	 * knowing how the code was entered.
+	 * @return the first reachable instruction after it
+	 */
+	private int unreachable(DamCode piece, String[][] stacks, int[] offset, int i, DataOutputStream out) throws IOException {
+		int end = i;
+		while (end < piece.size() && (stacks[end] == null
+				|| piece.opcode(end) == LABEL || piece.opcode(end) == LINE)) {
+			if (stacks[end] != null) break;
+			end++;
+		}
+		frame(offset[i], new String[]{THROWABLE});
+		for (int pc = offset[i]; pc < offset[end] - 1; pc++) {
+			out.writeByte(NOP);
+		}
+		out.writeByte(ATHROW);
+		return end;
+	}
+
+	private void line(int pc, int line) {
+		Method m = method;
+		if (m.lineCount > 0 && m.lines[m.lineCount * 2 - 2] == pc) {
+			m.lines[m.lineCount * 2 - 1] = line;
+			return;
+		}
+		if (m.lineCount * 2 == m.lines.length) {
+			m.lines = Arrays.copyOf(m.lines, m.lines.length * 2);
+		}
+		m.lines[m.lineCount * 2] = pc;
+		m.lines[m.lineCount * 2 + 1] = line;
+		m.lineCount++;
+	}
+
+	/**
+	 * Adds a StackMapTable frame.  The locals never change after the first
+	 * frame, so later ones are the short forms whenever the stack allows.
+	 */
+	private void frame(int pc, String[] stack) {
+		Method m = method;
+		if (pc == m.lastFrame) return;
+
+		int delta = m.lastFrame < 0 ? pc : pc - m.lastFrame - 1;
+		DataOutputStream out = new DataOutputStream(m.frames);
+		try {
+			if (m.lastFrame >= 0 && stack.length == 0) {
+				if (delta <= 63) {
+					out.writeByte(delta); // same_frame
+				} else {
+					out.writeByte(251); // same_frame_extended
+					out.writeShort(delta);
+				}
+			} else if (m.lastFrame >= 0 && stack.length == 1) {
+				if (delta <= 63) {
+					out.writeByte(64 + delta); // same_locals_1_stack_item_frame
+				} else {
+					out.writeByte(247);
+					out.writeShort(delta);
+				}
+				writeType(out, stack[0]);
+			} else {
+				out.writeByte(255); // full_frame
+				out.writeShort(delta);
+				out.writeShort(locals.length);
+				for (String type : locals) {
+					writeType(out, type);
+				}
+				out.writeShort(stack.length);
+				for (String type : stack) {
+					writeType(out, type);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		m.lastFrame = pc;
+		m.frameCount++;
+	}
+
+	private void writeType(DataOutputStream out, String type) throws IOException {
+		switch (type) {
+		case "I":		out.writeByte(1); break;
+		case "F":		out.writeByte(2); break;
+		case "null":	out.writeByte(5); break;
+		default:
+			out.writeByte(7);
+			out.writeShort(pool.classRef(type));
+		}
+	}
+
+	/**
+	 * Walks a piece of code along every branch, tracking the type of each
+	 * stack entry.
+	 * @return the stack at every label and reachable instruction (only
+	 * labels get their own copy), null where nothing reaches
+	 */
+	private String[][] simulate(DamCode piece, int[] labelAt) {
+		int n = piece.size();
+		String[][] stacks = new String[n][];
+		String[] empty = new String[0];
+
+		Deque<Object[]> pending = new ArrayDeque<>();
+		pending.push(new Object[]{0, new ArrayList<String>()});
+		while (!pending.isEmpty()) {
+			Object[] start = pending.pop();
+			@SuppressWarnings("unchecked")
+			List<String> stack = (List<String>) start[1];
+			for (int i = (Integer) start[0]; i < n && stacks[i] == null; i++) {
+				int opcode = piece.opcode(i);
+				stacks[i] = opcode == LABEL ? stack.toArray(empty) : empty;
+				execute(piece, i, stack);
+				method.maxStack = Math.max(method.maxStack, stack.size());
+
+				if (isBranch(opcode)) {
+					int target = labelAt[piece.operand(i) - piece.firstLabel()];
+					pending.push(new Object[]{target, new ArrayList<>(stack)});
+					if (opcode == GOTO) break;
+				} else if (isSwitch(opcode)) {
+					Switch table = (Switch) piece.ref(i);
+					pending.push(new Object[]{labelAt[table.otherwise() - piece.firstLabel()], new ArrayList<>(stack)});
+					for (int label : table.labels()) {
+						pending.push(new Object[]{labelAt[label - piece.firstLabel()], new ArrayList<>(stack)});
+					}
+					break;
+				} else if (opcode == ATHROW || (opcode >= IRETURN && opcode <= RETURN)) {
+					break;
+				}
+			}
+		}
+		return stacks;
+	}
+
+	/**
+	 * Applies one instruction to the types on the stack.
+	 */
+	private void execute(DamCode piece, int i, List<String> stack) {
+		int opcode = piece.opcode(i);
+		switch (opcode) {
+		case LABEL:
+		case LINE:
+		case NOP:
+		case IINC:
+		case GOTO:
+		case RETURN:
+		case FNEG:
+			break;
+		case ACONST_NULL:
+			stack.add("null");
+			break;
+		case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2:
+		case ICONST_3: case ICONST_4: case ICONST_5:
+		case BIPUSH:
+		case SIPUSH:
+		case ILOAD:
+			stack.add("I");
+			break;
+		case FCONST_0: case FCONST_1: case FCONST_2:
+		case FLOAD:
+			stack.add("F");
+			break;
+		case LDC:
+			Object value = piece.ref(i);
+			stack.add(value instanceof Float ? "F" : value instanceof Integer ? "I"
+					: value instanceof Handle ? "java/lang/invoke/MethodHandle" : "java/lang/String");
+			break;
+		case ALOAD:
+			stack.add(locals[piece.operand(i)]);
+			break;
+		case IALOAD:
+		case BALOAD:
+			pop(stack, 2);
+			stack.add("I");
+			break;
+		case FALOAD:
+			pop(stack, 2);
+			stack.add("F");
+			break;
+		case AALOAD:
+			pop(stack, 1);
+			String array = pop(stack, 1);
+			stack.add(verificationType(array.substring(1)));
+			break;
+		case ISTORE:
+		case FSTORE:
+		case ASTORE:
+		case POP:
+		case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE:
+		case TABLESWITCH:
+		case LOOKUPSWITCH:
+		case IRETURN:
+		case FRETURN:
+		case ARETURN:
+		case ATHROW:
+		case PUTSTATIC:
+			pop(stack, 1);
+			break;
+		case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE:
+		case IF_ICMPGT: case IF_ICMPLE: case IF_ACMPEQ: case IF_ACMPNE:
+			pop(stack, 2);
+			break;
+		case IASTORE:
+		case FASTORE:
+		case AASTORE:
+		case BASTORE:
+			pop(stack, 3);
+			break;
+		case DUP:
+			stack.add(stack.get(stack.size() - 1));
+			break;
+		case DUP_X2:
+			String copied = pop(stack, 1);
+			String second = pop(stack, 1);
+			String third = pop(stack, 1);
+			stack.add(copied);
+			stack.add(third);
+			stack.add(second);
+			stack.add(copied);
+			break;
+		case SWAP:
+			String top = pop(stack, 1);
+			String below = pop(stack, 1);
+			stack.add(top);
+			stack.add(below);
+			break;
+		case IADD: case ISUB: case IMUL: case IXOR:
+		case FCMPL: case FCMPG:
+			pop(stack, 2);
+			stack.add("I");
+			break;
+		case FADD: case FSUB: case FMUL: case FDIV:
+			pop(stack, 2);
+			stack.add("F");
+			break;
+		case I2F:
+			pop(stack, 1);
+			stack.add("F");
+			break;
+		case F2I:
+		case ARRAYLENGTH:
+		case INSTANCEOF:
+			pop(stack, 1);
+			stack.add("I");
+			break;
+		case GETSTATIC:
+			String field = (String) piece.ref(i);
+			stack.add(verificationType(field.substring(field.indexOf(' ') + 1)));
+			break;
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+		case INVOKEDYNAMIC:
+			String method = (String) piece.ref(i);
+			String descriptor = method.substring(method.indexOf('('));
+			pop(stack, argumentTypes(descriptor).size());
+			if (opcode == INVOKEVIRTUAL || opcode == INVOKESPECIAL) pop(stack, 1);
+			String result = descriptor.substring(descriptor.indexOf(')') + 1);
+			if (!result.equals("V")) stack.add(verificationType(result));
+			break;
+		case NEW:
+			stack.add((String) piece.ref(i));
+			break;
+		case NEWARRAY:
+			pop(stack, 1);
+			stack.add(piece.operand(i) == T_FLOAT ? "[F" : "[Z");
+			break;
+		case ANEWARRAY:
+			pop(stack, 1);
+			String element = (String) piece.ref(i);
+			stack.add(element.startsWith("[") ? "[" + element : "[L" + element + ";");
+			break;
+		case CHECKCAST:
+			pop(stack, 1);
+			stack.add((String) piece.ref(i));
+			break;
+		default:
+			throw new IllegalStateException("No stack effect for opcode " + opcode);
+		}
+	}
+
+	private static String pop(List<String> stack, int count) {
+		if (count > stack.size()) {
+			throw new IllegalStateException("Internal compiler error: popping " + count
+					+ " values off a stack of " + stack.size() + ".");
+		}
+		String last = null;
+		for (int i = 0; i < count; i++) {
+			last = stack.remove(stack.size() - 1);
+		}
+		return last;
+	}
+
+	/**
+	 * The verification type of a field descriptor: <code>I</code>,
+	 * <code>F</code>, or the name of a class or array type.
+	 */
+	private static String verificationType(String descriptor) {
+		switch (descriptor.charAt(0)) {
+		case 'Z': case 'B': case 'C': case 'S': case 'I':
+			return "I";
+		case 'F':
+			return "F";
+		case 'L':
+			return descriptor.substring(1, descriptor.length() - 1);
+		default:
+			return descriptor;
+		}
+	}
+
+	private static List<String> argumentTypes(String descriptor) {
+		List<String> types = new ArrayList<>();
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			int start = i;
+			while (descriptor.charAt(i) == '[') i++;
+			if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+			i++;
+			types.add(descriptor.substring(start, i));
+		}
+		return types;
+	}
+
+	/**
+	 * The constant pool, written out as entries are added.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> indexes = new HashMap<>();
+		private int count = 1;
+
+		private int add(String key) {
+			if (count > 0xFFFF) {
+				DamCompiler.error("The program is too big: it needs more than 65535 constants.");
+			}
+			indexes.put(key, count);
+			return count++;
+		}
+
+		int utf8(String value) {
+			Integer index = indexes.get("U" + value);
+			if (index != null) return index;
+			try {
+				out.writeByte(1);
+				out.writeUTF(value);
+			} catch (IOException e) {
+				DamCompiler.error("A string is too long for a class file.");
+			}
+			return add("U" + value);
+		}
+
+		int intConstant(int value) {
+			Integer index = indexes.get("I" + value);
+			if (index != null) return index;
+			write(3, value);
+			return add("I" + value);
+		}
+
+		int floatConstant(float value) {
+			int bits = Float.floatToIntBits(value);
+			Integer index = indexes.get("F" + bits);
+			if (index != null) return index;
+			write(4, bits);
+			return add("F" + bits);
+		}
+
+		int classRef(String name) {
+			return entry(7, "C" + name, utf8(name), -1);
+		}
+
+		int string(String value) {
+			return entry(8, "S" + value, utf8(value), -1);
+		}
+
+		int nameAndType(String name, String descriptor) {
+			return entry(12, "N" + name + " " + descriptor, utf8(name), utf8(descriptor));
+		}
+
+		/**
+		 * A field given as <code>owner/name descriptor</code>.
+		 */
+		int fieldRef(String field) {
+			int space = field.indexOf(' ');
+			int slash = field.lastIndexOf('/', space);
+			return entry(9, "R" + field, classRef(field.substring(0, slash)),
+					nameAndType(field.substring(slash + 1, space), field.substring(space + 1)));
+		}
+
+		/**
+		 * A method given as <code>owner/name(descriptor)</code>.
+		 */
+		int methodRef(String method) {
+			int paren = method.indexOf('(');
+			int slash = method.lastIndexOf('/', paren);
+			return entry(10, "M" + method, classRef(method.substring(0, slash)),
+					nameAndType(method.substring(slash + 1, paren), method.substring(paren)));
+		}
+
+		int methodHandle(int kind, int method) {
+			Integer index = indexes.get("H" + kind + " " + method);
+			if (index != null) return index;
+			try {
+				out.writeByte(15);
+				out.writeByte(kind);
+				out.writeShort(method);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return add("H" + kind + " " + method);
+		}
+
+		int invokeDynamic(int bootstrap, String name, String descriptor) {
+			return entry(18, "D" + bootstrap + " " + name + " " + descriptor,
+					bootstrap, nameAndType(name, descriptor));
+		}
+
+		/**
+		 * An entry made of one or two other entries (<code>second</code> is
+		 * -1 for one).
+		 */
+		private int entry(int tag, String key, int first, int second) {
+			Integer index = indexes.get(key);
+			if (index != null) return index;
+			try {
+				out.writeByte(tag);
+				out.writeShort(first);
+				if (second >= 0) out.writeShort(second);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return add(key);
+		}
+
+		private void write(int tag, int value) {
+			try {
+				out.writeByte(tag);
+				out.writeInt(value);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void write(DataOutputStream to) throws IOException {
+			to.writeShort(count);
+			bytes.writeTo(to);
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package damlang;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code>DamCode</code> holds the instructions of a method as the
+ * <code>DamGenerator</code> produces them.
+ *
+ * Each instruction is a JVM opcode in a byte array and one int operand
+ * beside it, so a big program costs a few bytes per instruction.  What the
+ * operand means depends on the opcode: a local index, a label id, an
+ * immediate value, or an index into a pool of the constants and symbolic
+ * references (<code>"java/lang/String/concat(Ljava/lang/String;)Ljava/lang/String;"</code>)
+ * the method uses.  Labels are instructions of their own, with the
+ * pseudo-opcode {@link #LABEL}, and so are source line marks, {@link #LINE}.
+ *
+ * The instructions can be walked without parsing anything, which is what
+ * the stack analysis in {@link #maxStack()} and the Jasmin emitter do.
+ */
+public class DamCode {
+	public static final int NOP = 0;
+	public static final int ACONST_NULL = 1;
+	public static final int ICONST_M1 = 2;
+	public static final int ICONST_0 = 3;
+	public static final int ICONST_1 = 4;
+	public static final int ICONST_2 = 5;
+	public static final int ICONST_3 = 6;
+	public static final int ICONST_4 = 7;
+	public static final int ICONST_5 = 8;
+	public static final int FCONST_0 = 11;
+	public static final int FCONST_1 = 12;
+	public static final int FCONST_2 = 13;
+	public static final int BIPUSH = 16;
+	public static final int SIPUSH = 17;
+	public static final int LDC = 18;
+	public static final int ILOAD = 21;
+	public static final int FLOAD = 23;
+	public static final int ALOAD = 25;
+	public static final int IALOAD = 46;
+	public static final int FALOAD = 48;
+	public static final int AALOAD = 50;
+	public static final int BALOAD = 51;
+	public static final int ISTORE = 54;
+	public static final int FSTORE = 56;
+	public static final int ASTORE = 58;
+	public static final int IASTORE = 79;
+	public static final int FASTORE = 81;
+	public static final int AASTORE = 83;
+	public static final int BASTORE = 84;
+	public static final int POP = 87;
+	public static final int DUP = 89;
+	public static final int DUP_X2 = 91;
+	public static final int SWAP = 95;
+	public static final int IADD = 96;
+	public static final int FADD = 98;
+	public static final int ISUB = 100;
+	public static final int FSUB = 102;
+	public static final int IMUL = 104;
+	public static final int FMUL = 106;
+	public static final int FDIV = 110;
+	public static final int FNEG = 118;
+	public static final int IXOR = 130;
+	public static final int IINC = 132;
+	public static final int I2F = 134;
+	public static final int F2I = 139;
+	public static final int FCMPL = 149;
+	public static final int FCMPG = 150;
+	public static final int IFEQ = 153;
+	public static final int IFNE = 154;
+	public static final int IFLT = 155;
+	public static final int IFGE = 156;
+	public static final int IFGT = 157;
+	public static final int IFLE = 158;
+	public static final int IF_ICMPEQ = 159;
+	public static final int IF_ICMPNE = 160;
+	public static final int IF_ICMPLT = 161;
+	public static final int IF_ICMPGE = 162;
+	public static final int IF_ICMPGT = 163;
+	public static final int IF_ICMPLE = 164;
+	public static final int IF_ACMPEQ = 165;
+	public static final int IF_ACMPNE = 166;
+	public static final int GOTO = 167;
+	public static final int TABLESWITCH = 170;
+	public static final int LOOKUPSWITCH = 171;
+	public static final int IRETURN = 172;
+	public static final int FRETURN = 174;
+	public static final int ARETURN = 176;
+	public static final int RETURN = 177;
+	public static final int GETSTATIC = 178;
+	public static final int PUTSTATIC = 179;
+	public static final int INVOKEVIRTUAL = 182;
+	public static final int INVOKESPECIAL = 183;
+	public static final int INVOKESTATIC = 184;
+	public static final int INVOKEDYNAMIC = 186;
+	public static final int NEW = 187;
+	public static final int NEWARRAY = 188;
+	public static final int ANEWARRAY = 189;
+	public static final int ARRAYLENGTH = 190;
+	public static final int ATHROW = 191;
+	public static final int CHECKCAST = 192;
+	public static final int INSTANCEOF = 193;
+
+	/** Not a JVM opcode: marks where a label is. */
+	public static final int LABEL = 255;
+
+	/** Not a JVM opcode: the following code comes from this source line. */
+	public static final int LINE = 254;
+
+	/** <code>newarray</code> operands. */
+	public static final int T_BOOLEAN = 4;
+	public static final int T_FLOAT = 6;
+
+	private static final String[] NAMES = new String[256];
+	private static final int[] EFFECTS = new int[256];
+
+	static {
+		define(NOP, "nop", 0);
+		define(ACONST_NULL, "aconst_null", 1);
+		define(ICONST_M1, "iconst_m1", 1);
+		for (int i = 0; i <= 5; i++) {
+			define(ICONST_0 + i, "iconst_" + i, 1);
+		}
+		for (int i = 0; i <= 2; i++) {
+			define(FCONST_0 + i, "fconst_" + i, 1);
+		}
+		define(BIPUSH, "bipush", 1);
+		define(SIPUSH, "sipush", 1);
+		define(LDC, "ldc", 1);
+		define(ILOAD, "iload", 1);
+		define(FLOAD, "fload", 1);
+		define(ALOAD, "aload", 1);
+		define(IALOAD, "iaload", -1);
+		define(FALOAD, "faload", -1);
+		define(AALOAD, "aaload", -1);
+		define(BALOAD, "baload", -1);
+		define(ISTORE, "istore", -1);
+		define(FSTORE, "fstore", -1);
+		define(ASTORE, "astore", -1);
+		define(IASTORE, "iastore", -3);
+		define(FASTORE, "fastore", -3);
+		define(AASTORE, "aastore", -3);
+		define(BASTORE, "bastore", -3);
+		define(POP, "pop", -1);
+		define(DUP, "dup", 1);
+		define(DUP_X2, "dup_x2", 1);
+		define(SWAP, "swap", 0);
+		define(IADD, "iadd", -1);
+		define(FADD, "fadd", -1);
+		define(ISUB, "isub", -1);
+		define(FSUB, "fsub", -1);
+		define(IMUL, "imul", -1);
+		define(FMUL, "fmul", -1);
+		define(FDIV, "fdiv", -1);
+		define(FNEG, "fneg", 0);
+		define(IXOR, "ixor", -1);
+		define(IINC, "iinc", 0);
+		define(I2F, "i2f", 0);
+		define(F2I, "f2i", 0);
+		define(FCMPL, "fcmpl", -1);
+		define(FCMPG, "fcmpg", -1);
+		define(IFEQ, "ifeq", -1);
+		define(IFNE, "ifne", -1);
+		define(IFLT, "iflt", -1);
+		define(IFGE, "ifge", -1);
+		define(IFGT, "ifgt", -1);
+		define(IFLE, "ifle", -1);
+		define(IF_ICMPEQ, "if_icmpeq", -2);
+		define(IF_ICMPNE, "if_icmpne", -2);
+		define(IF_ICMPLT, "if_icmplt", -2);
+		define(IF_ICMPGE, "if_icmpge", -2);
+		define(IF_ICMPGT, "if_icmpgt", -2);
+		define(IF_ICMPLE, "if_icmple", -2);
+		define(IF_ACMPEQ, "if_acmpeq", -2);
+		define(IF_ACMPNE, "if_acmpne", -2);
+		define(GOTO, "goto", 0);
+		define(TABLESWITCH, "tableswitch", -1);
+		define(LOOKUPSWITCH, "lookupswitch", -1);
+		define(IRETURN, "ireturn", -1);
+		define(FRETURN, "freturn", -1);
+		define(ARETURN, "areturn", -1);
+		define(RETURN, "return", 0);
+		define(GETSTATIC, "getstatic", 1);
+		define(PUTSTATIC, "putstatic", -1);
+		define(INVOKEVIRTUAL, "invokevirtual", 0);
+		define(INVOKESPECIAL, "invokespecial", 0);
+		define(INVOKESTATIC, "invokestatic", 0);
+		define(INVOKEDYNAMIC, "invokedynamic", 0);
+		define(NEW, "new", 1);
+		define(NEWARRAY, "newarray", 0);
+		define(ANEWARRAY, "anewarray", 0);
+		define(ARRAYLENGTH, "arraylength", 0);
+		define(ATHROW, "athrow", -1);
+		define(CHECKCAST, "checkcast", 0);
+		define(INSTANCEOF, "instanceof", 0);
+	}
+
+	private static void define(int opcode, String name, int effect) {
+		NAMES[opcode] = name;
+		EFFECTS[opcode] = effect;
+	}
+
+	/**
+	 * An <code>ldc</code> constant for a handle on a static method, given
+	 * as <code>owner/name(descriptor)</code>.
+	 */
+	public record Handle(String method) {}
+
+	/**
+	 * The operand of a <code>tableswitch</code> or <code>lookupswitch</code>:
+	 * the keys in increasing order, the label each one jumps to, and the
+	 * label for any other value.  A <code>tableswitch</code> has every key
+	 * from the first to the last.
+	 */
+	public record Switch(int[] keys, int[] labels, int otherwise) {}
+
+	private byte[] ops = new byte[64];
+	private int[] operands = new int[64];
+	private int size = 0;
+	private int labelCount = 0;
+	private int firstLabel = 0;
+
+	private List<Object> pool = new ArrayList<>();
+	private Map<Object, Integer> poolIndex = new HashMap<>();
+
+	/**
+	 * The number of instructions, labels included.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int opcode(int i) {
+		return ops[i] & 0xFF;
+	}
+
+	public int operand(int i) {
+		return operands[i];
+	}
+
+	/**
+	 * The constant or symbolic reference of an instruction that has one.
+	 */
+	public Object ref(int i) {
+		return pool.get(operands[i]);
+	}
+
+	/**
+	 * Appends an instruction without an operand.
+	 */
+	public void add(int opcode) {
+		add(opcode, 0);
+	}
+
+	/**
+	 * Appends an instruction whose operand is a local, a label or a value.
+	 */
+	public void add(int opcode, int operand) {
+		if (size == ops.length) {
+			ops = Arrays.copyOf(ops, size * 2);
+			operands = Arrays.copyOf(operands, size * 2);
+		}
+		ops[size] = (byte) opcode;
+		operands[size] = operand;
+		size++;
+	}
+
+	/**
+	 * Appends an instruction that refers to a constant (<code>ldc</code>) or
+	 * to a class, field or method.
+	 */
+	public void addRef(int opcode, Object ref) {
+		Integer index = poolIndex.get(ref);
+		if (index == null) {
+			index = pool.size();
+			pool.add(ref);
+			poolIndex.put(ref, index);
+		}
+		add(opcode, index.intValue());
+	}
+
+	public void iinc(int local, int delta) {
+		add(IINC, (local & 0xFFFF) | (delta << 16));
+	}
+
+	/**
+	 * Appends a jump on the int on top of the stack to the label of its key,
+	 * or to <code>otherwise</code>.  The keys need not be sorted but must
+	 * differ.  A <code>tableswitch</code> is used when the keys are dense
+	 * enough that its table is about as small as a
+	 * <code>lookupswitch</code>, weighing time like javac does, with the
+	 * gaps jumping to <code>otherwise</code>.
+	 */
+	public void addSwitch(int[] keys, int[] labels, int otherwise) {
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(keys[a], keys[b]));
+		int n = keys.length;
+		int[] sortedKeys = new int[n];
+		int[] sortedLabels = new int[n];
+		for (int i = 0; i < n; i++) {
+			sortedKeys[i] = keys[order[i]];
+			sortedLabels[i] = labels[order[i]];
+		}
+
+		long range = n == 0 ? 0 : (long) sortedKeys[n - 1] - sortedKeys[0] + 1;
+		long tableCost = 4 + range + 3 * 3;
+		long lookupCost = 3 + 2L * n + 3L * n;
+		if (n == 0 || tableCost > lookupCost) {
+			addRef(LOOKUPSWITCH, new Switch(sortedKeys, sortedLabels, otherwise));
+			return;
+		}
+
+		int[] tableKeys = new int[(int) range];
+		int[] tableLabels = new int[(int) range];
+		for (int i = 0, k = 0; i < range; i++) {
+			tableKeys[i] = sortedKeys[0] + i;
+			tableLabels[i] = sortedKeys[k] == tableKeys[i] ? sortedLabels[k++] : otherwise;
+		}
+		addRef(TABLESWITCH, new Switch(tableKeys, tableLabels, otherwise));
+	}
+
+	public int newLabel() {
+		return labelCount++;
+	}
+
+	public void label(int label) {
+		add(LABEL, label);
+	}
+
+	/**
+	 * Marks the code that follows as coming from a source line.  A mark
+	 * with no code after it is replaced rather than kept.
+	 */
+	public void line(int line) {
+		if (size > 0 && opcode(size - 1) == LINE) {
+			operands[size - 1] = line;
+		} else {
+			add(LINE, line);
+		}
+	}
+
+	/**
+	 * Forgets every instruction so far, as when they have been written out.
+	 * Label ids keep counting up, so later code never reuses one.
+	 */
+	public void clear() {
+		size = 0;
+		firstLabel = labelCount;
+		pool.clear();
+		poolIndex.clear();
+	}
+
+	public int firstLabel() {
+		return firstLabel;
+	}
+
+	/**
+	 * Where each label is, indexed by label id less {@link #firstLabel()}.
+	 */
+	public int[] labelPositions() {
+		int[] labelAt = new int[labelCount - firstLabel];
+		for (int i = 0; i < size; i++) {
+			if (opcode(i) == LABEL) labelAt[operands[i] - firstLabel] = i;
+		}
+		return labelAt;
+	}
+
+	public static boolean isBranch(int opcode) {
+		return opcode >= IFEQ && opcode <= GOTO;
+	}
+
+	public static boolean isSwitch(int opcode) {
+		return opcode == TABLESWITCH || opcode == LOOKUPSWITCH;
+	}
+
+	/**
+	 * Works out the deepest the operand stack gets, following every branch.
+	 */
+	public int maxStack() {
+		int[] labelAt = labelPositions();
+		int[] depthAt = new int[size + 1];
+		Arrays.fill(depthAt, -1);
+		Deque<int[]> pending = new ArrayDeque<>();
+		pending.push(new int[]{0, 0});
+		int max = 0;
+		while (!pending.isEmpty()) {
+			int[] start = pending.pop();
+			int depth = start[1];
+			for (int i = start[0]; i < size && depthAt[i] < 0; i++) {
+				depthAt[i] = depth;
+				int opcode = opcode(i);
+				depth += effect(i);
+				max = Math.max(max, depth);
+
+				if (isBranch(opcode)) {
+					pending.push(new int[]{labelAt[operands[i] - firstLabel], depth});
+					if (opcode == GOTO) break;
+				} else if (isSwitch(opcode)) {
+					Switch table = (Switch) ref(i);
+					pending.push(new int[]{labelAt[table.otherwise() - firstLabel], depth});
+					for (int label : table.labels()) {
+						pending.push(new int[]{labelAt[label - firstLabel], depth});
+					}
+					break;
+				} else if (opcode == ATHROW || (opcode >= IRETURN && opcode <= RETURN)) {
+					break;
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * How much an instruction changes the depth of the operand stack.
+	 */
+	private int effect(int i) {
+		int opcode = opcode(i);
+		switch (opcode) {
+		case LABEL:
+		case LINE:
+			return 0;
+		case INVOKEVIRTUAL:
+		case INVOKESPECIAL:
+		case INVOKESTATIC:
+		case INVOKEDYNAMIC:
+			String method = (String) ref(i);
+			String descriptor = method.substring(method.indexOf('('));
+			int effect = returnSize(descriptor) - argumentSize(descriptor);
+			return opcode == INVOKESTATIC || opcode == INVOKEDYNAMIC ? effect : effect - 1;
+		default:
+			return EFFECTS[opcode];
+		}
+	}
+
+	/**
+	 * The stack slots taken by a method's arguments.  Dam never passes
+	 * longs or doubles, but they are counted properly anyway.
+	 */
+	private static int argumentSize(String descriptor) {
+		int slots = 0;
+		for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+			char c = descriptor.charAt(i);
+			if (c == 'J' || c == 'D') {
+				slots += 2;
+				continue;
+			}
+			while (descriptor.charAt(i) == '[') {
+				i++;
+			}
+			if (descriptor.charAt(i) == 'L') {
+				i = descriptor.indexOf(';', i);
+			}
+			slots++;
+		}
+		return slots;
+	}
+
+	private static int returnSize(String descriptor) {
+		char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+		if (c == 'V') return 0;
+		return c == 'J' || c == 'D' ? 2 : 1;
+	}
+
+	/**
+	 * Writes the instructions as Jasmin assembly, one per line.
+	 */
+	public void writeJasmin(PrintWriter writer) {
+		for (int i = 0; i < size; i++) {
+			int opcode = opcode(i);
+			int operand = operands[i];
+			switch (opcode) {
+			case LABEL:
+				writer.println("L" + operand + ":");
+				break;
+			case LINE:
+				writer.println("\t.line " + operand);
+				break;
+			case BIPUSH:
+			case SIPUSH:
+			case ILOAD:
+			case FLOAD:
+			case ALOAD:
+			case ISTORE:
+			case FSTORE:
+			case ASTORE:
+				writer.println("\t" + NAMES[opcode] + " " + operand);
+				break;
+			case IINC:
+				writer.println("\tiinc " + (operand & 0xFFFF) + " " + (operand >> 16));
+				break;
+			case NEWARRAY:
+				writer.println("\tnewarray " + (operand == T_FLOAT ? "float" : "boolean"));
+				break;
+			case LDC:
+				Object constant = ref(i);
+				if (constant instanceof String) {
+					writer.println("\tldc \"" + escape((String) constant) + "\"");
+				} else {
+					writer.println("\tldc " + constant);
+				}
+				break;
+			case GETSTATIC:
+			case PUTSTATIC:
+			case INVOKEVIRTUAL:
+			case INVOKESPECIAL:
+			case INVOKESTATIC:
+			case INVOKEDYNAMIC:
+			case NEW:
+			case ANEWARRAY:
+			case CHECKCAST:
+			case INSTANCEOF:
+				writer.println("\t" + NAMES[opcode] + " " + ref(i));
+				break;
+			case TABLESWITCH:
+				Switch table = (Switch) ref(i);
+				int[] keys = table.keys();
+				writer.println("\ttableswitch " + keys[0] + " " + keys[keys.length - 1]);
+				for (int label : table.labels()) {
+					writer.println("\t\tL" + label);
+				}
+				writer.println("\t\tdefault : L" + table.otherwise());
+				break;
+			case LOOKUPSWITCH:
+				Switch lookup = (Switch) ref(i);
+				writer.println("\tlookupswitch");
+				for (int k = 0; k < lookup.keys().length; k++) {
+					writer.println("\t\t" + lookup.keys()[k] + " : L" + lookup.labels()[k]);
+				}
+				writer.println("\t\tdefault : L" + lookup.otherwise());
+				break;
+			default:
+				if (isBranch(opcode)) {
+					writer.println("\t" + NAMES[opcode] + " L" + operand);
+				} else {
+					writer.println("\t" + NAMES[opcode]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Quotes a string constant the way Jasmin reads it back.
+	 */
+	private static String escape(String value) {
+		StringBuilder text = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\n':	text.append("\\n"); break;
+			case '\t':	text.append("\\t"); break;
+			case '\r':	text.append("\\r"); break;
+			case '\b':	text.append("\\b"); break;
+			case '\f':	text.append("\\f"); break;
+			case '"':	text.append("\\\""); break;
+			case '\\':	text.append("\\\\"); break;
+			default:
+				if (c < ' ' || c > '~') {
+					text.append(String.format("\\u%04x", (int) c));
+				} else {
+					text.append(c);
+				}
+			}
+		}
+		return text.toString();
+	}
+}
@@ -1,13 +1,17 @@
 package damlang;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The <code>DamCompiler</code> directs the <code>DamLexer</code>, 
- * <code>DamParser</code>, and <code>DamCodeGen</code> to take
+ * <code>DamParser</code>, <code>DamTypeChecker</code> and <code>DamGenerator</code> to take
  * a Dam source file and create a class file that can be run
  * using the Java Virtual Machine.
  * 
@@ -15,6 +19,87 @@ import java.util.List;
  * compiler pipeline mentioned above.
  */
 public class DamCompiler {
+	/**
+	 * Set by <code>--timings</code>: report how long each phase takes.
+	 */
+	static boolean timings = false;
+
+	/**
+	 * Cleared by <code>--no-assemble</code>: stop after generating the code
+	 * (and with <code>--jasmin</code> writing the Jasmin file), without
+	 * writing a class file.
+	 */
+	static boolean assemble = true;
+
+	/**
+	 * Set by <code>--stream</code>: write out the code of each top-level
+	 * statement as soon as it is generated.
+	 */
+	static boolean stream = false;
+
+	/**
+	 * Set by <code>--jasmin</code>: write Jasmin assembly and assemble it
+	 * with Jasmin, instead of writing the class file directly.  Imported
+	 * modules are always written directly.
+	 */
+	static boolean jasmin = false;
+
+	/**
+	 * Set by <code>--parallel-lex</code>: lex a large file in chunks on
+	 * several threads.
+	 */
+	static boolean parallelLex = false;
+
+	/**
+	 * Set by <code>--pipeline</code>: lex and parse on threads of their
+	 * own, overlapping with each other and with the start of checking.
+	 * Lexing then takes no notice of <code>--parallel-lex</code>.
+	 */
+	static boolean pipeline = false;
+
+	/**
+	 * Cleared by <code>--no-cse</code>: compute every expression where it
+	 * is written, without <code>DamValueNumbering</code>.
+	 */
+	static boolean cse = true;
+
+	/**
+	 * Cleared by <code>--no-simplify</code>: generate every expression as
+	 * written, without <code>DamSimplifier</code>.
+	 */
+	static boolean simplify = true;
+
+	/**
+	 * Set by <code>--unroll &lt;factor&gt;</code>: how many copies of its body
+	 * a partially unrolled <code>while</code> loop runs per trip.  1 turns
+	 * unrolling off.
+	 */
+	static int unroll = 4;
+
+	/**
+	 * Set by <code>--stats</code>: report how often each simplification
+	 * applied and how many computations were reused.
+	 */
+	static boolean stats = false;
+
+	/**
+	 * The stack size of the thread that compiles.  The passes after the
+	 * parser walk expressions recursively, so a long operator chain or
+	 * deep nesting needs far more than the default stack; this is only
+	 * reserved, not committed, until it is used.
+	 */
+	static final long STACK_SIZE = 1L << 30;
+
+	/**
+	 * The modules loaded so far, by name, so each is only checked once.
+	 */
+	private static Map<String, DamModule> modules = new HashMap<>();
+
+	/**
+	 * The modules being loaded, each imported by the one before it.
+	 */
+	private static List<String> loading = new ArrayList<>();
+
 	/**
 	 * The program entry point for the compiler.  It does some 
 	 * command-line checking before calling <code>{@link #compile(File)}</code>.
@@ -24,18 +109,75 @@ public class DamCompiler {
 		// Compile one .dam file.
 		// Eventually think about what happens when we compile multiple.
 		
-		if (args.length != 1) {
-			System.err.println("java damlang.DamCompiler <dam sourcefile>");
+		if (args.length == 1 && args[0].equals("--lsp")) {
+			try {
+				new DamLanguageServer(System.in, System.out).serve();
+			} catch (IOException ioe) {
+				error("Language server: " + ioe.getMessage());
+			}
+			return;
+		}
+
+		int first = 0;
+		while (first < args.length && args[first].startsWith("--")) {
+			if (args[first].equals("--timings")) {
+				timings = true;
+			} else if (args[first].equals("--no-assemble")) {
+				assemble = false;
+			} else if (args[first].equals("--stream")) {
+				stream = true;
+			} else if (args[first].equals("--jasmin")) {
+				jasmin = true;
+			} else if (args[first].equals("--parallel-lex")) {
+				parallelLex = true;
+			} else if (args[first].equals("--pipeline")) {
+				pipeline = true;
+			} else if (args[first].equals("--no-cse")) {
+				cse = false;
+			} else if (args[first].equals("--no-simplify")) {
+				simplify = false;
+			} else if (args[first].equals("--unroll") && first + 1 < args.length
+					&& args[first + 1].matches("[1-9][0-9]{0,2}")) {
+				unroll = Integer.parseInt(args[++first]);
+			} else if (args[first].equals("--stats")) {
+				stats = true;
+			} else {
+				System.err.println("Unknown option " + args[first]);
+				System.exit(1);
+			}
+			first++;
+		}
+
+		if (args.length - first != 1) {
+			System.err.println("java damlang.DamCompiler --lsp | [--timings] [--no-assemble] [--stream] [--jasmin] [--parallel-lex] [--pipeline] [--no-cse] [--no-simplify] [--unroll <factor>] [--stats] <dam sourcefile>");
 			System.exit(1);
-		} else if (Files.notExists(Paths.get(args[0]))) {
-			System.err.println("Cannot find file " + args[0]);
+		} else if (Files.notExists(Paths.get(args[first]))) {
+			System.err.println("Cannot find file " + args[first]);
 			System.exit(2);
-		} else if (! args[0].endsWith(".dam")) {
-			System.err.println(args[0] + " does not have a .dam extension.");
+		} else if (! args[first].endsWith(".dam")) {
+			System.err.println(args[first] + " does not have a .dam extension.");
 			System.exit(3);
 		}
-		
-		compile(new File(args[0]));
+
+		File file = new File(args[first]);
+		Thread compiler = new Thread(null, () -> {
+			try {
+				compile(file);
+			} catch (StackOverflowError e) {
+				error("The program is nested too deeply to compile: split its longest "
+						+ "expressions or most deeply nested blocks into several statements.");
+			}
+		}, "dam", STACK_SIZE);
+		compiler.setUncaughtExceptionHandler((thread, e) -> {
+			e.printStackTrace();
+			System.exit(1);
+		});
+		compiler.start();
+		try {
+			compiler.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	private static String getAbsoluteStem(File f) {
@@ -46,19 +188,162 @@ public class DamCompiler {
 	/**
 	 * Given a Dam source <code>File</code> object, this runs the compiler
 	 * pipeline to produce a Java class file in the same directory as
-	 * the Dam source file. 
+	 * the Dam source file.  Modules it imports are compiled first, if
+	 * they have changed.
 	 * @param f the Dam source file
 	 */
 	protected static void compile(File f) {
+		// A summary left from compiling the file as a module no longer
+		// describes its class.
+		try {
+			Files.deleteIfExists(Paths.get(getAbsoluteStem(f) + ".dami"));
+		} catch (IOException ioe) {
+			error("Cannot remove " + getAbsoluteStem(f) + ".dami. " + ioe.getMessage());
+		}
+		compile(f, null);
+	}
+
+	/**
+	 * Compiles one file.
+	 * @param f the Dam source file
+	 * @param module the interface to fill in when the file is compiled as
+	 * a module, or null for a program
+	 */
+	private static void compile(File f, DamModule module) {
 		System.out.println("Compiling "  + f.getAbsolutePath());
-		List<Token> tokens = new DamLexer(f).lex();
-		List<Stmt> statements = new DamParser(tokens).parse();
+		long start = System.nanoTime();
+		List<Stmt> statements;
+		DamTypeChecker checker;
+		if (pipeline) {
+			statements = new ArrayList<>();
+			checker = new DamTypeChecker(statements);
+			new DamPipeline(f).run(stmt -> {
+				statements.add(stmt);
+				checker.take();
+			});
+			start = phase("pipeline", start);
+		} else {
+			List<Token> tokens = new DamLexer(f).lex();
+			start = phase("lex", start);
+			statements = new DamParser(tokens).parse();
+			tokens = null; // the tree keeps the tokens it needs
+			start = phase("parse", start);
+			checker = new DamTypeChecker(statements);
+		}
 		/*
 		for (Stmt s : statements) {
 			System.out.println(s);
 		}
 		*/
-		new DamGenerator(statements).generate(getAbsoluteStem(f));
+		for (Stmt s : statements) {
+			if (!(s instanceof Stmt.Import)) break;
+			Stmt.Import stmt = (Stmt.Import) s;
+			stmt.module = load(f.getAbsoluteFile().getParentFile(), f.getName(), stmt.name.lexeme);
+			if (module != null) {
+				module.imports.put(stmt.module.name, stmt.module.interfaceHash());
+			}
+		}
+		start = System.nanoTime(); // not counting the modules compiled
+		DamEnvironment env = checker.check();
+		if (module != null) {
+			checker.exportTo(module);
+		}
+		start = phase("check", start);
+		if (simplify) {
+			Map<String, Integer> applied = new DamSimplifier(statements).simplify();
+			start = phase("simplify", start);
+			if (stats) {
+				for (Map.Entry<String, Integer> rule : applied.entrySet()) {
+					System.err.printf("simplify %-18s %d%n", rule.getKey(), rule.getValue());
+				}
+			}
+		}
+		if (unroll > 1) {
+			int[] unrolled = new DamUnroller(statements, unroll).unroll();
+			start = phase("unroll", start);
+			if (stats) {
+				System.err.printf("unrolled loops %d fully, %d partially%n", unrolled[0], unrolled[1]);
+			}
+		}
+		if (cse) {
+			int reused = new DamValueNumbering(statements, env).number();
+			phase("number", start);
+			if (stats) {
+				System.err.printf("reused computations %d%n", reused);
+			}
+		}
+		new DamGenerator(statements, env, module).generate(getAbsoluteStem(f));
+	}
+
+	/**
+	 * Returns the interface of an imported module, compiling the module
+	 * first unless its summary shows that neither its source nor the
+	 * interface of anything it imports has changed since it was compiled.
+	 * @param dir the directory of the importing file, where modules are
+	 * @param importer the importing file's name, for errors
+	 * @param name the module's name
+	 */
+	private static DamModule load(File dir, String importer, String name) {
+		DamModule module = modules.get(name);
+		if (module != null) return module;
+
+		if (loading.contains(name)) {
+			List<String> cycle = new ArrayList<>(loading.subList(loading.indexOf(name), loading.size()));
+			cycle.add(name);
+			error("Import cycle: " + String.join(" -> ", cycle) + ".");
+		}
+		File source = new File(dir, name + ".dam");
+		if (!source.isFile()) {
+			error(importer + " imports " + name + ", but there is no " + source + ".");
+		}
+
+		loading.add(name);
+		String stem = getAbsoluteStem(source);
+		String hash;
+		try {
+			hash = DamModule.hash(Files.readAllBytes(source.toPath()));
+		} catch (IOException ioe) {
+			error("Cannot read " + source + ". " + ioe.getMessage());
+			return null;
+		}
+		module = DamModule.read(Paths.get(stem + ".dami"));
+		if (!upToDate(module, name, hash, stem, dir)) {
+			module = new DamModule(name, hash);
+			compile(source, module);
+			if (assemble) {
+				module.write(Paths.get(stem + ".dami"));
+			}
+		}
+		loading.remove(loading.size() - 1);
+		modules.put(name, module);
+		return module;
+	}
+
+	private static boolean upToDate(DamModule summary, String name, String hash, String stem, File dir) {
+		if (summary == null || !summary.name.equals(name) || !summary.sourceHash.equals(hash)
+				|| Files.notExists(Paths.get(stem + ".class"))) {
+			return false;
+		}
+		for (Map.Entry<String, String> imported : summary.imports.entrySet()) {
+			DamModule current = load(dir, name + ".dam", imported.getKey());
+			if (!current.interfaceHash().equals(imported.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ends a compiler phase that began at <code>start</code>, reporting
+	 * its time with <code>--timings</code>.
+	 * @return the time the next phase starts
+	 */
+	static long phase(String name, long start) {
+		long end = System.nanoTime();
+		if (timings) {
+			System.err.printf("phase %s %.3f ms%n", name, (end - start) / 1e6);
+		}
+		return end;
 	}
 
 	public static void error(String msg) {
@@ -66,6 +351,16 @@ public class DamCompiler {
 		System.exit(1);		
 	}
 
+	/**
+	 * Reports several errors at once, then exits.
+	 */
+	public static void errors(List<String> msgs) {
+		for (String msg : msgs) {
+			System.err.println(msg);
+		}
+		System.exit(1);
+	}
+
 	public static void error(int line, String msg) {
 		System.err.println("Line " + line + ": " + msg);
 		System.exit(1);		
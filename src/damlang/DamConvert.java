@@ -0,0 +1,276 @@
+package damlang;
+
+/**
+ * The <code>DamConvert</code> carries out the <code>str()</code> and
+ * <code>double()</code> casts between doubles and strings.  It is shipped
+ * next to compiled Dam programs, and the compiler uses it too to fold
+ * casts of constants, so both give the same strings.
+ *
+ * A double becomes the shortest decimal that reads back as the same float,
+ * written the way <code>print</code> writes it: <code>3.0</code>,
+ * <code>0.1</code>, <code>1.0E10</code>.  The digits are found by trying
+ * one, two, up to nine significant digits and reading each candidate back.
+ *
+ * A string is read without building any objects on the way.  Up to 15
+ * significant digits and a power of ten up to 22 is one exact operation in
+ * double precision, correctly rounded, and rounding that to a float is
+ * only wrong when the double lands exactly halfway between two floats.
+ * Those cases, and longer or larger numbers, are handed to
+ * <code>Float.parseFloat</code>.
+ */
+public final class DamConvert {
+	private static final double[] POWERS_OF_TEN = new double[23];
+	private static final long MAX_EXACT = 1L << 53;
+	private static final double LOG10_2 = 0.30102999566398120;
+
+	// 10^n for every n a float's digits can be scaled by.
+	private static final int SCALE_OFFSET = 64;
+	private static final double[] SCALES = new double[2 * SCALE_OFFSET + 1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+		for (int n = -SCALE_OFFSET; n <= SCALE_OFFSET; n++) {
+			SCALES[n + SCALE_OFFSET] = Math.abs(n) < POWERS_OF_TEN.length
+					? (n >= 0 ? POWERS_OF_TEN[n] : 1 / POWERS_OF_TEN[-n]) : Math.pow(10, n);
+		}
+	}
+
+	private DamConvert() {}
+
+	/**
+	 * <code>str(x)</code> for a double.
+	 */
+	public static String toStr(float value) {
+		if (value != value) return "NaN";
+		if (value == Float.POSITIVE_INFINITY) return "Infinity";
+		if (value == Float.NEGATIVE_INFINITY) return "-Infinity";
+		if (value == 0) return Float.floatToRawIntBits(value) == 0 ? "0.0" : "-0.0";
+
+		float magnitude = Math.abs(value);
+		int exponent = (int) Math.floor(Math.getExponent((double) magnitude) * LOG10_2);
+		if (power(exponent + 1) <= magnitude) {
+			exponent++;
+		} else if (power(exponent) > magnitude) {
+			exponent--;
+		}
+
+		// Every decimal strictly between these reads back as the value, and
+		// so do the ends when the value's last bit is even.  Both are
+		// exact as doubles.
+		double ulp = Math.ulp(magnitude);
+		boolean lowerGap = Float.floatToRawIntBits(magnitude) << 9 == 0 && magnitude >= Float.MIN_NORMAL * 2;
+		double low = magnitude - (lowerGap ? ulp / 4 : ulp / 2);
+		double high = magnitude + ulp / 2;
+
+		// The decimal digits * 10^scale, with as few digits as reads back.
+		// With one digit, two-digit decimals closer to the value win, as
+		// they do for print, and of two as close the even one wins.  The
+		// scaling is not exact, so only candidates that look close enough
+		// are read back to make sure.
+		long digits = 0;
+		int scale = 0;
+		double distance = Double.POSITIVE_INFINITY;
+		for (int precision = 1; precision <= 9; precision++) {
+			int q = exponent - precision + 1;
+			double up = power(-q);
+			double scaled = magnitude * up;
+			double slack = scaled * 0x1p-40;
+			long below = (long) scaled;
+			for (long candidate = below; candidate <= below + 1; candidate++) {
+				if (candidate < low * up - slack || candidate > high * up + slack) continue;
+				double off = Math.abs(candidate - scaled);
+				boolean closer = off < distance || (off == distance && candidate % 2 == 0);
+				if (candidate > 0 && closer && read(candidate, q) == magnitude) {
+					digits = candidate;
+					scale = q;
+					distance = off;
+				}
+			}
+			if (digits != 0 && precision >= 2) break;
+			distance *= 10;
+		}
+		while (digits % 10 == 0) {
+			digits /= 10;
+			scale++;
+		}
+		return write(value < 0, digits, scale);
+	}
+
+	/**
+	 * 10^n as a double, exactly from 10^-22 to 10^22 when dividing, as
+	 * {@link #read} does.
+	 */
+	private static double power(int n) {
+		return SCALES[n + SCALE_OFFSET];
+	}
+
+	/**
+	 * Writes <code>digits * 10^scale</code>: plainly from 0.001 up to
+	 * 10^7, otherwise as <code>d.dddEn</code>, with a digit after the point
+	 * either way.
+	 */
+	private static String write(boolean negative, long digits, int scale) {
+		char[] text = new char[32];
+		int length = 0;
+		char[] number = new char[10];
+		int count = 0;
+		for (long rest = digits; rest > 0; rest /= 10) {
+			number[number.length - ++count] = (char) ('0' + rest % 10);
+		}
+		int first = number.length - count;
+		int exponent = scale + count - 1;
+
+		if (negative) text[length++] = '-';
+		if (exponent >= -3 && exponent < 7) {
+			if (exponent < 0) {
+				text[length++] = '0';
+				text[length++] = '.';
+				for (int i = -1; i > exponent; i--) {
+					text[length++] = '0';
+				}
+				for (int i = first; i < number.length; i++) {
+					text[length++] = number[i];
+				}
+			} else {
+				for (int i = 0; i <= exponent; i++) {
+					text[length++] = i < count ? number[first + i] : '0';
+				}
+				text[length++] = '.';
+				if (count <= exponent + 1) {
+					text[length++] = '0';
+				}
+				for (int i = exponent + 1; i < count; i++) {
+					text[length++] = number[first + i];
+				}
+			}
+		} else {
+			text[length++] = number[first];
+			text[length++] = '.';
+			if (count == 1) {
+				text[length++] = '0';
+			}
+			for (int i = first + 1; i < number.length; i++) {
+				text[length++] = number[i];
+			}
+			text[length++] = 'E';
+			if (exponent < 0) {
+				text[length++] = '-';
+				exponent = -exponent;
+			}
+			if (exponent >= 10) {
+				text[length++] = (char) ('0' + exponent / 10);
+			}
+			text[length++] = (char) ('0' + exponent % 10);
+		}
+		return new String(text, 0, length);
+	}
+
+	/**
+	 * <code>double(s)</code>: reads an optionally signed decimal, with an
+	 * optional exponent, <code>NaN</code> or <code>Infinity</code>.
+	 * Whitespace around it is ignored.
+	 * @throws NumberFormatException if the string is not a number
+	 */
+	public static float toDouble(String text) {
+		int start = 0;
+		int end = text.length();
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		if (text.startsWith("NaN", i) && i + 3 == end) return Float.NaN;
+		if (text.startsWith("Infinity", i) && i + 8 == end) {
+			return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		}
+
+		// The significant digits, up to 18 of them, and the power of ten
+		// they are scaled by.
+		long digits = 0;
+		int significant = 0;
+		int scale = 0;
+		boolean any = false;
+		boolean exact = true;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '.' && !point) {
+				point = true;
+				continue;
+			}
+			if (c < '0' || c > '9') break;
+			any = true;
+			if (digits == 0 && c == '0') {
+				if (point) scale--;
+				continue;
+			}
+			if (significant < 18) {
+				digits = digits * 10 + (c - '0');
+				significant++;
+				if (point) scale--;
+			} else {
+				exact = false;
+				if (!point) scale++;
+			}
+		}
+		if (!any) throw notANumber(text);
+
+		if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+				negativeExponent = text.charAt(i) == '-';
+				i++;
+			}
+			if (i == end) throw notANumber(text);
+			int exponent = 0;
+			for (; i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+				exponent = Math.min(exponent * 10 + (text.charAt(i) - '0'), 100000);
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (i != end) throw notANumber(text);
+
+		float value;
+		if (digits == 0) {
+			value = 0;
+		} else if (exact) {
+			value = read(digits, scale);
+		} else {
+			value = Float.parseFloat(text.substring(start, end));
+		}
+		return negative ? -value : value;
+	}
+
+	private static NumberFormatException notANumber(String text) {
+		return new NumberFormatException("Cannot convert \"" + text + "\" to a double.");
+	}
+
+	/**
+	 * The float nearest <code>digits * 10^scale</code>.
+	 */
+	private static float read(long digits, int scale) {
+		if (digits < MAX_EXACT && scale >= -22 && scale <= 22) {
+			double exact = scale >= 0 ? digits * POWERS_OF_TEN[scale] : digits / POWERS_OF_TEN[-scale];
+			float value = (float) exact;
+			if (value == exact) return value;
+			float other = Math.nextAfter(value, exact);
+			double halfway = Float.isInfinite(value)
+					? Float.MAX_VALUE + (double) Math.ulp(Float.MAX_VALUE) / 2
+					: ((double) value + other) / 2;
+			if (exact != halfway) return value;
+		}
+		return Float.parseFloat(digits + "E" + scale);
+	}
+}
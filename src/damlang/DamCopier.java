@@ -0,0 +1,255 @@
+package damlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamCopier</code> makes deep copies of checked statements, with
+ * the types, slots and lines the <code>DamTypeChecker</code> filled in, so
+ * a later pass can annotate each copy on its own.  Tokens are shared.
+ */
+public class DamCopier implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	private int nodes = 0;
+
+	public Stmt copy(Stmt stmt) {
+		Stmt copy = stmt.accept(this);
+		copy.line = stmt.line;
+		nodes++;
+		return copy;
+	}
+
+	public Expr copy(Expr expr) {
+		Expr copy = expr.accept(this);
+		copy.type = expr.type;
+		nodes++;
+		return copy;
+	}
+
+	/**
+	 * @return how many statements and expressions have been copied
+	 */
+	public int nodes() {
+		return nodes;
+	}
+
+	private List<Stmt> copyStatements(List<Stmt> statements) {
+		List<Stmt> copies = new ArrayList<>(statements.size());
+		for (Stmt s : statements) {
+			copies.add(copy(s));
+		}
+		return copies;
+	}
+
+	@Override
+	public Stmt visitBlockStmt(Block stmt) {
+		return new Block(copyStatements(stmt.statements));
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Expression stmt) {
+		return new Expression(copy(stmt.expression));
+	}
+
+	@Override
+	public Stmt visitIfStmt(If stmt) {
+		return new If(copy(stmt.condition), copy(stmt.thenBranch),
+				stmt.elseBranch == null ? null : copy(stmt.elseBranch));
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Print stmt) {
+		return new Print(copy(stmt.expression));
+	}
+
+	@Override
+	public Stmt visitReadStmt(Read stmt) {
+		Read copy = new Read(stmt.name);
+		copy.slot = stmt.slot;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitLetStmt(Let stmt) {
+		Let copy = new Let(stmt.name, copy(stmt.initializer));
+		copy.slot = stmt.slot;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(While stmt) {
+		return new While(copy(stmt.condition), copy(stmt.body));
+	}
+
+	@Override
+	public Stmt visitForStmt(For stmt) {
+		For copy = new For(stmt.name, copy(stmt.start), copy(stmt.end), copy(stmt.body));
+		copy.slot = stmt.slot;
+		copy.counter = stmt.counter;
+		copy.limit = stmt.limit;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitImportStmt(Import stmt) {
+		Import copy = new Import(stmt.name);
+		copy.module = stmt.module;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitParallelStmt(Parallel stmt) {
+		Parallel copy = new Parallel((For) copy(stmt.loop), stmt.reduction, stmt.result);
+		copy.captures = stmt.captures;
+		copy.slot = stmt.slot;
+		copy.from = stmt.from;
+		copy.to = stmt.to;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitSpawnStmt(Spawn stmt) {
+		Spawn copy = new Spawn(stmt.keyword, copy(stmt.body));
+		copy.captures = stmt.captures;
+		return copy;
+	}
+
+	@Override
+	public Stmt visitSendStmt(Send stmt) {
+		return new Send(stmt.keyword, copy(stmt.value), copy(stmt.channel));
+	}
+
+	@Override
+	public Stmt visitMatchStmt(Match stmt) {
+		Match copy = new Match(stmt.keyword, copy(stmt.subject), stmt.values, copyStatements(stmt.arms),
+				stmt.otherwise == null ? null : copy(stmt.otherwise));
+		copy.slot = stmt.slot;
+		return copy;
+	}
+
+	@Override
+	public Expr visitBinaryExpr(Binary expr) {
+		Binary copy = new Binary(copy(expr.left), expr.operator, copy(expr.right));
+		copy.negated = expr.negated;
+		return copy;
+	}
+
+	@Override
+	public Expr visitGroupingExpr(Grouping expr) {
+		return new Grouping(copy(expr.expression));
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Literal expr) {
+		return new Literal(expr.value);
+	}
+
+	@Override
+	public Expr visitLogicalExpr(Logical expr) {
+		return new Logical(copy(expr.left), expr.operator, copy(expr.right));
+	}
+
+	@Override
+	public Expr visitVariableExpr(Variable expr) {
+		Variable copy = new Variable(expr.name);
+		copy.slot = expr.slot;
+		copy.module = expr.module;
+		return copy;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Unary expr) {
+		return new Unary(expr.operator, copy(expr.right));
+	}
+
+	@Override
+	public Expr visitAssignExpr(Assign expr) {
+		Assign copy = new Assign(expr.name, copy(expr.right));
+		copy.slot = expr.slot;
+		return copy;
+	}
+
+	@Override
+	public Expr visitArrayLiteralExpr(ArrayLiteral expr) {
+		List<Expr> elements = new ArrayList<>(expr.elements.size());
+		for (Expr element : expr.elements) {
+			elements.add(copy(element));
+		}
+		return new ArrayLiteral(expr.bracket, elements);
+	}
+
+	@Override
+	public Expr visitIndexExpr(Index expr) {
+		return new Index(copy(expr.array), expr.bracket, copy(expr.index));
+	}
+
+	@Override
+	public Expr visitSetIndexExpr(SetIndex expr) {
+		return new SetIndex(copy(expr.array), expr.bracket, copy(expr.index), copy(expr.value));
+	}
+
+	@Override
+	public Expr visitLengthExpr(Length expr) {
+		return new Length(copy(expr.array), expr.name);
+	}
+
+	@Override
+	public Expr visitChannelExpr(Channel expr) {
+		return new Channel(expr.keyword, expr.elementType, copy(expr.capacity));
+	}
+
+	@Override
+	public Expr visitReceiveExpr(Receive expr) {
+		return new Receive(expr.keyword, copy(expr.channel));
+	}
+
+	@Override
+	public Expr visitCastExpr(Cast expr) {
+		return new Cast(expr.name, copy(expr.value));
+	}
+
+	@Override
+	public Expr visitMapLiteralExpr(MapLiteral expr) {
+		List<Expr> keys = new ArrayList<>(expr.keys.size());
+		List<Expr> values = new ArrayList<>(expr.values.size());
+		for (int i = 0; i < expr.keys.size(); i++) {
+			keys.add(copy(expr.keys.get(i)));
+			values.add(copy(expr.values.get(i)));
+		}
+		return new MapLiteral(expr.brace, expr.keyType, expr.valueType, keys, values);
+	}
+
+	@Override
+	public Expr visitContainsExpr(Contains expr) {
+		return new Contains(copy(expr.map), expr.name, copy(expr.key));
+	}
+}
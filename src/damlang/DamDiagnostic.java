@@ -0,0 +1,7 @@
+package damlang;
+
+/**
+ * An error found in a Dam source file on a line, kept by the language
+ * server instead of ending the compile.
+ */
+public record DamDiagnostic(int line, String message) {}
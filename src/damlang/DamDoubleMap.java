@@ -0,0 +1,171 @@
+package damlang;
+
+import java.util.Arrays;
+
+/**
+ * A <code>DamDoubleMap</code> is a Dam map with double keys.  Keys are
+ * kept as the int bits of their float in one open addressing table, probed
+ * linearly from a Fibonacci hash, so neither keys nor double values are
+ * ever boxed.  <code>-0.0</code> is the same key as <code>0.0</code>, and
+ * every NaN is one key.
+ *
+ * The compiler knows each map's value type: doubles and bools are kept in
+ * a <code>float[]</code>, a bool as 1 or 0, and strings in a
+ * <code>String[]</code>.
+ */
+public final class DamDoubleMap {
+	public static final int DOUBLE_VALUES = 0;
+	public static final int STR_VALUES = 1;
+	public static final int BOOL_VALUES = 2;
+
+	// A NaN that floatToIntBits never returns marks an empty slot.
+	private static final int EMPTY = 0x7fc00001;
+
+	private final int kind;
+	private int[] keys;
+	private float[] numbers;
+	private String[] strings;
+	private int size = 0;
+	private int shift;
+
+	/**
+	 * @param kind what the values are, one of <code>DOUBLE_VALUES</code>,
+	 * <code>STR_VALUES</code> or <code>BOOL_VALUES</code>
+	 * @param expected how many keys the map is made with
+	 */
+	public DamDoubleMap(int kind, int expected) {
+		this.kind = kind;
+		allocate(Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) * 2);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		if (kind == STR_VALUES) {
+			strings = new String[capacity];
+		} else {
+			numbers = new float[capacity];
+		}
+		shift = 32 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	private static int bits(float key) {
+		return Float.floatToIntBits(key + 0f);
+	}
+
+	/**
+	 * The slot holding the key, or the empty slot it would go in.
+	 */
+	private int find(int bits) {
+		int mask = keys.length - 1;
+		int i = (bits * 0x9E3779B9) >>> shift;
+		while (keys[i] != bits && keys[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * The slot holding the key.
+	 * @throws IllegalArgumentException if the map has no such key
+	 */
+	private int slotOf(float key) {
+		int i = find(bits(key));
+		if (keys[i] == EMPTY) {
+			throw new IllegalArgumentException("The map has no key " + key + ".");
+		}
+		return i;
+	}
+
+	/**
+	 * The slot for the key, which is added if it is new.  Adding it may
+	 * grow the table, so the value array is only read afterwards.
+	 */
+	private int slotFor(float key) {
+		int bits = bits(key);
+		int i = find(bits);
+		if (keys[i] == EMPTY) {
+			// Kept at most half full, so probes stay short.
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				i = find(bits);
+			}
+			keys[i] = bits;
+			size++;
+		}
+		return i;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		float[] oldNumbers = numbers;
+		String[] oldStrings = strings;
+		allocate(oldKeys.length * 2);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == EMPTY) continue;
+			int i = find(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			if (oldStrings != null) {
+				strings[i] = oldStrings[j];
+			} else {
+				numbers[i] = oldNumbers[j];
+			}
+		}
+	}
+
+	public boolean contains(float key) {
+		return keys[find(bits(key))] != EMPTY;
+	}
+
+	public float getDouble(float key) {
+		return numbers[slotOf(key)];
+	}
+
+	public String getStr(float key) {
+		return strings[slotOf(key)];
+	}
+
+	public boolean getBool(float key) {
+		return numbers[slotOf(key)] != 0;
+	}
+
+	public void putDouble(float key, float value) {
+		int i = slotFor(key);
+		numbers[i] = value;
+	}
+
+	public void putStr(float key, String value) {
+		int i = slotFor(key);
+		strings[i] = value;
+	}
+
+	public void putBool(float key, boolean value) {
+		int i = slotFor(key);
+		numbers[i] = value ? 1 : 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The entries as <code>{key: value, ...}</code>, in no particular order.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == EMPTY) continue;
+			if (text.length() > 1) text.append(", ");
+			text.append(Float.intBitsToFloat(keys[i])).append(": ");
+			if (kind == STR_VALUES) {
+				text.append(strings[i]);
+			} else if (kind == BOOL_VALUES) {
+				text.append(numbers[i] != 0);
+			} else {
+				text.append(numbers[i]);
+			}
+		}
+		return text.append('}').toString();
+	}
+}
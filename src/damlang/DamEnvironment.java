@@ -1,42 +1,91 @@
 package damlang;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class DamEnvironment {
 
-    private Map<String, String> envMap = new HashMap<>();
-    private Map<String, Integer> indexMap = new HashMap<>();
+    /**
+     * A variable's local: its index and the type stored there for the
+     * whole method.  Compiler temporaries have no name.
+     */
+    public static class Slot {
+        public final String name;
+        public final int index;
+        public final DamType type;
+
+        Slot(String name, int index, DamType type) {
+            this.name = name;
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    private Map<String, Slot> slots = new LinkedHashMap<>();
+    private List<Slot> locals = new ArrayList<>();
+    private Set<String> declared = new HashSet<>();
     private int indexCount = 0;
 
-    public void define(String name, String type){
-        envMap.put(name, type);
-        indexMap.put(name, indexCount++);
+    /**
+     * Gives a variable a slot holding the given type.  The variable cannot
+     * be used until it is also declared.
+     */
+    public Slot define(String name, DamType type){
+        Slot slot = new Slot(name, indexCount++, type);
+        slots.put(name, slot);
+        locals.add(slot);
+        return slot;
     }
 
-    public void assign(Token name, String type){
-        if (envMap.containsKey(name.lexeme)){
-            envMap.put(name.lexeme, type);
-        } else{
-            DamCompiler.error("Undefined variable " + name.lexeme);
-        }
+    /**
+     * Marks a defined variable as usable from here on in program order.
+     */
+    public void declare(String name){
+        declared.add(name);
     }
 
-    public String get(Token name){
-        if (envMap.containsKey(name.lexeme)){
-            return envMap.get(name.lexeme);
-        } else{
-            DamCompiler.error("Undefined variable " + name.lexeme);
-            return null;
-        }
+    /**
+     * Makes a variable unusable again, as at the end of the parallel loop
+     * or spawn block it belongs to.  Declaring it again keeps its slot.
+     */
+    public void undeclare(String name){
+        declared.remove(name);
+    }
+
+    public boolean isDeclared(String name){
+        return declared.contains(name);
+    }
+
+    public Slot get(String name){
+        return slots.get(name);
+    }
+
+    /**
+     * Every named variable, in slot order.
+     */
+    public Collection<Slot> variables(){
+        return slots.values();
     }
 
-    public int getIndex(String name){
-        return indexMap.get(name);
+    /**
+     * Every local, named or not, in slot order.
+     */
+    public List<Slot> locals(){
+        return locals;
     }
 
-    public int getIndex(Token name){
-        return getIndex(name.lexeme);
+    /**
+     * Reserves an unnamed local for compiler temporaries.
+     */
+    public Slot newSlot(DamType type){
+        Slot slot = new Slot(null, indexCount++, type);
+        locals.add(slot);
+        return slot;
     }
 
     public int numVars(){
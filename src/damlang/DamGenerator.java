@@ -2,88 +2,276 @@ package damlang;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import damlang.Expr.ArrayLiteral;
 import damlang.Expr.Assign;
 import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
 import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
 import damlang.Expr.Literal;
 import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
 import damlang.Expr.Unary;
 import damlang.Expr.Variable;
 import damlang.Stmt.Block;
 import damlang.Stmt.Expression;
+import damlang.Stmt.For;
 import damlang.Stmt.If;
+import damlang.Stmt.Import;
 import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
 import damlang.Stmt.Print;
 import damlang.Stmt.While;
 import damlang.Stmt.Read;
-
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+
+import static damlang.DamCode.*;
+
+/**
+ * The <code>DamGenerator</code> turns a type-checked program into a class
+ * file.  Types and variable slots are read off the nodes, where the
+ * <code>DamTypeChecker</code> left them.  The code for <code>main</code> is
+ * collected in a <code>DamCode</code> and handed to a
+ * <code>DamClassWriter</code>; with <code>--jasmin</code> it is turned into
+ * Jasmin assembly instead and assembled by Jasmin, as the compiler used to.
+ *
+ * With <code>--stream</code> the code is handed over (or written to a spill
+ * file) after every top-level statement, and the statement's tree is
+ * dropped, so the generator holds one statement's code at a time however
+ * long the program is.  Nothing jumps between top-level statements and the
+ * stack is empty between them, so each piece's stack depth can be worked
+ * out on its own and the method header is written last, around the code.
+ *
+ * A module imported by other files always goes through the class writer.
+ * Its code runs in the static initializer, so the JVM runs it once, the
+ * first time an importer touches the class, and it ends by copying each
+ * exported variable into its static field.
+ *
+ * The body of a <code>parallel for</code> becomes a static method of its
+ * own that runs a range of iterations, with the same locals as main so the
+ * body's code is generated just as it would be inline.  The variables it
+ * reads from outside are handed over in static fields, set before the loop
+ * starts, and <code>DamParallel</code> calls the method on the common
+ * ForkJoinPool.
+ *
+ * A <code>spawn</code> block's body becomes a static method too, whose
+ * arguments are the variables it reads from outside.  Their values are
+ * copied when the task is spawned, and <code>DamTasks</code> runs the
+ * method on a virtual thread.  Channels are <code>DamChannel</code>s.
+ */
 public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String> {
-	private DamEnvironment env = new DamEnvironment();
+	private DamEnvironment env;
 	private List<Stmt> statements;
-	private List<String> ins = new ArrayList<>();
+	private DamModule module;
+	private DamCode code = new DamCode();
 	
-	private Map<Expr, String> t = new HashMap<>();
-	private Map<String, String> javat = new HashMap<>();
-	private Map<Object, String> conditionLabels = new HashMap<>();
-	private int labelCounter = 0;
+	private Map<Object, Integer> conditionLabels = new HashMap<>();
+	private List<String[]> dynamicSites = new ArrayList<>();
+	private String className;
 	
 	
+	private DamClassWriter classWriter;
 	private PrintWriter writer;
+	private PrintWriter spill;
+	private Path spillPath;
+	private int maxStack = 0;
+	private int parallelLoops = 0;
+	private int spawns = 0;
+	private boolean channels = false;
+	private boolean conversions = false;
+	private boolean maps = false;
 	
 	private String jasminFilePath;
 
-	public DamGenerator(List<Stmt> statements) {
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String[] RUNTIME_CLASSES = {"DamRuntime", "DamRuntime$InlineCache",
+			"DamParallel", "DamParallel$Chunk", "DamTasks", "DamChannel", "DamConvert", "DamDoubleMap", "DamStrMap"};
+
+	/**
+	 * @param module the interface of the file when it is compiled as a
+	 * module, or null for a program
+	 */
+	public DamGenerator(List<Stmt> statements, DamEnvironment env, DamModule module) {
 		this.statements = statements;
-		
-		javat.put("double", "F");
-		javat.put("str", "Ljava/lang/String;");
-		javat.put("bool", "Z");
-		
-		env.define("args", "str"); // Note, we don't have arrays yet, so we'll just pretend it's a single string.
+		this.env = env;
+		this.module = module;
 	}
 
 	/**
-	 * Creates textual bytecode file and then uses Jasmin to
-	 * generate the actual Java classfile.  It also removes the
-	 * Jasmin file before exiting.
+	 * Generates the class file, or with <code>--jasmin</code> the textual
+	 * bytecode file, which Jasmin then assembles into the class file.
 	 * @param absoluteStem
 	 */
 	public void generate(String absoluteStem) {
-		// Visit the statements (and expressions) to generate the instructions in 'ins'.
-		for (Stmt s : statements) {
-			s.accept(this);
+		className = absoluteStem;
+		int slash = absoluteStem.lastIndexOf(File.separator);
+		if (slash >= 0) {
+			className = absoluteStem.substring(slash + 1);
 		}
 
-		// Write the file, including 'ins'.
-		writeClassfile(absoluteStem);
+		long start = System.nanoTime();
+		if (!DamCompiler.jasmin || module != null) {
+			classWriter = new DamClassWriter(className, className + ".dam", env, module);
+		} else if (DamCompiler.stream) {
+			openSpill();
+		}
+		initializeVariables(module != null);
+		flush();
+
+		// Visit the statements (and expressions) to generate the instructions in 'code'.
+		for (int i = 0; i < statements.size(); i++) {
+			statements.get(i).accept(this);
+			if (DamCompiler.stream) {
+				statements.set(i, null);
+				flush();
+			}
+		}
+		if (spawns > 0) {
+			// The program ends when its tasks have.
+			code.addRef(INVOKESTATIC, "damlang/DamTasks/joinAll()V");
+		}
+		if (module != null) {
+			exportVariables();
+		}
+		start = DamCompiler.phase("generate", start);
+
+		// Write the file, including 'code'.
+		if (classWriter != null) {
+			flush();
+			writeClass(absoluteStem);
+		} else {
+			writeClassfile(absoluteStem);
+		}
+		DamCompiler.phase("assemble", start);
+	}
+
+	private void openSpill() {
+		try {
+			spillPath = Files.createTempFile("dam", ".j");
+			spill = new PrintWriter(Files.newBufferedWriter(spillPath));
+		} catch (IOException ioe) {
+			DamCompiler.error("Cannot create a spill file. " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Hands the code generated so far to the class writer, or when
+	 * streaming Jasmin writes it to the spill file, and forgets it.  Only
+	 * called between top-level statements.
+	 */
+	private void flush() {
+		if (classWriter != null) {
+			classWriter.append(code);
+		} else if (spill != null) {
+			maxStack = Math.max(maxStack, code.maxStack());
+			code.writeJasmin(spill);
+		} else {
+			return;
+		}
+		code.clear();
 	}
 	
+	/**
+	 * Gives every variable a default value on entry, so a slot is always
+	 * assigned on every path that reaches a use of it.  Strings start out
+	 * empty, as with <code>let s;</code>.  This also keeps each local at one
+	 * type everywhere, which the StackMapTable frames rely on.
+	 * @param noArgs true in a method without main's arguments in local 0
+	 */
+	private void initializeVariables(boolean noArgs) {
+		for (DamEnvironment.Slot slot : env.locals()) {
+			if ("args".equals(slot.name)) {
+				if (noArgs) {
+					code.add(ACONST_NULL);
+					code.add(ASTORE, slot.index);
+				}
+				continue;
+			}
+
+			if (slot.type == DamType.DOUBLE) {
+				code.add(FCONST_0);
+			} else if (slot.type == DamType.BOOL || slot.type == DamType.INT) {
+				code.add(ICONST_0);
+			} else if (slot.type == DamType.STR) {
+				code.addRef(LDC, "");
+			} else {
+				code.add(ACONST_NULL);
+			}
+			code.add(slot.type.storeOpcode(), slot.index);
+		}
+	}
+
+	/**
+	 * Writes the class built by the class writer next to the .dam file.
+	 */
+	private void writeClass(String absoluteStem) {
+		byte[] bytes = classWriter.toByteArray();
+		if (!DamCompiler.assemble) return;
+
+		Path targetClass = Paths.get(absoluteStem + ".class");
+		try {
+			Files.write(targetClass, bytes);
+		} catch (IOException ioe) {
+			DamCompiler.error("Error writing the class file. " + ioe.getMessage());
+		}
+		System.out.println("Generated: " + className + ".class");
+
+		if (needsRuntime()) {
+			shipRuntime(targetClass.getParent());
+		}
+	}
+
+	/**
+	 * Copies a module's exported variables into their fields.
+	 */
+	private void exportVariables() {
+		for (String name : module.exports.keySet()) {
+			DamEnvironment.Slot slot = env.get(name);
+			code.add(slot.type.loadOpcode(), slot.index);
+			code.addRef(PUTSTATIC, module.field(name));
+		}
+	}
+
 	private void writeClassfile(String absoluteStem) {		
 		jasminFilePath = absoluteStem + ".j";
 		
-		String javaClassName = absoluteStem;
-		int slash = absoluteStem.lastIndexOf(File.separator);
-		if (slash >= 0) {
-			javaClassName = absoluteStem.substring(slash + 1);
-		}
+		String javaClassName = className;
 		
 		try {
 			writer = new PrintWriter(jasminFilePath);
 			writeHeader(javaClassName);
+			writeDynamicSites();
 			writeCtor();
 			writeMainStart();
-			for (String inst : ins) {
-				writer.println("\t" + inst);
+			if (spill != null) {
+				spill.close();
+				writer.flush();
+				try (Reader in = Files.newBufferedReader(spillPath)) {
+					in.transferTo(writer);
+				}
+				Files.delete(spillPath);
+			} else {
+				code.writeJasmin(writer);
 			}
 			writeMainEnd();
 		} catch (IOException ioe) {
@@ -91,6 +279,7 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 		} finally {
 			writer.close();
 		}
+		if (!DamCompiler.assemble) return;
 		
 		// Run jasmin on our .j file to create the .class file.
 		jasmin.Main jasminMain = new jasmin.Main();
@@ -105,10 +294,85 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 		} catch (Exception e) {
             DamCompiler.error("Fatal error: " + e.getMessage());
         } 
+
+		if (needsRuntime()) {
+			shipRuntime(targetClass.getParent());
+		}
+	}
+
+	/**
+	 * Declares a static final field for each dynamic call site and links
+	 * them all in the static initializer.
+	 */
+	private void writeDynamicSites() {
+		if (dynamicSites.isEmpty()) return;
+
+		for (int i = 0; i < dynamicSites.size(); i++) {
+			writer.println(".field private static final dyn" + i + " Ljava/lang/invoke/MethodHandle;");
+		}
+
+		writer.println(".method static <clinit>()V\n"
+				+ "    .limit stack 3");
+		for (int i = 0; i < dynamicSites.size(); i++) {
+			writer.println("    invokestatic java/lang/invoke/MethodHandles/lookup()Ljava/lang/invoke/MethodHandles$Lookup;\n"
+					+ "    ldc \"" + dynamicSites.get(i)[0] + "\"\n"
+					+ "    ldc \"" + dynamicSites.get(i)[1] + "\"\n"
+					+ "    invokestatic damlang/DamRuntime/invoker(Ljava/lang/invoke/MethodHandles$Lookup;"
+					+ "Ljava/lang/String;Ljava/lang/String;)Ljava/lang/invoke/MethodHandle;\n"
+					+ "    putstatic " + className + "/dyn" + i + " Ljava/lang/invoke/MethodHandle;");
+		}
+		writer.println("    return\n"
+				+ ".end method");
+	}
+
+	private boolean needsRuntime() {
+		return !dynamicSites.isEmpty() || parallelLoops > 0 || spawns > 0 || channels || conversions || maps;
+	}
+
+	/**
+	 * Copies the runtime support classes next to the generated class.
+	 */
+	private void shipRuntime(Path targetDir) {
+		Path runtimeDir = (targetDir == null ? Paths.get(".") : targetDir).resolve("damlang");
+		try {
+			Files.createDirectories(runtimeDir);
+			for (String name : RUNTIME_CLASSES) {
+				try (InputStream in = DamGenerator.class.getResourceAsStream(name + ".class")) {
+					Files.copy(in, runtimeDir.resolve(name + ".class"), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch (Exception e) {
+			DamCompiler.error("Cannot copy the Dam runtime: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a dynamic operation.  Jasmin has no
+	 * <code>invokedynamic</code>, so there the call site's invoker is
+	 * pushed first, to sit below the arguments.  Returns the site for
+	 * {@link #callDynamicSite(int)} once the arguments are pushed.
+	 */
+	private int dynamicSite(String op, String descriptor) {
+		int site = dynamicSites.size();
+		if (classWriter == null) {
+			code.addRef(GETSTATIC, className + "/dyn" + site + " Ljava/lang/invoke/MethodHandle;");
+		}
+		dynamicSites.add(new String[]{op, descriptor});
+		return site;
+	}
+
+	private void callDynamicSite(int site) {
+		String[] dynamicSite = dynamicSites.get(site);
+		if (classWriter != null) {
+			code.addRef(INVOKEDYNAMIC, dynamicSite[0] + " " + dynamicSite[1]);
+		} else {
+			code.addRef(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle/invokeExact" + dynamicSite[1]);
+		}
 	}
 	
 	private void writeHeader(String javaClassName) {
-		writer.println(".class public " + javaClassName + "\n"
+		writer.println(".source " + className + ".dam\n"
+				+ ".class public " + javaClassName + "\n"
 				+ ".super java/lang/Object");
 	}
 	
@@ -122,7 +386,7 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 	
 	private void writeMainStart() {
 		writer.println(".method public static main([Ljava/lang/String;)V\n"
-				+ "    .limit stack " + (ins.size()/2) + "\n"
+				+ "    .limit stack " + (spill != null ? maxStack : code.maxStack()) + "\n"
 				+ "    .limit locals " + (env.numVars()+1)); 
 	}
 
@@ -142,195 +406,566 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 
 	@Override
 	public String visitExpressionStmt(Expression stmt) {
-		stmt.expression.accept(this);
+		code.line(stmt.line);
+		// An assignment on its own has no use for its value.
+		if (stmt.expression instanceof Assign) {
+			assign((Assign) stmt.expression, false);
+		} else if (stmt.expression instanceof SetIndex) {
+			setIndex((SetIndex) stmt.expression, false);
+		} else {
+			stmt.expression.accept(this);
+		}
 
 		return null;
 	}
 
 	@Override
 	public String visitIfStmt(If stmt) {
-		String thenLabel = "THEN" + labelCounter;
-		String elseLabel = "ELSE" + labelCounter;
-		String endLabel = "END" + labelCounter++;
+		code.line(stmt.line);
+		int elseLabel = code.newLabel();
+		int endLabel = code.newLabel();
 
-		if (stmt.elseBranch == null) {
-			conditionLabels.put(stmt.condition, endLabel);
-		} else {
-			conditionLabels.put(stmt.condition, elseLabel);
-		}
-		stmt.condition.accept(this);
-		String conditionType = t.get(stmt.condition);
-		if (conditionType.equals("bool")){
-			// If the condition is true, branch to the thenLabel
-			ins.add("ifne " + thenLabel);
-			if (stmt.elseBranch != null){
-				ins.add("goto " + elseLabel); // Branch to the elseLabel is false
-			} else {
-				ins.add("goto " + endLabel);  // Goto to the endLabel if there's no elsebranch
-			}
-		} else if(conditionType.equals("double")){
-			ins.add("fconst_0");
-			ins.add("fcmpl");
-			// If not zero, jump to the thenLabel
-			ins.add("ifne " + thenLabel);
-			if (stmt.elseBranch != null){
-				ins.add("goto " + elseLabel); // If zero, jump to the elseLabel
-			} else{
-				// Goto to the endLabel if there's no else branch
-				ins.add("goto " + endLabel);
-			}
-		} else if (conditionType.equals("str")){
-			ins.add("ldc \"\"");
-			ins.add("invokevirtual java/lang/String/compareTo(Ljava/lang/String;)I");
-			// If not empty, goto the endLabel
-			ins.add("ifne " + thenLabel);
-			if (stmt.elseBranch != null){
-				// If not, branch to the else label
-				ins.add("goto " + elseLabel);
-			} else{
-				// Go to the END if there's no elseLabel
-				ins.add("goto " + endLabel);
-			}
-		} else {
-			DamCompiler.error("The condition is wrong: " + conditionType);
-			return null;
-		}
+		// Jump past the then branch when the condition is falsy.
+		jumpIfFalse(stmt.condition, stmt.elseBranch == null ? endLabel : elseLabel);
 
-		ins.add(thenLabel + ":");
 		stmt.thenBranch.accept(this);
 
 		if (stmt.elseBranch != null) {
-			ins.add("goto " + endLabel);
-			ins.add(elseLabel + ":");
+			code.add(GOTO, endLabel);
+			code.label(elseLabel);
 			stmt.elseBranch.accept(this);
 		}
 
-		ins.add(endLabel + ":");
+		code.label(endLabel);
 		return null;
 	}
 
+	/**
+	 * Evaluates a condition and branches to <code>falseLabel</code> when it
+	 * is falsy.  Comparisons jump directly on their operands; anything else
+	 * is evaluated to a value and tested for truthiness.
+	 */
+	private void jumpIfFalse(Expr condition, int falseLabel) {
+		Expr inner = condition;
+		while (inner instanceof Grouping) {
+			inner = ((Grouping) inner).expression;
+		}
+
+		if (DamTypeChecker.isComparison(inner)) {
+			conditionLabels.put(inner, falseLabel);
+			inner.accept(this);
+			return;
+		}
+
+		DamType conditionType = condition.type;
+		if (conditionType == DamType.ANY) {
+			int site = dynamicSite("truthy", "(" + OBJECT + ")Z");
+			condition.accept(this);
+			callDynamicSite(site);
+			code.add(IFEQ, falseLabel);
+			return;
+		}
+
+		condition.accept(this);
+		if (conditionType == DamType.BOOL) {
+			code.add(IFEQ, falseLabel);
+		} else if (conditionType == DamType.DOUBLE) {
+			// Zero is falsy.
+			code.add(FCONST_0);
+			code.add(FCMPL);
+			code.add(IFEQ, falseLabel);
+		} else {
+			// The empty string is falsy.
+			code.addRef(LDC, "");
+			code.addRef(INVOKEVIRTUAL, "java/lang/String/compareTo(Ljava/lang/String;)I");
+			code.add(IFEQ, falseLabel);
+		}
+	}
+
 	@Override
 	public String visitPrintStmt(Print stmt) {
-		ins.add("getstatic java/lang/System/out Ljava/io/PrintStream;\n");
+		code.line(stmt.line);
+		DamType exprType = stmt.expression.type;
+		String javaType = exprType.descriptor;
+
+		if (exprType == DamType.ANY) {
+			int site = dynamicSite("print", "(" + OBJECT + ")V");
+			stmt.expression.accept(this);
+			callDynamicSite(site);
+			return null;
+		}
 
+		code.addRef(GETSTATIC, "java/lang/System/out Ljava/io/PrintStream;");
 		stmt.expression.accept(this);
-		
-		String exprType = t.get(stmt.expression);
-		String javaType = javat.get(exprType);
 
-		ins.add("invokevirtual java/io/PrintStream/println("
-				+ javaType + ")V");
+		if (exprType.isArray()) {
+			// Print the elements rather than the array's identity hash.
+			if (exprType == DamType.STR_ARRAY) {
+				code.addRef(INVOKESTATIC, "java/util/Arrays/toString([Ljava/lang/Object;)Ljava/lang/String;");
+			} else {
+				code.addRef(INVOKESTATIC, "java/util/Arrays/toString(" + javaType + ")Ljava/lang/String;");
+			}
+			javaType = DamType.STR.descriptor;
+		} else if (exprType.isMap()) {
+			javaType = OBJECT;
+		}
+
+		code.addRef(INVOKEVIRTUAL, "java/io/PrintStream/println(" + javaType + ")V");
 
 		return null;
 	}
 
 	@Override
 	public String visitReadStmt(Read stmt){
-		// Check if the variable is already defined in the environment.
-		// It should return an DamCompiler error when the variable does not exist.
-		env.get(stmt.name);
-
-		// Assign the type of the variable as "str" because we are reading a string as input
-		env.assign(stmt.name, "str");
-
-		// Save the result of the variable
-		int varIndex = env.getIndex(stmt.name);
-
+		code.line(stmt.line);
 		// Create a Scanner object
-		ins.add("new java/util/Scanner\n");
-		ins.add("dup\n");
+		code.addRef(NEW, "java/util/Scanner");
+		code.add(DUP);
 
 		// Access System.in
-		ins.add("getstatic java/lang/System/in Ljava/io/InputStream;\n");
+		code.addRef(GETSTATIC, "java/lang/System/in Ljava/io/InputStream;");
 
 		// Invoke the constructor of the Scanner class to initialize it with System.in
-		ins.add("invokespecial java/util/Scanner/<init>(Ljava/io/InputStream;)V\n");
+		code.addRef(INVOKESPECIAL, "java/util/Scanner/<init>(Ljava/io/InputStream;)V");
 
 		// Push to the stack the appropriate value
-		ins.add("invokevirtual java/util/Scanner/nextLine()Ljava/lang/String;\n");
+		code.addRef(INVOKEVIRTUAL, "java/util/Scanner/nextLine()Ljava/lang/String;");
+
+		// Store the result of the input in the variable; it is a str from here on.
+		storeVariable(stmt.slot, DamType.STR);
 
-		// Store the result of the input in the variable at the given index.
-		ins.add("astore " + varIndex);
+		return null;
+	}
 
+	/**
+	 * Calls the module's empty <code>main</code>, which makes the JVM run
+	 * its code here unless something already has.
+	 */
+	@Override
+	public String visitImportStmt(Import stmt) {
+		code.line(stmt.line);
+		code.add(ACONST_NULL);
+		code.addRef(INVOKESTATIC, stmt.module.name + "/main([Ljava/lang/String;)V");
 		return null;
 	}
 
 	@Override
 	public String visitLetStmt(Let stmt) {
+		code.line(stmt.line);
 		stmt.initializer.accept(this);
-		String rhsType = t.get(stmt.initializer);
-		env.define(stmt.name.lexeme, rhsType);
-		int varIndex = env.getIndex(stmt.name);
-
-		if (rhsType.equals("double")) {
-			ins.add("fstore " + varIndex);
-		} else if (rhsType.equals("str")) {
-			ins.add("astore " + varIndex);
-		} else if (rhsType.equals("bool")) {
-			ins.add("istore " + varIndex);
-		}
+		storeVariable(stmt.slot, stmt.initializer.type);
 		return null;
 	}
 
 	@Override
 	public String visitWhileStmt(While stmt) {
+		code.line(stmt.line);
 		// Create labels for the start and end of the loop.
-		String startLabel = "START" + labelCounter;
-		String endLabel = "END" + labelCounter++;
+		int startLabel = code.newLabel();
+		int endLabel = code.newLabel();
 
 		// Set up where the loop starts
-		ins.add(startLabel + ":");
-
-		// Store the endLabel for evualion purposes
-		conditionLabels.put(stmt.condition, endLabel);
+		code.label(startLabel);
 
-		// Visit the condition
-		stmt.condition.accept(this);
+		// Leave the loop as soon as the condition is falsy
+		jumpIfFalse(stmt.condition, endLabel);
 
 		// If the condition is true, visit the body of the loop
 		stmt.body.accept(this);
 
 		// After you are done executing the body, branch back to the startLabel
-		ins.add("goto " + startLabel);
+		code.line(stmt.line);
+		code.add(GOTO, startLabel);
 
 		// Update the endlabel as the program keeps looping.
-		ins.add(endLabel + ":");
+		code.label(endLabel);
+
+		return null;
+	}
+
+	@Override
+	public String visitForStmt(For stmt) {
+		code.line(stmt.line);
+		// The bounds are truncated to ints and evaluated once.
+		int counter = stmt.counter;
+		stmt.start.accept(this);
+		code.add(F2I);
+		code.add(ISTORE, counter);
+		stmt.end.accept(this);
+		code.add(F2I);
+		code.add(ISTORE, stmt.limit);
+
+		// The loop variable starts out at the lower bound, so it is
+		// initialized even when the body never runs.
+		code.add(ILOAD, counter);
+		code.add(I2F);
+		storeVariable(stmt.slot, DamType.DOUBLE);
+		countUp(stmt, stmt.line);
 
 		return null;
 	}
 
+	/**
+	 * Runs a for loop's body for each value of its counter, from the value
+	 * it has up to its limit, both included.  The loop counts in an int
+	 * local so the JIT sees a canonical counted loop: an iinc and an
+	 * if_icmp back-edge, behind a test that the range is not empty.
+	 *
+	 * The back-edge compares the counter with one past the limit for
+	 * inequality, so a limit of Integer.MAX_VALUE, which a huge bound
+	 * truncates to, still ends the loop: both wrap around to the same
+	 * value.
+	 */
+	private void countUp(For loop, int line) {
+		int counter = loop.counter;
+		int bodyLabel = code.newLabel();
+		int endLabel = code.newLabel();
+
+		code.add(ILOAD, counter);
+		code.add(ILOAD, loop.limit);
+		code.add(IF_ICMPGT, endLabel);
+		code.iinc(loop.limit, 1);
+
+		// Expose the counter to the body as a Dam double.
+		code.label(bodyLabel);
+		code.add(ILOAD, counter);
+		code.add(I2F);
+		storeVariable(loop.slot, DamType.DOUBLE);
+		loop.body.accept(this);
+		code.line(line);
+		code.iinc(counter, 1);
+		code.add(ILOAD, counter);
+		code.add(ILOAD, loop.limit);
+		code.add(IF_ICMPNE, bodyLabel);
+
+		code.label(endLabel);
+	}
+
+	@Override
+	public String visitParallelStmt(Parallel stmt) {
+		code.line(stmt.line);
+		if (classWriter == null) {
+			DamCompiler.error(stmt.line, "Parallel loops need the class file writer; compile without --jasmin.");
+		} else if (module != null) {
+			DamCompiler.error(stmt.line, "A module cannot run a parallel loop: its code runs while its "
+					+ "class is being initialized, which the loop's threads would wait for.");
+		}
+
+		String name = "parallel" + parallelLoops++;
+		String descriptor = stmt.slot == null ? "(II)V" : "(II)F";
+		for (DamEnvironment.Slot slot : stmt.captures) {
+			classWriter.addField(name + "$" + slot.name, slot.type.descriptor);
+			code.add(slot.type.loadOpcode(), slot.index);
+			code.addRef(PUTSTATIC, className + "/" + name + "$" + slot.name + " " + slot.type.descriptor);
+		}
+		parallelBody(stmt, name, descriptor);
+
+		// The range is the loop's bounds, both included, as one past the
+		// upper one would overflow when it truncates to Integer.MAX_VALUE.
+		code.addRef(LDC, new Handle(className + "/" + name + descriptor));
+		stmt.loop.start.accept(this);
+		code.add(F2I);
+		stmt.loop.end.accept(this);
+		code.add(F2I);
+		if (stmt.slot == null) {
+			code.addRef(INVOKESTATIC, "damlang/DamParallel/forEach(Ljava/lang/invoke/MethodHandle;II)V");
+			return null;
+		}
+
+		// Combine the loop's result with the value the variable had.
+		String reduction = stmt.reduction.lexeme;
+		code.addRef(INVOKESTATIC, "damlang/DamParallel/" + reduction + "(Ljava/lang/invoke/MethodHandle;II)F");
+		code.add(FLOAD, stmt.slot.index);
+		if (reduction.equals("sum")) {
+			code.add(FADD);
+		} else {
+			code.addRef(INVOKESTATIC, "java/lang/Math/" + reduction + "(FF)F");
+		}
+		code.add(FSTORE, stmt.slot.index);
+		return null;
+	}
+
+	/**
+	 * Generates the method that runs a parallel loop's iterations from its
+	 * first argument up to and including its second.  A reduction starts from nothing in
+	 * each piece of the range, and the piece's result is returned.
+	 */
+	private void parallelBody(Parallel stmt, String name, String descriptor) {
+		DamCode outer = code;
+		code = new DamCode();
+
+		// The arguments sit in locals main uses for other things, so they
+		// wait on the stack while the locals are initialized.
+		code.add(ILOAD, 0);
+		code.add(ILOAD, 1);
+		initializeVariables(true);
+		code.add(ISTORE, stmt.to);
+		code.add(ISTORE, stmt.from);
+		for (DamEnvironment.Slot slot : stmt.captures) {
+			code.addRef(GETSTATIC, className + "/" + name + "$" + slot.name + " " + slot.type.descriptor);
+			code.add(slot.type.storeOpcode(), slot.index);
+		}
+		if (stmt.slot != null) {
+			switch (stmt.reduction.lexeme) {
+			case "sum":	code.add(FCONST_0); break;
+			case "min":	code.addRef(LDC, Float.POSITIVE_INFINITY); break;
+			default:	code.addRef(LDC, Float.NEGATIVE_INFINITY);
+			}
+			code.add(FSTORE, stmt.slot.index);
+		}
+
+		code.line(stmt.line);
+		code.add(ILOAD, stmt.from);
+		code.add(ISTORE, stmt.loop.counter);
+		code.add(ILOAD, stmt.to);
+		code.add(ISTORE, stmt.loop.limit);
+		countUp(stmt.loop, stmt.line);
+
+		if (stmt.slot != null) {
+			code.add(FLOAD, stmt.slot.index);
+			code.add(FRETURN);
+		} else {
+			code.add(RETURN);
+		}
+		classWriter.addMethod(name, descriptor, code);
+		code = outer;
+	}
+
+	@Override
+	public String visitSpawnStmt(Spawn stmt) {
+		code.line(stmt.line);
+		if (classWriter == null) {
+			DamCompiler.error(stmt.line, "Spawn blocks need the class file writer; compile without --jasmin.");
+		} else if (module != null) {
+			DamCompiler.error(stmt.line, "A module cannot spawn tasks: its code runs while its "
+					+ "class is being initialized, which the tasks would wait for.");
+		}
+
+		String name = "spawn" + spawns++;
+		StringBuilder descriptor = new StringBuilder("(");
+		for (DamEnvironment.Slot slot : stmt.captures) {
+			descriptor.append(slot.type.descriptor);
+		}
+		descriptor.append(")V");
+		spawnBody(stmt, name, descriptor.toString());
+
+		// The captured values are copied now, so a task spawned in a loop
+		// sees its own iteration's values.
+		code.addRef(LDC, new Handle(className + "/" + name + descriptor));
+		pushInt(stmt.captures.size());
+		code.addRef(ANEWARRAY, "java/lang/Object");
+		for (int i = 0; i < stmt.captures.size(); i++) {
+			DamEnvironment.Slot slot = stmt.captures.get(i);
+			code.add(DUP);
+			pushInt(i);
+			code.add(slot.type.loadOpcode(), slot.index);
+			box(slot.type);
+			code.add(AASTORE);
+		}
+		code.addRef(INVOKESTATIC, "damlang/DamTasks/spawn(Ljava/lang/invoke/MethodHandle;[Ljava/lang/Object;)V");
+		return null;
+	}
+
+	/**
+	 * Generates the method that runs a spawn block, taking its captures as
+	 * arguments.
+	 */
+	private void spawnBody(Spawn stmt, String name, String descriptor) {
+		DamCode outer = code;
+		code = new DamCode();
+
+		// As in a parallel loop's method, the arguments wait on the stack
+		// while the locals are initialized.
+		for (int i = 0; i < stmt.captures.size(); i++) {
+			code.add(stmt.captures.get(i).type.loadOpcode(), i);
+		}
+		initializeVariables(true);
+		for (int i = stmt.captures.size() - 1; i >= 0; i--) {
+			DamEnvironment.Slot slot = stmt.captures.get(i);
+			code.add(slot.type.storeOpcode(), slot.index);
+		}
+
+		stmt.body.accept(this);
+		code.add(RETURN);
+		classWriter.addMethod(name, descriptor, code);
+		code = outer;
+	}
+
+	@Override
+	public String visitSendStmt(Send stmt) {
+		code.line(stmt.line);
+		channels = true;
+		DamType elemType = stmt.channel.type.elementType();
+		stmt.value.accept(this);
+		if (stmt.value.type == DamType.ANY) {
+			// Make sure it is the channel's type before it goes on.
+			unbox(elemType);
+		}
+		box(elemType);
+		stmt.channel.accept(this);
+		code.add(SWAP);
+		code.addRef(INVOKEVIRTUAL, "damlang/DamChannel/send(" + OBJECT + ")V");
+		return null;
+	}
+
+	/**
+	 * Jumps straight to the arm of the matching case.  A double is switched
+	 * on as an int when converting it to one and back gives it again; the
+	 * cases that are not ints are compared one by one before that.  A
+	 * string is switched on by its hash code, then compared with the cases
+	 * that have that hash.
+	 */
+	@Override
+	public String visitMatchStmt(Match stmt) {
+		code.line(stmt.line);
+		int endLabel = code.newLabel();
+		int otherwiseLabel = stmt.otherwise == null ? endLabel : code.newLabel();
+
+		List<Object> values = new ArrayList<>();
+		List<Integer> labels = new ArrayList<>();
+		int[] armLabels = new int[stmt.arms.size()];
+		for (int i = 0; i < armLabels.length; i++) {
+			armLabels[i] = code.newLabel();
+			for (Token constant : stmt.values.get(i)) {
+				values.add(DamTypeChecker.caseValue(constant));
+				labels.add(armLabels[i]);
+			}
+		}
+
+		DamEnvironment.Slot slot = stmt.slot;
+		stmt.subject.accept(this);
+		code.add(slot.type.storeOpcode(), slot.index);
+
+		List<Integer> keys = new ArrayList<>();
+		List<Integer> keyLabels = new ArrayList<>();
+		if (slot.type == DamType.BOOL) {
+			for (int i = 0; i < values.size(); i++) {
+				keys.add((Boolean) values.get(i) ? 1 : 0);
+				keyLabels.add(labels.get(i));
+			}
+			code.add(ILOAD, slot.index);
+			switchOn(keys, keyLabels, otherwiseLabel);
+		} else if (slot.type == DamType.DOUBLE) {
+			for (int i = 0; i < values.size(); i++) {
+				float value = (Float) values.get(i);
+				if ((float) (int) value == value) {
+					keys.add((int) value);
+					keyLabels.add(labels.get(i));
+				} else {
+					code.add(FLOAD, slot.index);
+					code.addRef(LDC, value);
+					code.add(FCMPL);
+					code.add(IFEQ, labels.get(i));
+				}
+			}
+			if (keys.isEmpty()) {
+				code.add(GOTO, otherwiseLabel);
+			} else {
+				// NaN, fractions and values beyond an int do not survive the
+				// round trip.
+				code.add(FLOAD, slot.index);
+				code.add(FLOAD, slot.index);
+				code.add(F2I);
+				code.add(I2F);
+				code.add(FCMPL);
+				code.add(IFNE, otherwiseLabel);
+				code.add(FLOAD, slot.index);
+				code.add(F2I);
+				switchOn(keys, keyLabels, otherwiseLabel);
+			}
+		} else {
+			Map<Integer, List<Integer>> byHash = new LinkedHashMap<>();
+			for (int i = 0; i < values.size(); i++) {
+				byHash.computeIfAbsent(values.get(i).hashCode(), h -> new ArrayList<>()).add(i);
+			}
+			for (int hash : byHash.keySet()) {
+				keys.add(hash);
+				keyLabels.add(code.newLabel());
+			}
+			code.add(ALOAD, slot.index);
+			code.addRef(INVOKESTATIC, "java/util/Objects/hashCode(Ljava/lang/Object;)I");
+			switchOn(keys, keyLabels, otherwiseLabel);
+
+			int k = 0;
+			for (List<Integer> sameHash : byHash.values()) {
+				code.label(keyLabels.get(k++));
+				for (int i : sameHash) {
+					code.addRef(LDC, values.get(i));
+					code.add(ALOAD, slot.index);
+					code.addRef(INVOKEVIRTUAL, "java/lang/String/equals(Ljava/lang/Object;)Z");
+					code.add(IFNE, labels.get(i));
+				}
+				code.add(GOTO, otherwiseLabel);
+			}
+		}
+
+		for (int i = 0; i < armLabels.length; i++) {
+			code.label(armLabels[i]);
+			stmt.arms.get(i).accept(this);
+			if (i < armLabels.length - 1 || stmt.otherwise != null) {
+				code.add(GOTO, endLabel);
+			}
+		}
+		if (stmt.otherwise != null) {
+			code.label(otherwiseLabel);
+			stmt.otherwise.accept(this);
+		}
+		code.label(endLabel);
+		return null;
+	}
+
+	private void switchOn(List<Integer> keys, List<Integer> labels, int otherwise) {
+		code.addSwitch(keys.stream().mapToInt(Integer::intValue).toArray(),
+				labels.stream().mapToInt(Integer::intValue).toArray(), otherwise);
+	}
+
 	@Override
 	public String visitBinaryExpr(Binary expr) {
+		if (expr.reuse) {
+			code.add(expr.temp.type.loadOpcode(), expr.temp.index);
+			return null;
+		}
+		binary(expr);
+		keep(expr.temp);
+		return null;
+	}
+
+	/**
+	 * Keeps a copy of the value on top of the stack in the temporary
+	 * <code>DamValueNumbering</code> gave it, if any.
+	 */
+	private void keep(DamEnvironment.Slot temp) {
+		if (temp != null) {
+			code.add(DUP);
+			code.add(temp.type.storeOpcode(), temp.index);
+		}
+	}
+
+	private void binary(Binary expr) {
+		DamType ltype = expr.left.type;
+		DamType rtype = expr.right.type;
+		if (ltype == DamType.ANY || rtype == DamType.ANY) {
+			dynamicBinary(expr, ltype, rtype);
+			return;
+		}
+
 		expr.left.accept(this);
 		expr.right.accept(this);
-		String ltype = t.get(expr.left);
-		String rtype = t.get(expr.right);
-		if (! ltype.equals(rtype)) {
-			DamCompiler.error("Type mismatch on line " + expr.operator.line
-					+ ".  Cannot apply " + expr.operator.lexeme + " to '"
-					+ ltype + "' and '" + rtype + "'.");
-		}
 		
 		switch (expr.operator.type) {
 		case TokenType.PLUS:
 		case TokenType.MINUS:
 		case TokenType.STAR:
 		case TokenType.SLASH:
-			if (ltype.equals("double")) {
-				if (expr.operator.type == TokenType.PLUS)		ins.add("fadd");
-				else if (expr.operator.type == TokenType.MINUS)	ins.add("fsub");
-				else if (expr.operator.type == TokenType.STAR)	ins.add("fmul");
-				else if (expr.operator.type == TokenType.SLASH)	ins.add("fdiv");
-			} else if (ltype.equals("str")) {
-				if (expr.operator.type == TokenType.PLUS) {
-					ins.add("invokevirtual java/lang/String/concat("
-							+ "Ljava/lang/String;)Ljava/lang/String;");
-				} else {
-					DamCompiler.error("Cannot apply " + expr.operator.lexeme + " to str.");
-				}
+			if (ltype == DamType.DOUBLE) {
+				if (expr.operator.type == TokenType.PLUS)		code.add(FADD);
+				else if (expr.operator.type == TokenType.MINUS)	code.add(FSUB);
+				else if (expr.operator.type == TokenType.STAR)	code.add(FMUL);
+				else if (expr.operator.type == TokenType.SLASH)	code.add(FDIV);
+			} else {
+				code.addRef(INVOKEVIRTUAL, "java/lang/String/concat("
+						+ "Ljava/lang/String;)Ljava/lang/String;");
 			}
-			
-			t.put(expr, ltype);
 			break;
 
 			case TokenType.BANG_EQUAL:
@@ -339,29 +974,93 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 			case TokenType.GREATER_EQUAL:
 			case TokenType.LESS:
 			case TokenType.LESS_EQUAL:
-				t.put(expr, "bool");
+				// Inside an if or while the comparison jumps straight to the
+				// false label; anywhere else it produces a bool value.
+				Integer jumpLabel = conditionLabels.get(expr);
+				int falseLabel = jumpLabel != null ? jumpLabel : code.newLabel();
+				int branch;
+
+				if (ltype == DamType.DOUBLE || ltype == DamType.STR) {
+					if (ltype == DamType.STR) {
+						code.addRef(INVOKEVIRTUAL, "java/lang/String/compareTo(Ljava/lang/String;)I");
+					} else if (expr.operator.type == TokenType.LESS
+							|| expr.operator.type == TokenType.LESS_EQUAL) {
+						code.add(FCMPG); // NaN compares false, as in Java
+					} else {
+						code.add(FCMPL);
+					}
+
+					switch (expr.operator.type) {
+					case BANG_EQUAL:	branch = IFEQ; break;
+					case EQUAL_EQUAL:	branch = IFNE; break;
+					case GREATER:		branch = IFLE; break;
+					case GREATER_EQUAL:	branch = IFLT; break;
+					case LESS:			branch = IFGE; break;
+					default:			branch = IFGT; break;
+					}
+				} else {
+					// bools compare as ints, arrays by reference
+					boolean equal = expr.operator.type == TokenType.EQUAL_EQUAL;
+					if (ltype == DamType.BOOL)	branch = equal ? IF_ICMPNE : IF_ICMPEQ;
+					else						branch = equal ? IF_ACMPNE : IF_ACMPEQ;
+				}
+				// A negated comparison makes the same test and jumps the other
+				// way, so it is still true when an operand is NaN.
+				code.add(expr.negated ? inverted(branch) : branch, falseLabel);
+
+				if (jumpLabel == null) {
+					int endLabel = code.newLabel();
+					code.add(ICONST_1);
+					code.add(GOTO, endLabel);
+					code.label(falseLabel);
+					code.add(ICONST_0);
+					code.label(endLabel);
+				}
+				break;
+			default:
+		}
+	}
 
-				if (ltype.equals("double")){
-					ins.add("fcmpl");
+	/**
+	 * The branch that jumps exactly when <code>branch</code> does not.  The
+	 * conditional branches come in pairs, <code>ifeq</code> and
+	 * <code>ifne</code> first.
+	 */
+	private static int inverted(int branch) {
+		return IFEQ + ((branch - IFEQ) ^ 1);
+	}
 
-					String jumpLabel = conditionLabels.get(expr);
-					if (expr.operator.type == TokenType.BANG_EQUAL)		ins.add("ifeq " + jumpLabel);
-					if (expr.operator.type == TokenType.EQUAL_EQUAL)	ins.add("ifne " + jumpLabel);
-					if (expr.operator.type == TokenType.GREATER)		ins.add("ifle " + jumpLabel);
-					if (expr.operator.type == TokenType.GREATER_EQUAL)	ins.add("iflt " + jumpLabel);
-					if (expr.operator.type == TokenType.LESS)			ins.add("ifge " + jumpLabel);
-					if (expr.operator.type == TokenType.LESS_EQUAL)		ins.add("ifgt " + jumpLabel);
-				} else if (ltype.equals("str")) {
+	/**
+	 * A binary operation where an operand's type is only known at run time.
+	 * Both operands are boxed and the operation goes through a call site.
+	 */
+	private void dynamicBinary(Binary expr, DamType ltype, DamType rtype) {
+		String op;
+		switch (expr.operator.type) {
+		case PLUS:			op = "add"; break;
+		case MINUS:			op = "sub"; break;
+		case STAR:			op = "mul"; break;
+		case SLASH:			op = "div"; break;
+		case EQUAL_EQUAL:	op = "eq"; break;
+		case BANG_EQUAL:	op = "ne"; break;
+		case LESS:			op = "lt"; break;
+		case LESS_EQUAL:	op = "le"; break;
+		case GREATER:		op = "gt"; break;
+		default:			op = "ge"; break;
+		}
 
-				} else if (ltype.equals("bool")) {
+		boolean comparison = DamTypeChecker.isComparison(expr);
+		int site = dynamicSite(op, "(" + OBJECT + OBJECT + ")" + (comparison ? "Z" : OBJECT));
+		expr.left.accept(this);
+		box(ltype);
+		expr.right.accept(this);
+		box(rtype);
+		callDynamicSite(site);
 
-				}
-				break;
-			default:
+		Integer jumpLabel = conditionLabels.get(expr);
+		if (comparison && jumpLabel != null) {
+			code.add(IFEQ, jumpLabel);
 		}
-		
-		
-		return null;
 	}
 
 	@Override
@@ -369,29 +1068,20 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 		// visit the inner expression
 		expr.expression.accept(this);
 
-		// Get the type of the inner expression
-		String innerType = t.get(expr.expression);
-
-		// Store the type of the inner grouping in the type map
-		t.put(expr, innerType);
-
 		return null;
 	}
 
 	@Override
 	public String visitLiteralExpr(Literal expr) {
 		if (expr.value instanceof Double) {
-			t.put(expr, "double");
-			ins.add("ldc " + expr.value);
+			code.addRef(LDC, ((Double) expr.value).floatValue());
 		} else if (expr.value instanceof String) {
-			t.put(expr, "str");
-			ins.add("ldc \"" + expr.value + "\"");
+			code.addRef(LDC, expr.value);
 		} else if (expr.value instanceof Boolean) {
-			t.put(expr, "bool");
 			if (expr.value.equals(false)){
-				ins.add("iconst_0");
+				code.add(ICONST_0);
 			}else {
-				ins.add("iconst_1");
+				code.add(ICONST_1);
 			}
 		}
 		return null;
@@ -400,130 +1090,354 @@ public class DamGenerator implements Expr.Visitor<String>, Stmt.Visitor<String>
 	@Override
 	public String visitLogicalExpr(Logical expr) {
 		// Labels for true, false, and end
-		String trueLabel = "TRUE" + labelCounter;
-		String falseLabel = "FALSE" + labelCounter;
-		String endLabel = "END" + labelCounter++;
+		int trueLabel = code.newLabel();
+		int falseLabel = code.newLabel();
+		int endLabel = code.newLabel();
 
 		// Visit the left part
 		expr.left.accept(this);
-		// Get the types of the left and right to ensure that they match
-		String ltype = t.get(expr.left);
-		if (!ltype.equals("bool")){
-			DamCompiler.error("The value needs to be a bool");
-			return null;
-		}
 
 		// For AND, if it is left part is false, we do not need to keep checking, we can automatically go the falseLabel
 		if (expr.operator.type == TokenType.AND){
-			ins.add("ifeq " + falseLabel);
+			code.add(IFEQ, falseLabel);
 		}
 		// For OR, if it left part is true, we do not need to keep checking, we can automatically go to the trueLabel
 		if (expr.operator.type == TokenType.OR){
-			ins.add("ifne " + trueLabel);
+			code.add(IFNE, trueLabel);
 		}
 
 		// Visit the right part
 		expr.right.accept(this);
-		String rtype = t.get(expr.right);
-		if (!rtype.equals("bool")){
-			DamCompiler.error("The value needs to be a bool");
-			return null;
-		}
 		
 		// If right is true, jump to trueLabel
-		ins.add("ifne " + trueLabel);
+		code.add(IFNE, trueLabel);
 		// Otherwise, go to falseLabel
-		ins.add("goto " + falseLabel);
+		code.add(GOTO, falseLabel);
 
 		// If it is true label, push 1 for true
-		ins.add(trueLabel + ":");
-		ins.add("iconst_1");
-		ins.add("goto " + endLabel);
+		code.label(trueLabel);
+		code.add(ICONST_1);
+		code.add(GOTO, endLabel);
 
 		// If it is false, push 0 for false
-		ins.add(falseLabel + ":");
-		ins.add("iconst_0");
+		code.label(falseLabel);
+		code.add(ICONST_0);
 
 		// End label
-		ins.add(endLabel + ":");
-
-		// Update in the put dictionary the result returned
-		t.put(expr, "bool");
+		code.label(endLabel);
 
 		return null;
 	}
 
 	@Override
 	public String visitVariableExpr(Variable expr) {
-		String type = env.get(expr.name);
-		t.put(expr, type);
-		
-		if (type.equals("double")) {
-			ins.add("fload " + env.getIndex(expr.name));
-		} else if (type.equals("str")) {
-			ins.add("aload " + env.getIndex(expr.name));
-		} else if (type.equals("bool")) {
-			ins.add("iload " + env.getIndex(expr.name));
+		if (expr.module != null) {
+			code.addRef(GETSTATIC, expr.module.field(expr.name.lexeme));
+			return null;
+		}
+		code.add(expr.slot.type.loadOpcode(), expr.slot.index);
+
+		// A boxed variable that can only hold one type here is unboxed.
+		if (expr.slot.type == DamType.ANY && expr.type != DamType.ANY) {
+			unbox(expr.type);
 		}
 		return null;
 	}
 
 	@Override
 	public String visitUnaryExpr(Unary expr) {
+		if (expr.reuse) {
+			code.add(expr.temp.type.loadOpcode(), expr.temp.index);
+			return null;
+		}
 		expr.right.accept(this);
-		String rtype = t.get(expr.right);
 
 		if (expr.operator.type == TokenType.BANG) {
-			if (rtype.equals("bool")){
-				ins.add("iconst_1"); // Push '1' onto the stack (to XOR with)
-				ins.add("ixor"); // XOR the value 1 to negate it
-				t.put(expr, rtype); // Updates the type of the operator
-			} else {
-				DamCompiler.error("Cannot apply '!' to non-boolean type.");
-			}
+			code.add(ICONST_1); // Push '1' onto the stack (to XOR with)
+			code.add(IXOR); // XOR the value 1 to negate it
+		} else if (expr.operator.type == TokenType.MINUS) {
+			code.add(FNEG);
 		}
-
-		else if (expr.operator.type == TokenType.MINUS) {
-			if (rtype.equals("double")) {
-					ins.add("fneg");
-					t.put(expr, rtype); // Updates the type of the operator.
-				} else{
-					DamCompiler.error("Cannot negate a non double type.");
-				}
-			}
+		keep(expr.temp);
 
 		return null;
 	}
 
 	@Override
 	public String visitAssignExpr(Assign expr) {
+		assign(expr, true);
+		return null;
+	}
+
+	/**
+	 * Stores the right side in the variable, leaving a copy on the stack
+	 * when the assignment is used as a value.
+	 */
+	private void assign(Assign expr, boolean value) {
 		// Visit the right side value
 		expr.right.accept(this);
+		if (value) code.add(DUP);
 
-		// Get the type of the right side value
-		String rhsType = t.get(expr.right);
+		// Store the result in the variable's slot.
+		storeVariable(expr.slot, expr.right.type);
+	}
 
-		// Check if the variable is already defined in the environment.
-		// It should return an DamCompiler error when the variable does not exist.
-		env.get(expr.name);
+	/**
+	 * Stores the value on top of the stack into a variable, boxing it
+	 * first if the variable holds more than one type.
+	 */
+	private void storeVariable(DamEnvironment.Slot slot, DamType type) {
+		if (slot.type == DamType.ANY) {
+			box(type);
+		} else if (type == DamType.ANY) {
+			unbox(slot.type);
+		}
+		code.add(slot.type.storeOpcode(), slot.index);
+	}
 
-		// Update the value
-		env.assign(expr.name, rhsType);
+	/**
+	 * Boxes the value on top of the stack, unless it is already a reference.
+	 */
+	private void box(DamType type) {
+		if (type == DamType.DOUBLE) {
+			code.addRef(INVOKESTATIC, "java/lang/Float/valueOf(F)Ljava/lang/Float;");
+		} else if (type == DamType.BOOL) {
+			code.addRef(INVOKESTATIC, "java/lang/Boolean/valueOf(Z)Ljava/lang/Boolean;");
+		}
+	}
 
-		// Find the index of the variable
-		int varIndex = env.getIndex(expr.name);
+	private void unbox(DamType type) {
+		if (type == DamType.DOUBLE) {
+			code.addRef(CHECKCAST, "java/lang/Float");
+			code.addRef(INVOKEVIRTUAL, "java/lang/Float/floatValue()F");
+		} else if (type == DamType.BOOL) {
+			code.addRef(CHECKCAST, "java/lang/Boolean");
+			code.addRef(INVOKEVIRTUAL, "java/lang/Boolean/booleanValue()Z");
+		} else if (type == DamType.STR) {
+			code.addRef(CHECKCAST, "java/lang/String");
+		} else if (type.isChannel()) {
+			code.addRef(CHECKCAST, "damlang/DamChannel");
+		} else if (type.isMap()) {
+			code.addRef(CHECKCAST, mapClass(type));
+		} else {
+			code.addRef(CHECKCAST, type.descriptor);
+		}
+	}
 
-		// Store the result of the input in the variable at the given index.
-		if (rhsType.equals("double")) {
-			ins.add("fstore " + varIndex);
-		} else if (rhsType.equals("str")) {
-			ins.add("astore " + varIndex);
-		} else if (rhsType.equals("bool")) {
-			ins.add("istore " + varIndex);
+	@Override
+	public String visitArrayLiteralExpr(ArrayLiteral expr) {
+		DamType elemType = expr.type.elementType();
+
+		pushInt(expr.elements.size());
+		if (elemType == DamType.DOUBLE) {
+			code.add(NEWARRAY, T_FLOAT);
+		} else if (elemType == DamType.BOOL) {
+			code.add(NEWARRAY, T_BOOLEAN);
+		} else {
+			code.addRef(ANEWARRAY, "java/lang/String");
 		}
 
+		for (int i = 0; i < expr.elements.size(); i++) {
+			code.add(DUP);
+			pushInt(i);
+			expr.elements.get(i).accept(this);
+			code.add(elemType.arrayStoreOpcode());
+		}
 
 		return null;
 	}
 
+	@Override
+	public String visitIndexExpr(Index expr) {
+		if (expr.array.type.isMap()) {
+			expr.array.accept(this);
+			expr.index.accept(this);
+			callMap(expr.array.type, "get", "(" + expr.index.type.descriptor + ")" + expr.type.descriptor);
+			return null;
+		}
+		arrayAndIndex(expr.array, expr.index);
+		code.add(expr.type.arrayLoadOpcode());
+		return null;
+	}
+
+	@Override
+	public String visitSetIndexExpr(SetIndex expr) {
+		setIndex(expr, true);
+		return null;
+	}
+
+	/**
+	 * Stores the value in the array or map, leaving a copy on the stack,
+	 * under the array and index, when the store is used as a value.
+	 */
+	private void setIndex(SetIndex expr, boolean value) {
+		if (expr.array.type.isMap()) {
+			expr.array.accept(this);
+			expr.index.accept(this);
+			expr.value.accept(this);
+			if (value) code.add(DUP_X2);
+			callMap(expr.array.type, "put", "(" + expr.index.type.descriptor + expr.type.descriptor + ")V");
+			return;
+		}
+		arrayAndIndex(expr.array, expr.index);
+		expr.value.accept(this);
+		if (value) code.add(DUP_X2);
+		code.add(expr.type.arrayStoreOpcode());
+	}
+
+	@Override
+	public String visitLengthExpr(Length expr) {
+		expr.array.accept(this);
+		if (expr.array.type.isMap()) {
+			code.addRef(INVOKEVIRTUAL, mapClass(expr.array.type) + "/size()I");
+		} else {
+			code.add(ARRAYLENGTH);
+		}
+		code.add(I2F);
+		return null;
+	}
+
+	/**
+	 * Pushes an array reference and an int index.
+	 */
+	private void arrayAndIndex(Expr array, Expr index) {
+		array.accept(this);
+		index.accept(this);
+		code.add(F2I);
+	}
+
+	private void pushInt(int n) {
+		if (n >= -1 && n <= 5) {
+			code.add(ICONST_0 + n);
+		} else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			code.add(BIPUSH, n);
+		} else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			code.add(SIPUSH, n);
+		} else {
+			code.addRef(LDC, n);
+		}
+	}
+
+	/**
+	 * Makes a map with room for the literal's entries and puts them in
+	 * one by one.
+	 */
+	@Override
+	public String visitMapLiteralExpr(MapLiteral expr) {
+		maps = true;
+		DamType keyType = expr.type.keyType();
+		DamType valueType = expr.type.elementType();
+		String mapClass = mapClass(expr.type);
+
+		code.addRef(NEW, mapClass);
+		code.add(DUP);
+		pushInt(valueType == DamType.DOUBLE ? DamDoubleMap.DOUBLE_VALUES
+				: valueType == DamType.STR ? DamDoubleMap.STR_VALUES : DamDoubleMap.BOOL_VALUES);
+		pushInt(expr.keys.size());
+		code.addRef(INVOKESPECIAL, mapClass + "/<init>(II)V");
+
+		for (int i = 0; i < expr.keys.size(); i++) {
+			code.add(DUP);
+			expr.keys.get(i).accept(this);
+			expr.values.get(i).accept(this);
+			callMap(expr.type, "put", "(" + keyType.descriptor + valueType.descriptor + ")V");
+		}
+		return null;
+	}
+
+	@Override
+	public String visitContainsExpr(Contains expr) {
+		expr.map.accept(this);
+		expr.key.accept(this);
+		code.addRef(INVOKEVIRTUAL, mapClass(expr.map.type) + "/contains(" + expr.key.type.descriptor + ")Z");
+		return null;
+	}
+
+	/**
+	 * The runtime class of a map type.
+	 */
+	private static String mapClass(DamType map) {
+		return map.descriptor.substring(1, map.descriptor.length() - 1);
+	}
+
+	/**
+	 * Calls a map's get or put for its value type, such as
+	 * <code>getDouble</code> or <code>putStr</code>.
+	 */
+	private void callMap(DamType map, String op, String descriptor) {
+		maps = true;
+		String value = map.elementType().damName;
+		code.addRef(INVOKEVIRTUAL, mapClass(map) + "/" + op
+				+ Character.toUpperCase(value.charAt(0)) + value.substring(1) + descriptor);
+	}
+
+	@Override
+	public String visitChannelExpr(Channel expr) {
+		channels = true;
+		expr.capacity.accept(this);
+		code.add(F2I);
+		code.addRef(INVOKESTATIC, "damlang/DamChannel/of(I)Ldamlang/DamChannel;");
+		return null;
+	}
+
+	@Override
+	public String visitReceiveExpr(Receive expr) {
+		channels = true;
+		expr.channel.accept(this);
+		code.addRef(INVOKEVIRTUAL, "damlang/DamChannel/receive()" + OBJECT);
+		unbox(expr.type);
+		return null;
+	}
+
+	/**
+	 * Converts between doubles and strings with <code>DamConvert</code>.
+	 * A value of a type only known at run time is converted by a call site.
+	 */
+	@Override
+	public String visitCastExpr(Cast expr) {
+		DamType from = expr.value.type;
+		DamType to = expr.type;
+		if (from == DamType.ANY) {
+			String op = "to" + Character.toUpperCase(to.damName.charAt(0)) + to.damName.substring(1);
+			int site = dynamicSite(op, "(" + OBJECT + ")" + to.descriptor);
+			expr.value.accept(this);
+			callDynamicSite(site);
+			return null;
+		}
+
+		expr.value.accept(this);
+		if (from == to) return null;
+		if (to == DamType.STR) {
+			if (from == DamType.DOUBLE) {
+				code.addRef(INVOKESTATIC, "damlang/DamConvert/toStr(F)Ljava/lang/String;");
+				conversions = true;
+			} else {
+				code.addRef(INVOKESTATIC, "java/lang/String/valueOf(Z)Ljava/lang/String;");
+			}
+		} else if (to == DamType.DOUBLE) {
+			if (from == DamType.STR) {
+				code.addRef(INVOKESTATIC, "damlang/DamConvert/toDouble(Ljava/lang/String;)F");
+				conversions = true;
+			} else {
+				code.add(I2F);
+			}
+		} else if (from == DamType.STR) {
+			code.addRef(INVOKEVIRTUAL, "java/lang/String/isEmpty()Z");
+			code.add(ICONST_1);
+			code.add(IXOR);
+		} else {
+			// Zero is false, anything else, NaN too, is true.
+			int falseLabel = code.newLabel();
+			int endLabel = code.newLabel();
+			code.add(FCONST_0);
+			code.add(FCMPL);
+			code.add(IFEQ, falseLabel);
+			code.add(ICONST_1);
+			code.add(GOTO, endLabel);
+			code.label(falseLabel);
+			code.add(ICONST_0);
+			code.label(endLabel);
+		}
+		return null;
+	}
 }
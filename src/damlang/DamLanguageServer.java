@@ -0,0 +1,530 @@
+package damlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code>DamLanguageServer</code> reports lexing and syntax errors to an
+ * editor as it is typed in, speaking the Language Server Protocol over
+ * standard input and output (<code>java damlang.DamCompiler --lsp</code>).
+ *
+ * Each open file keeps its lines, its tokens and its top-level statements,
+ * with the token each statement starts at.  An edit is lexed again from the
+ * start of the first line it touches (or of the string that line is in)
+ * until a line that starts outside a string both before and after the edit;
+ * the old tokens from there on are kept, moved by the lines added or
+ * removed.  Parsing then starts again at the top-level statement holding the
+ * token before the edit, and stops at the first statement start after the
+ * new tokens that is also an old statement start.  Since the parser
+ * recovers at the same statement boundaries after an error, a broken
+ * statement costs no more than a correct one.
+ *
+ * Type errors are still only found by compiling.
+ */
+public class DamLanguageServer {
+	private static final int INCREMENTAL = 2;
+	private static final int ERROR = 1;
+
+	private InputStream in;
+	private OutputStream out;
+	private Map<String, Document> documents = new HashMap<>();
+	private boolean shutdown = false;
+
+	public DamLanguageServer(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * Answers messages until the client says to exit.
+	 */
+	public void serve() throws IOException {
+		String body;
+		while ((body = read()) != null) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> message = (Map<String, Object>) new Json(body).value();
+			Object id = message.get("id");
+			String method = (String) message.get("method");
+			@SuppressWarnings("unchecked")
+			Map<String, Object> params = (Map<String, Object>) message.get("params");
+			if (method == null) continue; // a response to us
+
+			switch (method) {
+			case "initialize":
+				respond(id, Map.of("capabilities", Map.of("textDocumentSync",
+						Map.of("openClose", true, "change", INCREMENTAL)),
+						"serverInfo", Map.of("name", "dam")));
+				break;
+			case "shutdown":
+				shutdown = true;
+				respond(id, null);
+				break;
+			case "exit":
+				System.exit(shutdown ? 0 : 1);
+				break;
+			case "textDocument/didOpen": {
+				Map<String, Object> item = object(params, "textDocument");
+				Document document = new Document((String) item.get("text"));
+				documents.put((String) item.get("uri"), document);
+				publish((String) item.get("uri"), document);
+				break;
+			}
+			case "textDocument/didChange": {
+				String uri = (String) object(params, "textDocument").get("uri");
+				Document document = documents.get(uri);
+				if (document == null) break;
+				for (Object change : (List<?>) params.get("contentChanges")) {
+					document.change(object(change));
+				}
+				publish(uri, document);
+				break;
+			}
+			case "textDocument/didClose": {
+				String uri = (String) object(params, "textDocument").get("uri");
+				documents.remove(uri);
+				notify("textDocument/publishDiagnostics", Map.of("uri", uri, "diagnostics", List.of()));
+				break;
+			}
+			default:
+				if (id != null) {
+					Map<String, Object> response = new LinkedHashMap<>();
+					response.put("jsonrpc", "2.0");
+					response.put("id", id);
+					response.put("error", Map.of("code", -32601, "message", "Unsupported method " + method));
+					write(response);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> object(Object value) {
+		return (Map<String, Object>) value;
+	}
+
+	private static Map<String, Object> object(Map<String, Object> map, String key) {
+		return object(map.get(key));
+	}
+
+	private void publish(String uri, Document document) throws IOException {
+		List<Object> diagnostics = new ArrayList<>();
+		for (DamDiagnostic problem : document.problems()) {
+			int line = Math.max(0, Math.min(problem.line() - 1, document.lines.size() - 1));
+			Map<String, Object> range = Map.of(
+					"start", Map.of("line", line, "character", 0),
+					"end", Map.of("line", line, "character", document.lines.get(line).length()));
+			diagnostics.add(Map.of("range", range, "severity", ERROR, "source", "dam",
+					"message", problem.message()));
+		}
+		notify("textDocument/publishDiagnostics", Map.of("uri", uri, "diagnostics", diagnostics));
+	}
+
+	private void respond(Object id, Object result) throws IOException {
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("jsonrpc", "2.0");
+		response.put("id", id);
+		response.put("result", result);
+		write(response);
+	}
+
+	private void notify(String method, Object params) throws IOException {
+		Map<String, Object> notification = new LinkedHashMap<>();
+		notification.put("jsonrpc", "2.0");
+		notification.put("method", method);
+		notification.put("params", params);
+		write(notification);
+	}
+
+	/**
+	 * Reads the body of the next message, or null at the end of the input.
+	 */
+	private String read() throws IOException {
+		int length = -1;
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		while (true) {
+			int b = in.read();
+			if (b < 0) return null;
+			if (b != '\n') {
+				header.write(b);
+				continue;
+			}
+			String line = header.toString(StandardCharsets.US_ASCII).trim();
+			header.reset();
+			if (line.isEmpty()) {
+				if (length >= 0) break;
+			} else if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				length = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		byte[] body = in.readNBytes(length);
+		return body.length < length ? null : new String(body, StandardCharsets.UTF_8);
+	}
+
+	private void write(Object message) throws IOException {
+		StringBuilder json = new StringBuilder();
+		Json.write(message, json);
+		byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+		out.write(("Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * An open file.  Lines count from 1 here, as in tokens, and from 0 in
+	 * the protocol.
+	 */
+	static class Document {
+		private List<String> lines = new ArrayList<>();
+		private List<Token> tokens;
+		private List<DamDiagnostic> lexProblems = new ArrayList<>();
+		private List<Integer> starts = new ArrayList<>();
+		private List<Stmt> statements = new ArrayList<>();
+		private List<List<DamDiagnostic>> parseProblems = new ArrayList<>();
+
+		Document(String text) {
+			Collections.addAll(lines, text.split("\n", -1));
+			tokens = new ArrayList<>(DamLexer.lexLines(text, 1, true, lexProblems));
+			tokens.add(new Token(TokenType.EOF, "", null, lines.size()));
+			reparse(0, 0, 0, 0);
+		}
+
+		/**
+		 * Applies one change from <code>didChange</code>: a range and its
+		 * new text, or the whole new text.
+		 */
+		void change(Map<String, Object> change) {
+			String text = (String) change.get("text");
+			Map<String, Object> range = object(change, "range");
+			if (range == null) {
+				int end = lines.size() - 1;
+				edit(0, 0, end, lines.get(end).length(), text);
+				return;
+			}
+			Map<String, Object> start = object(range, "start");
+			Map<String, Object> end = object(range, "end");
+			edit(number(start, "line"), number(start, "character"), number(end, "line"), number(end, "character"), text);
+		}
+
+		private static int number(Map<String, Object> position, String key) {
+			return ((Number) position.get(key)).intValue();
+		}
+
+		/**
+		 * Replaces the text between two positions, counted from 0.
+		 */
+		void edit(int startLine, int startChar, int endLine, int endChar, String text) {
+			startLine = Math.min(startLine, lines.size() - 1);
+			endLine = Math.min(Math.max(endLine, startLine), lines.size() - 1);
+			String head = lines.get(startLine);
+			String tail = lines.get(endLine);
+			String[] replaced = (head.substring(0, Math.min(startChar, head.length())) + text
+					+ tail.substring(Math.min(endChar, tail.length()))).split("\n", -1);
+			int removed = endLine - startLine + 1;
+			int delta = replaced.length - removed;
+
+			// Find where to start lexing: the start of the first line
+			// changed, or of the string it is in.
+			int from = startLine + 1;
+			int first = firstEndingOn(from);
+			while (startLine(tokens.get(first)) < from) {
+				from = startLine(tokens.get(first));
+				first = firstEndingOn(from);
+			}
+
+			List<String> changed = lines.subList(startLine, endLine + 1);
+			changed.clear();
+			Collections.addAll(changed, replaced);
+
+			// Lex until a line that starts outside a string in both the old
+			// and the new text, or to the end.
+			int to = startLine + replaced.length;
+			List<Token> lexed;
+			List<DamDiagnostic> problems;
+			boolean last;
+			while (true) {
+				last = to >= lines.size();
+				to = Math.min(to, lines.size());
+				problems = new ArrayList<>();
+				String window = String.join("\n", lines.subList(from - 1, to)) + (last ? "" : "\n");
+				lexed = DamLexer.lexLines(window, from, last, problems);
+				if (lexed != null && (last || startsClean(to + 1 - delta))) break;
+				to = from + 2 * (to - from + 1);
+			}
+
+			// Replace the old tokens, and move the ones kept.
+			int kept = last ? tokens.size() : firstEndingOn(to + 1 - delta);
+			List<Token> relexed = tokens.subList(first, kept);
+			relexed.clear();
+			relexed.addAll(lexed);
+			if (last) {
+				tokens.add(new Token(TokenType.EOF, "", null, lines.size()));
+			} else if (delta != 0) {
+				for (int i = first + lexed.size(); i < tokens.size(); i++) {
+					tokens.get(i).line += delta;
+				}
+			}
+			int relexedLine = from;
+			int keptLine = to + 1 - delta;
+			boolean toEnd = last;
+			lexProblems.removeIf(p -> p.line() >= relexedLine && (toEnd || p.line() < keptLine));
+			lexProblems.replaceAll(p -> p.line() >= keptLine ? new DamDiagnostic(p.line() + delta, p.message()) : p);
+			lexProblems.addAll(problems);
+
+			reparse(first, kept, lexed.size(), delta);
+		}
+
+		/**
+		 * Parses again from the statement holding the token before
+		 * <code>first</code>.  The old tokens from <code>first</code> to
+		 * <code>kept</code> were replaced by <code>added</code> new ones,
+		 * moving what follows by <code>delta</code> lines.
+		 */
+		private void reparse(int first, int kept, int added, int delta) {
+			int shift = added - (kept - first);
+			int found = Collections.binarySearch(starts, Math.max(first - 1, 0));
+			int statement = found >= 0 ? found : Math.max(0, -found - 2);
+			int from = starts.isEmpty() ? 0 : starts.get(statement);
+
+			List<Integer> newStarts = new ArrayList<>();
+			List<Stmt> newStatements = new ArrayList<>();
+			List<List<DamDiagnostic>> newProblems = new ArrayList<>();
+			List<DamDiagnostic> problems = new ArrayList<>();
+			DamParser parser = new DamParser(tokens, from, problems);
+			int resync = starts.size();
+			while (!parser.done()) {
+				int position = parser.position();
+				if (position >= first + added) {
+					int old = Collections.binarySearch(starts, position - shift);
+					if (old >= 0 && starts.get(old) >= kept) {
+						resync = old;
+						break;
+					}
+				}
+				newStarts.add(position);
+				newStatements.add(parser.next());
+				newProblems.add(new ArrayList<>(problems));
+				problems.clear();
+			}
+
+			for (int i = resync; i < starts.size() && (shift != 0 || delta != 0); i++) {
+				starts.set(i, starts.get(i) + shift);
+				if (delta != 0 && !parseProblems.get(i).isEmpty()) {
+					parseProblems.get(i).replaceAll(p -> new DamDiagnostic(p.line() + delta, p.message()));
+				}
+			}
+			starts.subList(statement, resync).clear();
+			starts.addAll(statement, newStarts);
+			statements.subList(statement, resync).clear();
+			statements.addAll(statement, newStatements);
+			parseProblems.subList(statement, resync).clear();
+			parseProblems.addAll(statement, newProblems);
+		}
+
+		/**
+		 * The line a token starts on; only a string can span lines.
+		 */
+		private static int startLine(Token token) {
+			if (token.type != TokenType.STRING) return token.line;
+			int line = token.line;
+			for (int i = token.lexeme.indexOf('\n'); i >= 0; i = token.lexeme.indexOf('\n', i + 1)) {
+				line--;
+			}
+			return line;
+		}
+
+		/**
+		 * The index of the first token ending on or after a line.
+		 */
+		private int firstEndingOn(int line) {
+			int low = 0;
+			int high = tokens.size() - 1; // EOF ends on the last line
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (tokens.get(middle).line >= line) {
+					high = middle;
+				} else {
+					low = middle + 1;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Whether a line of the old text starts outside a string.
+		 */
+		private boolean startsClean(int line) {
+			return startLine(tokens.get(firstEndingOn(line))) >= line;
+		}
+
+		/**
+		 * Every error in the file: lexing errors, syntax errors, and imports
+		 * after other statements.
+		 */
+		List<DamDiagnostic> problems() {
+			List<DamDiagnostic> problems = new ArrayList<>(lexProblems);
+			boolean imports = true;
+			for (int i = 0; i < statements.size(); i++) {
+				problems.addAll(parseProblems.get(i));
+				Stmt stmt = statements.get(i);
+				if (stmt instanceof Stmt.Import && !imports) {
+					// Statements kept from before an edit have old lines; tokens do not.
+					problems.add(new DamDiagnostic(((Stmt.Import) stmt).name.line,
+							"Imports must come before any other statement."));
+				} else if (stmt != null && !(stmt instanceof Stmt.Import)) {
+					imports = false;
+				}
+			}
+			return problems;
+		}
+	}
+
+	/**
+	 * Just enough JSON for the protocol: objects are maps, arrays lists,
+	 * and numbers longs or doubles.
+	 */
+	private static class Json {
+		private final String text;
+		private int at = 0;
+
+		Json(String text) {
+			this.text = text;
+		}
+
+		Object value() {
+			skipSpace();
+			char c = text.charAt(at);
+			switch (c) {
+			case '{': {
+				at++;
+				Map<String, Object> object = new LinkedHashMap<>();
+				skipSpace();
+				if (text.charAt(at) == '}') {
+					at++;
+					return object;
+				}
+				while (true) {
+					skipSpace();
+					String key = string();
+					skipSpace();
+					at++; // ':'
+					object.put(key, value());
+					skipSpace();
+					if (text.charAt(at++) == '}') return object;
+				}
+			}
+			case '[': {
+				at++;
+				List<Object> array = new ArrayList<>();
+				skipSpace();
+				if (text.charAt(at) == ']') {
+					at++;
+					return array;
+				}
+				while (true) {
+					array.add(value());
+					skipSpace();
+					if (text.charAt(at++) == ']') return array;
+				}
+			}
+			case '"':
+				return string();
+			case 't':
+				at += 4;
+				return true;
+			case 'f':
+				at += 5;
+				return false;
+			case 'n':
+				at += 4;
+				return null;
+			default: {
+				int start = at;
+				while (at < text.length() && "+-0123456789.eE".indexOf(text.charAt(at)) >= 0) at++;
+				String number = text.substring(start, at);
+				if (number.matches("-?[0-9]+")) return Long.parseLong(number);
+				return Double.parseDouble(number);
+			}
+			}
+		}
+
+		private String string() {
+			at++; // '"'
+			StringBuilder value = new StringBuilder();
+			while (true) {
+				char c = text.charAt(at++);
+				if (c == '"') return value.toString();
+				if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+				char escaped = text.charAt(at++);
+				switch (escaped) {
+				case 'n':	value.append('\n'); break;
+				case 't':	value.append('\t'); break;
+				case 'r':	value.append('\r'); break;
+				case 'b':	value.append('\b'); break;
+				case 'f':	value.append('\f'); break;
+				case 'u':
+					value.append((char) Integer.parseInt(text.substring(at, at + 4), 16));
+					at += 4;
+					break;
+				default:	value.append(escaped); break;
+				}
+			}
+		}
+
+		private void skipSpace() {
+			while (at < text.length() && Character.isWhitespace(text.charAt(at))) at++;
+		}
+
+		static void write(Object value, StringBuilder json) {
+			if (value instanceof Map) {
+				json.append('{');
+				boolean first = true;
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+					if (!first) json.append(',');
+					first = false;
+					write(entry.getKey(), json);
+					json.append(':');
+					write(entry.getValue(), json);
+				}
+				json.append('}');
+			} else if (value instanceof List) {
+				json.append('[');
+				boolean first = true;
+				for (Object element : (List<?>) value) {
+					if (!first) json.append(',');
+					first = false;
+					write(element, json);
+				}
+				json.append(']');
+			} else if (value instanceof String) {
+				json.append('"');
+				for (char c : ((String) value).toCharArray()) {
+					switch (c) {
+					case '"':	json.append("\\\""); break;
+					case '\\':	json.append("\\\\"); break;
+					case '\n':	json.append("\\n"); break;
+					case '\r':	json.append("\\r"); break;
+					case '\t':	json.append("\\t"); break;
+					default:
+						if (c < ' ') json.append(String.format("\\u%04x", (int) c));
+						else json.append(c);
+					}
+				}
+				json.append('"');
+			} else {
+				json.append(value); // numbers, booleans and null
+			}
+		}
+	}
+}
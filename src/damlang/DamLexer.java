@@ -9,8 +9,36 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * The <code>DamLexer</code> turns a Dam source file into tokens.
+ *
+ * With <code>--parallel-lex</code> a large file is cut into chunks at line
+ * breaks and the chunks are lexed at once on the common ForkJoinPool.  A
+ * quick sequential pre-scan finds the cuts: it jumps with
+ * <code>indexOf</code> between the characters that change its state
+ * (quotes, <code>//</code> and line breaks) and only cuts after a line
+ * break outside a string literal, where a comment has also ended, so every
+ * chunk starts where a token can.  Each chunk counts its lines from 0, and
+ * its tokens are moved down by the lines before it when the chunks are
+ * joined.  An error is kept until then too, so the first error in the file
+ * is the one reported, with its real line.
+ */
 public class DamLexer {
+	/**
+	 * The smallest chunk worth a task of its own, in characters.
+	 */
+	static final int MIN_CHUNK = 1 << 20;
+
+	/**
+	 * About how many chunks each worker thread gets, so one slow chunk
+	 * does not hold up the rest.
+	 */
+	static final int CHUNKS_PER_THREAD = 4;
 
 	private static Map<String, TokenType> keywords;
 
@@ -30,6 +58,14 @@ public class DamLexer {
 		keywords.put("true",   TRUE);
 		keywords.put("while",  WHILE);
 		keywords.put("read",   READ);
+		keywords.put("import", IMPORT);
+		keywords.put("parallel", PARALLEL);
+		keywords.put("spawn",  SPAWN);
+		keywords.put("send",   SEND);
+		keywords.put("receive", RECEIVE);
+		keywords.put("channel", CHANNEL);
+		keywords.put("match",  MATCH);
+		keywords.put("case",   CASE);
 	}
 
 
@@ -38,8 +74,20 @@ public class DamLexer {
 
 	private int start = 0;
 	private int current = 0;
+	private int end;
 	private int line = 1;
 
+	// A chunk's first error, reported once the chunks are joined, or with
+	// the pipeline the file's, reported once the parser gets to it.
+	private boolean keepError = false;
+	private String error;
+	private int errorLine;
+
+	// For the language server: every error, and whether the text ended
+	// inside a string.
+	private List<DamDiagnostic> problems;
+	private boolean open = false;
+
 
 	public DamLexer(File f) {
 		try {
@@ -47,18 +95,182 @@ public class DamLexer {
 		} catch (IOException e) {
 			DamCompiler.error("Cannot read file, " + e.getMessage());
 		}
+		end = source.length();
+	}
+
+	/**
+	 * A lexer for the characters from <code>from</code> up to
+	 * <code>to</code>, counting lines from 0.
+	 */
+	private DamLexer(String source, int from, int to) {
+		this.source = source;
+		this.start = from;
+		this.current = from;
+		this.end = to;
+		this.line = 0;
+		this.keepError = true;
 	}
 
 	public List<Token> lex() {
+		if (DamCompiler.parallelLex && source.length() >= 2 * MIN_CHUNK) {
+			return lexInParallel();
+		}
+
+		scanTokens();
+		tokens.add(new Token(EOF, "", null, line));
+		return tokens;
+	}
+
+	/**
+	 * Lexes the file for <code>--pipeline</code>, handing the tokens to
+	 * <code>batches</code> as they are made, about <code>size</code> at a
+	 * time, with the EOF in the last batch.  An error stops the lexing and
+	 * is returned rather than reported, to be reported after the tokens
+	 * before it.
+	 * @return the error, or null if there was none
+	 */
+	DamDiagnostic lex(int size, Consumer<List<Token>> batches) {
+		keepError = true;
+		tokens = new ArrayList<>(size);
 		while (!isAtEnd()) {
 			start = current;
 			scanToken();
+			if (tokens.size() >= size) {
+				batches.accept(tokens);
+				tokens = new ArrayList<>(size);
+			}
+		}
+		if (error != null) {
+			if (!tokens.isEmpty()) batches.accept(tokens);
+			return new DamDiagnostic(errorLine, error);
+		}
+		tokens.add(new Token(EOF, "", null, line));
+		batches.accept(tokens);
+		return null;
+	}
+
+	/**
+	 * Lexes <code>text</code>, which begins at the start of line
+	 * <code>firstLine</code>, for the language server.  Errors are added to
+	 * <code>problems</code>, and no EOF is added.
+	 * @param last whether the text runs to the end of the file
+	 * @return the tokens, or null if the text is not the last and ends
+	 * inside a string
+	 */
+	static List<Token> lexLines(String text, int firstLine, boolean last, List<DamDiagnostic> problems) {
+		DamLexer lexer = new DamLexer(text, 0, text.length());
+		lexer.line = firstLine;
+		lexer.problems = problems;
+		lexer.scanTokens();
+		return lexer.open && !last ? null : lexer.tokens;
+	}
+
+	private void scanTokens() {
+		while (!isAtEnd()) {
+			start = current;
+			scanToken();
+		}
+	}
+
+	private List<Token> lexInParallel() {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		long wanted = (long) pool.getParallelism() * CHUNKS_PER_THREAD;
+		int size = (int) Math.max(MIN_CHUNK, source.length() / wanted);
+		List<Integer> cuts = cuts(size);
+
+		List<Callable<DamLexer>> chunks = new ArrayList<>();
+		for (int i = 0; i + 1 < cuts.size(); i++) {
+			DamLexer lexer = new DamLexer(source, cuts.get(i), cuts.get(i + 1));
+			chunks.add(() -> {
+				lexer.scanTokens();
+				return lexer;
+			});
+		}
+
+		List<DamLexer> lexers = new ArrayList<>();
+		for (Future<DamLexer> done : pool.invokeAll(chunks)) {
+			try {
+				lexers.add(done.get());
+			} catch (Exception e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		// Join the chunks in order, moving each one's lines down by the
+		// lines of the chunks before it.
+		int total = 0;
+		for (DamLexer lexer : lexers) {
+			total += lexer.tokens.size();
+		}
+		tokens = new ArrayList<>(total + 1);
+		for (DamLexer lexer : lexers) {
+			int offset = line;
+			if (lexer.error != null) {
+				DamCompiler.error(lexer.errorLine + offset, lexer.error);
+			}
+			for (Token token : lexer.tokens) {
+				token.line += offset;
+			}
+			tokens.addAll(lexer.tokens);
+			line += lexer.line;
 		}
 
 		tokens.add(new Token(EOF, "", null, line));
 		return tokens;
 	}
 
+	/**
+	 * Finds where to cut the source: at 0, after a line break outside a
+	 * string about every <code>size</code> characters, and at the end.
+	 * Everything before <code>i</code> has been scanned, and
+	 * <code>quote</code> and <code>slash</code> are the next string and
+	 * comment that could open at or after it.
+	 */
+	private List<Integer> cuts(int size) {
+		List<Integer> cuts = new ArrayList<>();
+		cuts.add(0);
+		int target = size;
+		int i = 0;
+		int quote = next(source.indexOf('"'));
+		int slash = next(source.indexOf("//"));
+		while (true) {
+			int open = Math.min(quote, slash);
+			if (open >= target) {
+				// Nothing opens before the line break after the target.
+				int newline = source.indexOf('\n', Math.max(i, target));
+				if (newline < 0) break;
+				if (newline < open) {
+					i = newline + 1;
+					cuts.add(i);
+					target = i + size;
+					continue;
+				}
+			}
+			if (open == Integer.MAX_VALUE) break;
+
+			// Skip the string or comment.
+			if (open == quote) {
+				int close = source.indexOf('"', quote + 1);
+				if (close < 0) break; // unterminated; its chunk reports it
+				i = close + 1;
+			} else {
+				int newline = source.indexOf('\n', slash);
+				if (newline < 0) break;
+				i = newline;
+			}
+			if (quote < i) quote = next(source.indexOf('"', i));
+			if (slash < i) slash = next(source.indexOf("//", i));
+		}
+		if (cuts.get(cuts.size() - 1) < end) {
+			cuts.add(end);
+		}
+		return cuts;
+	}
+
+	private static int next(int index) {
+		return index < 0 ? Integer.MAX_VALUE : index;
+	}
+
 
 	private void scanToken() {
 		char c = advance();
@@ -67,12 +279,15 @@ public class DamLexer {
 		case ')': addToken(RIGHT_PAREN); break;
 		case '{': addToken(LEFT_BRACE); break;
 		case '}': addToken(RIGHT_BRACE); break;
+		case '[': addToken(LEFT_BRACKET); break;
+		case ']': addToken(RIGHT_BRACKET); break;
 		case ',': addToken(COMMA); break;
 		case '.': addToken(DOT); break;
 		case '-': addToken(MINUS); break;
 		case '+': addToken(PLUS); break;
 		case ';': addToken(SEMICOLON); break;
 		case '*': addToken(STAR); break; 
+		case ':': addToken(COLON); break;
 		case '!':
 			addToken(match('=') ? BANG_EQUAL : BANG);
 			break;
@@ -108,7 +323,7 @@ public class DamLexer {
 			} else if (isAlpha(c)) {
 				identifier();
 			} else {
-				DamCompiler.error(line, "Unexpected character.");
+				error("Unexpected character.");
 			}
 			break;
 		}
@@ -145,7 +360,12 @@ public class DamLexer {
 		}
 
 		if (isAtEnd()) {
-			DamCompiler.error(line, "Unterminated string.");
+			open = true;
+			error("Unterminated string.");
+			if (problems != null) {
+				// The language server keeps it, to know which lines it covers.
+				addToken(STRING, unescape(source.substring(start + 1, current)));
+			}
 			return;
 		}
 
@@ -153,10 +373,68 @@ public class DamLexer {
 		advance();
 
 		// Trim surrounding quotes.
-		String value = source.substring(start + 1, current - 1);
+		String value = unescape(source.substring(start + 1, current - 1));
 		addToken(STRING, value);
 	}
 
+	/**
+	 * Replaces the escapes <code>\n</code>, <code>\t</code>, <code>\r</code>,
+	 * <code>\b</code>, <code>\f</code>, <code>\'</code>, <code>\\</code>
+	 * and a backslash, <code>u</code> and four hex digits in a string literal
+	 * with the characters they stand for, as Jasmin used to.  Any other
+	 * backslash is kept as it is.
+	 */
+	private static String unescape(String text) {
+		if (text.indexOf('\\') < 0) return text;
+
+		StringBuilder value = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '\\' || i + 1 == text.length()) {
+				value.append(c);
+				continue;
+			}
+			char next = text.charAt(i + 1);
+			switch (next) {
+			case 'n':	value.append('\n'); break;
+			case 't':	value.append('\t'); break;
+			case 'r':	value.append('\r'); break;
+			case 'b':	value.append('\b'); break;
+			case 'f':	value.append('\f'); break;
+			case '\'':	value.append('\''); break;
+			case '\\':	value.append('\\'); break;
+			case 'u':
+				if (i + 6 <= text.length() && text.substring(i + 2, i + 6).matches("[0-9a-fA-F]{4}")) {
+					value.append((char) Integer.parseInt(text.substring(i + 2, i + 6), 16));
+					i += 4;
+				} else {
+					value.append(c).append(next);
+				}
+				break;
+			default:
+				value.append(c).append(next);
+			}
+			i++;
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Reports an error, or in a chunk or the pipeline keeps the first one
+	 * and stops, or for the language server keeps it and goes on.
+	 */
+	private void error(String msg) {
+		if (problems != null) {
+			problems.add(new DamDiagnostic(line, msg));
+		} else if (!keepError) {
+			DamCompiler.error(line, msg);
+		} else if (error == null) {
+			error = msg;
+			errorLine = line;
+			current = end;
+		}
+	}
+
 	private boolean match(char expected) {
 		if (isAtEnd()) return false;
 		if (source.charAt(current) != expected) return false;
@@ -171,7 +449,7 @@ public class DamLexer {
 	}
 
 	private char peekNext() {
-		if (current + 1 >= source.length()) return '\0';
+		if (current + 1 >= end) return '\0';
 		return source.charAt(current + 1);
 	} 
 
@@ -190,7 +468,7 @@ public class DamLexer {
 	}
 
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return current >= end;
 	}
 
 	private char advance() {
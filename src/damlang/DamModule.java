@@ -0,0 +1,109 @@
+package damlang;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>DamModule</code> is the interface of a compiled
+ * <code>.dam</code> file that other files can <code>import</code>: the
+ * variables it exports and their types.  Every top-level <code>let</code>
+ * of a module is exported, as a public static final field of its class.
+ *
+ * It is saved next to the class as a <code>.dami</code> summary, along with
+ * a hash of the module's source and the interface hash of each module it
+ * imported, so a later compile can tell whether the module has to be
+ * compiled again without reading its source.
+ */
+public class DamModule {
+	/** The module's name, which is also its class name. */
+	public final String name;
+	/** A hash of the source the module was compiled from. */
+	public final String sourceHash;
+	/** The exported variables and their types, in source order. */
+	public final Map<String, DamType> exports = new LinkedHashMap<>();
+	/** The interface hash of every imported module, when it was imported. */
+	public final Map<String, String> imports = new LinkedHashMap<>();
+
+	public DamModule(String name, String sourceHash) {
+		this.name = name;
+		this.sourceHash = sourceHash;
+	}
+
+	/**
+	 * A hash of the exports alone.  Modules that import this one only need
+	 * compiling again when it changes.
+	 */
+	public String interfaceHash() {
+		StringBuilder text = new StringBuilder(name);
+		for (Map.Entry<String, DamType> export : exports.entrySet()) {
+			text.append('\n').append(export.getKey()).append(' ').append(export.getValue());
+		}
+		return hash(text.toString().getBytes());
+	}
+
+	/**
+	 * The field reference for an exported variable.
+	 */
+	public String field(String variable) {
+		return name + "/" + variable + " " + exports.get(variable).descriptor;
+	}
+
+	public void write(Path summary) {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(summary))) {
+			out.println("dam-module " + name);
+			out.println("source " + sourceHash);
+			for (Map.Entry<String, String> module : imports.entrySet()) {
+				out.println("import " + module.getKey() + " " + module.getValue());
+			}
+			for (Map.Entry<String, DamType> export : exports.entrySet()) {
+				out.println("export " + export.getKey() + " " + export.getValue().name());
+			}
+		} catch (IOException ioe) {
+			DamCompiler.error("Cannot write " + summary + ". " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a summary, or returns null if there is none or it cannot be
+	 * made sense of, in which case the module is simply compiled again.
+	 */
+	public static DamModule read(Path summary) {
+		try {
+			List<String> lines = Files.readAllLines(summary);
+			String[] header = lines.get(0).split(" ");
+			String[] source = lines.get(1).split(" ");
+			if (!header[0].equals("dam-module") || !source[0].equals("source")) return null;
+
+			DamModule module = new DamModule(header[1], source[1]);
+			for (String line : lines.subList(2, lines.size())) {
+				String[] fields = line.split(" ");
+				if (fields[0].equals("import")) {
+					module.imports.put(fields[1], fields[2]);
+				} else if (fields[0].equals("export")) {
+					module.exports.put(fields[1], DamType.valueOf(fields[2]));
+				} else {
+					return null;
+				}
+			}
+			return module;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	static String hash(byte[] bytes) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package damlang;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The <code>DamParallel</code> runs <code>parallel for</code> loops on the
+ * common <code>ForkJoinPool</code>.  It is shipped next to compiled Dam
+ * programs that use them.
+ *
+ * The compiler turns a loop's body into a static method that runs the
+ * iterations from <code>lo</code> up to and including <code>hi</code>, so
+ * a piece of the range costs one call and the loop inside it is an
+ * ordinary counted loop.  The range is split in halves until the pieces
+ * are small enough, and idle workers steal the halves that have not
+ * started.
+ *
+ * A loop with a reduction returns its piece's partial result, which is
+ * combined with the other half's as the tasks join, so no locking is
+ * needed.  Sums are added up in a different order than a plain loop
+ * would, which can change their rounding.
+ */
+public class DamParallel {
+	/**
+	 * About how many pieces each worker thread gets.  More pieces balance
+	 * uneven iterations better; fewer cost less in tasks.
+	 */
+	static final int PIECES_PER_THREAD = 8;
+
+	private static final int EACH = 0;
+	private static final int SUM = 1;
+	private static final int MIN = 2;
+	private static final int MAX = 3;
+
+	/**
+	 * Runs a loop body of type <code>(int, int)void</code> over the range.
+	 */
+	public static void forEach(MethodHandle body, int lo, int hi) {
+		run(body, lo, hi, EACH, 0);
+	}
+
+	/**
+	 * Runs a loop body of type <code>(int, int)float</code> over the range
+	 * and adds up its results.
+	 */
+	public static float sum(MethodHandle body, int lo, int hi) {
+		return run(body, lo, hi, SUM, 0);
+	}
+
+	public static float min(MethodHandle body, int lo, int hi) {
+		return run(body, lo, hi, MIN, Float.POSITIVE_INFINITY);
+	}
+
+	public static float max(MethodHandle body, int lo, int hi) {
+		return run(body, lo, hi, MAX, Float.NEGATIVE_INFINITY);
+	}
+
+	private static float run(MethodHandle body, int lo, int hi, int op, float identity) {
+		if (lo > hi) return identity;
+
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		long pieces = (long) pool.getParallelism() * PIECES_PER_THREAD;
+		int grain = (int) Math.max(1, ((long) hi - lo + 1) / pieces);
+		Float result = pool.invoke(new Chunk(body, lo, hi, grain, op));
+		return result == null ? identity : result;
+	}
+
+	/**
+	 * A piece of the range, split further or run directly.
+	 */
+	static final class Chunk extends RecursiveTask<Float> {
+		private static final long serialVersionUID = 1L;
+
+		// Tasks are never serialized; a method handle cannot be.
+		private final transient MethodHandle body;
+		private final int lo;
+		private final int hi;
+		private final int grain;
+		private final int op;
+
+		Chunk(MethodHandle body, int lo, int hi, int grain, int op) {
+			this.body = body;
+			this.lo = lo;
+			this.hi = hi;
+			this.grain = grain;
+			this.op = op;
+		}
+
+		@Override
+		protected Float compute() {
+			// In longs, as the range can be wider than an int.
+			if ((long) hi - lo < grain) {
+				try {
+					if (op == EACH) {
+						body.invokeExact(lo, hi);
+						return null;
+					}
+					return (float) body.invokeExact(lo, hi);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new RuntimeException(t);
+				}
+			}
+
+			int mid = (int) (lo + ((long) hi - lo) / 2);
+			Chunk left = new Chunk(body, lo, mid, grain, op);
+			left.fork();
+			Float right = new Chunk(body, mid + 1, hi, grain, op).compute();
+			return combine(left.join(), right);
+		}
+
+		private Float combine(Float left, Float right) {
+			switch (op) {
+			case SUM:	return left + right;
+			case MIN:	return Math.min(left, right);
+			case MAX:	return Math.max(left, right);
+			default:	return null;
+			}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package damlang;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static damlang.TokenType.*;
 
@@ -12,27 +13,80 @@ public class DamParser {
 	private final List<Token> tokens;
 	private int current = 0;
 
+	// For the language server: errors are kept here instead of ending the
+	// compile.
+	private List<DamDiagnostic> problems;
+
 	public DamParser(List<Token> tokens) {
 		this.tokens = tokens;
 	}
 
+	/**
+	 * A parser for the language server, starting at token <code>from</code>
+	 * and adding its errors to <code>problems</code>.
+	 */
+	DamParser(List<Token> tokens, int from, List<DamDiagnostic> problems) {
+		this.tokens = tokens;
+		this.current = from;
+		this.problems = problems;
+	}
+
 	public List<Stmt> parse() {
 		List<Stmt> statements = new ArrayList<>();
+		parse(statements::add);
+		return statements; 
+
+	}
+
+	/**
+	 * Parses the program, handing each top-level statement to
+	 * <code>each</code> as soon as it is complete.
+	 */
+	void parse(Consumer<Stmt> each) {
+		while (check(IMPORT)) {
+			int line = peek().line;
+			advance();
+			each.accept(at(line, importDeclaration()));
+		}
 		while (!isAtEnd()) {
-			statements.add(declaration());
+			each.accept(declaration());
 		}
+	}
 
-		return statements; 
-
+	/**
+	 * Parses one top-level statement, an import or not, for the language
+	 * server.
+	 * @return the statement, or null after an error
+	 */
+	Stmt next() {
+		if (check(IMPORT)) {
+			int line = peek().line;
+			advance();
+			try {
+				return at(line, importDeclaration());
+			} catch (ParseError error) {
+				synchronize();
+				return null;
+			}
+		}
+		return declaration();
 	}
 
-	private Expr expression() {
+	/**
+	 * The index of the next token.
+	 */
+	int position() {
+		return current;
+	}
 
-		return assignment();
+	boolean done() {
+		return isAtEnd();
 	}
+
 	private Stmt declaration() {
 		try {
-			if (match(LET)) return letDeclaration();
+			int line = peek().line;
+			if (match(LET)) return at(line, letDeclaration());
 
 			return statement();
 		} catch (ParseError error) {
@@ -42,16 +96,37 @@ public class DamParser {
 	}
 
 	private Stmt statement() {
-		if (match(IF)) return ifStatement();
-		if (match(PRINT)) return printStatement();
-		if (match(READ)) return readStatement();
-		if (match(WHILE)) return whileStatement();
-		if (match(LEFT_BRACE)) return new Stmt.Block(block());
+		int line = peek().line;
+		if (match(IF)) return at(line, ifStatement());
+		if (match(PRINT)) return at(line, printStatement());
+		if (match(READ)) return at(line, readStatement());
+		if (match(WHILE)) return at(line, whileStatement());
+		if (match(FOR)) return at(line, forStatement());
+		if (match(PARALLEL)) return at(line, parallelStatement());
+		if (match(SPAWN)) return at(line, new Stmt.Spawn(previous(), statement()));
+		if (match(SEND)) return at(line, sendStatement());
+		if (match(MATCH)) return at(line, matchStatement());
+		if (match(LEFT_BRACE)) return at(line, new Stmt.Block(block()));
+		if (check(IMPORT)) throw error(peek(), "Imports must come before any other statement.");
+
+		return at(line, expressionStatement());
+	}
 
-		return expressionStatement();
+	/**
+	 * Records the line a statement starts on.
+	 */
+	private Stmt at(int line, Stmt stmt) {
+		stmt.line = line;
+		return stmt;
 	}
 
 
+	private Stmt importDeclaration() {
+		Token name = consume(IDENTIFIER, "Expect module name after 'import'.");
+		consume(SEMICOLON, "Expect ';' after import.");
+		return new Stmt.Import(name);
+	}
+
 	private Stmt ifStatement() {
 		consume(LEFT_PAREN, "Expect '(' after 'if'.");
 		Expr condition = expression();
@@ -102,6 +177,109 @@ public class DamParser {
 		return new Stmt.While(condition, body);
 	}
 
+	private Stmt forStatement() {
+		Token name = consume(IDENTIFIER, "Expect loop variable after 'for'.");
+		consume(EQUAL, "Expect '=' after loop variable.");
+		Expr start = expression();
+		consume(TO, "Expect 'to' after loop start.");
+		Expr end = expression();
+		Stmt body = statement();
+
+		return new Stmt.For(name, start, end, body);
+	}
+
+	/**
+	 * A parallel loop, optionally reducing into a variable with
+	 * <code>with sum total</code>, <code>with min low</code> or
+	 * <code>with max high</code>.  None of these are keywords.
+	 */
+	private Stmt parallelStatement() {
+		int line = peek().line;
+		consume(FOR, "Expect 'for' after 'parallel'.");
+		Token name = consume(IDENTIFIER, "Expect loop variable after 'for'.");
+		consume(EQUAL, "Expect '=' after loop variable.");
+		Expr start = expression();
+		consume(TO, "Expect 'to' after loop start.");
+		Expr end = expression();
+
+		Token reduction = null;
+		Token result = null;
+		if (check(IDENTIFIER) && peek().lexeme.equals("with")
+				&& tokens.get(current + 1).type == IDENTIFIER) {
+			advance();
+			reduction = advance();
+			if (!Arrays.asList("sum", "min", "max").contains(reduction.lexeme)) {
+				throw error(reduction, "Expect sum, min or max after 'with'.");
+			}
+			result = consume(IDENTIFIER, "Expect the variable to reduce into.");
+		}
+		Stmt body = statement();
+
+		Stmt.For loop = new Stmt.For(name, start, end, body);
+		loop.line = line;
+		return new Stmt.Parallel(loop, reduction, result);
+	}
+
+	private Stmt sendStatement() {
+		Token keyword = previous();
+		Expr value = expression();
+		consume(TO, "Expect 'to' after the value to send.");
+		Expr channel = expression();
+		consume(SEMICOLON, "Expect ';' after channel.");
+		return new Stmt.Send(keyword, value, channel);
+	}
+
+	/**
+	 * A match on one value.  Each <code>case</code> arm lists the constants
+	 * that select it, and the <code>else</code> arm, if there is one, runs
+	 * when none of them do:
+	 * <code>match (x) { case 1, 2: print "low"; else: print "high"; }</code>
+	 */
+	private Stmt matchStatement() {
+		Token keyword = previous();
+		consume(LEFT_PAREN, "Expect '(' after 'match'.");
+		Expr subject = expression();
+		consume(RIGHT_PAREN, "Expect ')' after match value.");
+		consume(LEFT_BRACE, "Expect '{' before match arms.");
+
+		List<List<Token>> values = new ArrayList<>();
+		List<Stmt> arms = new ArrayList<>();
+		Stmt otherwise = null;
+		while (!check(RIGHT_BRACE) && !isAtEnd()) {
+			if (match(ELSE)) {
+				if (otherwise != null) throw error(previous(), "A match can only have one 'else' arm.");
+				consume(COLON, "Expect ':' after 'else'.");
+				otherwise = statement();
+				continue;
+			}
+			consume(CASE, "Expect 'case' or 'else' in match.");
+			List<Token> constants = new ArrayList<>();
+			do {
+				constants.add(caseValue());
+			} while (match(COMMA));
+			consume(COLON, "Expect ':' after case values.");
+			values.add(constants);
+			arms.add(statement());
+		}
+		consume(RIGHT_BRACE, "Expect '}' after match arms.");
+
+		return new Stmt.Match(keyword, subject, values, arms, otherwise);
+	}
+
+	/**
+	 * A case constant: a number, which may be negative, a string, true or
+	 * false.
+	 */
+	private Token caseValue() {
+		if (match(MINUS)) {
+			Token minus = previous();
+			Token number = consume(NUMBER, "Expect a number after '-'.");
+			return new Token(NUMBER, "-" + number.lexeme, -(Double) number.literal, minus.line);
+		}
+		if (match(NUMBER, STRING, TRUE, FALSE)) return previous();
+		throw error(peek(), "Expect a number, string or bool after 'case'.");
+	}
+
 	private Stmt expressionStatement() {
 		Expr expr = expression();
 		consume(SEMICOLON, "Expect ';' after expression.");
@@ -120,127 +298,248 @@ public class DamParser {
 		return statements;
 	}
 
-	private Expr assignment() {
-		Expr expr = or();
-
-		if (match(EQUAL)) {
-			Token equals = previous();
-			Expr value = assignment();
+	// Binding powers of the infix operators, indexed by token type; 0 for
+	// tokens that end an expression.  Every operator but '=' is left
+	// associative.  Prefix operators bind tighter than any infix one.
+	private static final int[] BINDING_POWER = new int[TokenType.values().length];
+	private static final int ASSIGNMENT = 1;
+	private static final int PREFIX = 8;
+	static {
+		BINDING_POWER[EQUAL.ordinal()] = ASSIGNMENT;
+		BINDING_POWER[OR.ordinal()] = 2;
+		BINDING_POWER[AND.ordinal()] = 3;
+		BINDING_POWER[BANG_EQUAL.ordinal()] = 4;
+		BINDING_POWER[EQUAL_EQUAL.ordinal()] = 4;
+		BINDING_POWER[GREATER.ordinal()] = 5;
+		BINDING_POWER[GREATER_EQUAL.ordinal()] = 5;
+		BINDING_POWER[LESS.ordinal()] = 5;
+		BINDING_POWER[LESS_EQUAL.ordinal()] = 5;
+		BINDING_POWER[MINUS.ordinal()] = 6;
+		BINDING_POWER[PLUS.ordinal()] = 6;
+		BINDING_POWER[SLASH.ordinal()] = 7;
+		BINDING_POWER[STAR.ordinal()] = 7;
+	}
 
-			if (expr instanceof Expr.Variable) {
-				Token name = ((Expr.Variable)expr).name;
-				return new Expr.Assign(name, value);
+	/**
+	 * Parses an expression by precedence climbing over an explicit operand
+	 * stack and operator stack, so each token is one step of a loop and
+	 * long operator chains, prefix operators and parentheses nest without
+	 * recursion.  Open parentheses sit on the operator stack as markers
+	 * with binding power 0.  Only subexpressions inside brackets, braces,
+	 * casts and <code>contains</code>, and a channel's capacity, are
+	 * parsed by a call of their own.
+	 */
+	private Expr expression() {
+		List<Expr> operands = new ArrayList<>();
+		List<Token> operators = new ArrayList<>();
+		List<Integer> powers = new ArrayList<>();
+		int open = 0;
+
+		while (true) {
+			// Prefix position: any prefix operators, then an operand.
+			Token token = peek();
+			switch (token.type) {
+			case BANG:
+			case MINUS:
+			case RECEIVE:
+				advance();
+				operators.add(token);
+				powers.add(PREFIX);
+				continue;
+			case LEFT_PAREN:
+				advance();
+				operators.add(token);
+				powers.add(0);
+				open++;
+				continue;
+			default:
+				operands.add(postfix(primary()));
 			}
 
-			error(equals, "Invalid assignment target."); 
-		}
-
-		return expr;
-	}
+			// Infix position: close parentheses, then find the next operator.
+			while (open > 0 && check(RIGHT_PAREN)) {
+				advance();
+				while (powers.get(powers.size() - 1) != 0) {
+					reduce(operands, operators, powers);
+				}
+				operators.remove(operators.size() - 1);
+				powers.remove(powers.size() - 1);
+				open--;
+				// Parentheses around parentheses add nothing.
+				int last = operands.size() - 1;
+				Expr inner = operands.get(last);
+				if (!(inner instanceof Expr.Grouping)) {
+					inner = new Expr.Grouping(inner);
+				}
+				operands.set(last, postfix(inner));
+			}
 
-	private Expr or() {
-		Expr expr = and();
+			int power = BINDING_POWER[peek().type.ordinal()];
+			if (power == 0) break;
 
-		while (match(OR)) {
-			Token operator = previous();
-			Expr right = and();
-			expr = new Expr.Logical(expr, operator, right);
+			while (!powers.isEmpty()) {
+				int top = powers.get(powers.size() - 1);
+				if (top == 0 || top < power || (top == power && power == ASSIGNMENT)) break;
+				reduce(operands, operators, powers);
+			}
+			operators.add(advance());
+			powers.add(power);
 		}
 
-		return expr;
-	}
-
-	private Expr and() {
-		Expr expr = equality();
-
-		while (match(AND)) {
-			Token operator = previous();
-			Expr right = equality();
-			expr = new Expr.Logical(expr, operator, right);
+		if (open > 0) {
+			throw error(peek(), "Expect ')' after expression.");
 		}
-
-		return expr;
-	}
-
-	private Expr equality() {
-		Expr expr = comparison();
-
-		while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-			Token operator = previous();
-			Expr right = comparison();
-			expr = new Expr.Binary(expr, operator, right);
+		while (!operators.isEmpty()) {
+			reduce(operands, operators, powers);
 		}
-
-		return expr;
+		return operands.get(0);
 	}
 
-	private Expr comparison() {
-		Expr expr = term();
-
-		while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-			Token operator = previous();
-			Expr right = term();
-			expr = new Expr.Binary(expr, operator, right);
+	/**
+	 * Applies the operator on top of the stack to its operands.
+	 */
+	private void reduce(List<Expr> operands, List<Token> operators, List<Integer> powers) {
+		Token operator = operators.remove(operators.size() - 1);
+		int power = powers.remove(powers.size() - 1);
+		Expr right = operands.remove(operands.size() - 1);
+
+		if (power == PREFIX) {
+			operands.add(operator.type == RECEIVE ? new Expr.Receive(operator, right)
+					: new Expr.Unary(operator, right));
+			return;
 		}
 
-		return expr;
-	}
-
-	private Expr term() {
-		Expr expr = factor();
-
-		while (match(MINUS, PLUS)) {
-			Token operator = previous();
-			Expr right = factor();
-			expr = new Expr.Binary(expr, operator, right);
+		int last = operands.size() - 1;
+		Expr left = operands.get(last);
+		switch (operator.type) {
+		case EQUAL:
+			if (left instanceof Expr.Variable) {
+				operands.set(last, new Expr.Assign(((Expr.Variable) left).name, right));
+			} else if (left instanceof Expr.Index) {
+				Expr.Index index = (Expr.Index) left;
+				operands.set(last, new Expr.SetIndex(index.array, index.bracket, index.index, right));
+			} else {
+				error(operator, "Invalid assignment target.");
+			}
+			break;
+		case AND:
+		case OR:
+			operands.set(last, new Expr.Logical(left, operator, right));
+			break;
+		default:
+			operands.set(last, new Expr.Binary(left, operator, right));
 		}
-
-		return expr;
 	}
 
-	private Expr factor() {
-		Expr expr = unary();
-
-		while (match(SLASH, STAR)) {
-			Token operator = previous();
-			Expr right = unary();
-			expr = new Expr.Binary(expr, operator, right);
+	private Expr postfix(Expr expr) {
+		while (true) {
+			if (check(LEFT_BRACKET)) {
+				Token bracket = advance();
+				Expr index = expression();
+				consume(RIGHT_BRACKET, "Expect ']' after index.");
+				expr = new Expr.Index(expr, bracket, index);
+			} else if (check(DOT)) {
+				advance();
+				Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+				if (name.lexeme.equals("contains")) {
+					consume(LEFT_PAREN, "Expect '(' after 'contains'.");
+					Expr key = expression();
+					consume(RIGHT_PAREN, "Expect ')' after the key.");
+					expr = new Expr.Contains(expr, name, key);
+				} else if (name.lexeme.equals("length")) {
+					expr = new Expr.Length(expr, name);
+				} else {
+					throw error(name, "Arrays only have a 'length' property and maps 'length' and 'contains'.");
+				}
+			} else {
+				break;
+			}
 		}
 
 		return expr;
 	}
-
-	private Expr unary() {
-		if (match(BANG, MINUS)) {
-			Token operator = previous();
-			Expr right = unary();
-			return new Expr.Unary(operator, right);
-		}
-
-		return primary();
-	}
 	
 
 	private Expr primary() {
-		if (match(FALSE)) return new Expr.Literal(false);
-		if (match(TRUE)) return new Expr.Literal(true);
-		if (match(NULL)) return new Expr.Literal(null);
-
-		if (match(NUMBER, STRING)) {
-			return new Expr.Literal(previous().literal);
+		Token token = peek();
+		switch (token.type) {
+		case FALSE:
+			advance();
+			return new Expr.Literal(false);
+		case TRUE:
+			advance();
+			return new Expr.Literal(true);
+		case NULL:
+			advance();
+			return new Expr.Literal(null);
+		case NUMBER:
+		case STRING:
+			advance();
+			return new Expr.Literal(token.literal);
+		case IDENTIFIER:
+			advance();
+			if (check(LEFT_PAREN) && token.lexeme.equals("map")) {
+				advance();
+				Token keyType = consume(IDENTIFIER, "Expect key type after 'map('.");
+				consume(COMMA, "Expect ',' after map key type.");
+				Token valueType = consume(IDENTIFIER, "Expect value type after ','.");
+				consume(RIGHT_PAREN, "Expect ')' after map value type.");
+				return new Expr.MapLiteral(token, keyType, valueType, new ArrayList<>(), new ArrayList<>());
+			}
+			if (check(LEFT_PAREN) && isCast(token.lexeme)) {
+				advance();
+				Expr value = expression();
+				consume(RIGHT_PAREN, "Expect ')' after the value to convert.");
+				return new Expr.Cast(token, value);
+			}
+			return new Expr.Variable(token);
+		case CHANNEL: {
+			advance();
+			Token elementType = consume(IDENTIFIER, "Expect element type after 'channel'.");
+			consume(LEFT_PAREN, "Expect '(' after channel element type.");
+			Expr capacity = expression();
+			consume(RIGHT_PAREN, "Expect ')' after channel capacity.");
+			return new Expr.Channel(token, elementType, capacity);
 		}
-
-		if (match(IDENTIFIER)) {
-			return new Expr.Variable(previous());
+		case LEFT_BRACKET: {
+			advance();
+			List<Expr> elements = new ArrayList<>();
+			if (!check(RIGHT_BRACKET)) {
+				do {
+					elements.add(expression());
+				} while (match(COMMA));
+			}
+			consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+			return new Expr.ArrayLiteral(token, elements);
 		}
-
-		if (match(LEFT_PAREN)) {
-			Expr expr = expression();
-			consume(RIGHT_PAREN, "Expect ')' after expression.");
-			return new Expr.Grouping(expr);
+		case LEFT_BRACE: {
+			// An empty map has no entries to give its types, so it is
+			// written map(key type, value type) instead.
+			advance();
+			if (check(RIGHT_BRACE)) {
+				throw error(peek(), "Write an empty map as map(key type, value type).");
+			}
+			List<Expr> keys = new ArrayList<>();
+			List<Expr> values = new ArrayList<>();
+			do {
+				keys.add(expression());
+				consume(COLON, "Expect ':' after map key.");
+				values.add(expression());
+			} while (match(COMMA));
+			consume(RIGHT_BRACE, "Expect '}' after map entries.");
+			return new Expr.MapLiteral(token, null, null, keys, values);
 		}
+		default:
+			throw error(token, "Expect expression.");
+		}
+	}
 
-		throw error(peek(), "Expect expression.");
+	/**
+	 * The casts <code>str(x)</code>, <code>double(x)</code> and
+	 * <code>bool(x)</code> look like calls, but are the only ones.
+	 */
+	private static boolean isCast(String name) {
+		return name.equals("str") || name.equals("double") || name.equals("bool");
 	}
 
 	private boolean match(TokenType... types) {
@@ -283,6 +582,10 @@ public class DamParser {
 	}
 
 	private ParseError error(Token token, String message) {
+		if (problems != null) {
+			problems.add(new DamDiagnostic(token.line, message));
+			return new ParseError();
+		}
 		DamCompiler.error(token, message);
 		return new ParseError();
 	}
@@ -300,6 +603,9 @@ public class DamParser {
 			case WHILE:
 			case PRINT:
 			case READ:
+			case SPAWN:
+			case SEND:
+			case MATCH:
 			case RETURN:
 				return;
 			}
@@ -0,0 +1,153 @@
+package damlang;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * The <code>DamPipeline</code> runs the lexer and the parser of one file on
+ * threads of their own with <code>--pipeline</code>, joined by bounded
+ * queues, so the three stages overlap: the lexer hands over its tokens in
+ * batches, the parser hands over each top-level statement as soon as it is
+ * complete, and the compiler's own thread takes the statements in, which
+ * lets the <code>DamTypeChecker</code> build their control-flow graph while
+ * the rest of the file is still being lexed and parsed.
+ *
+ * Code generation still waits for the last statement: every variable has
+ * one type for the whole program, and so one slot, which the type flow
+ * analysis only knows once it has seen everything.
+ *
+ * A full queue blocks the stage that fills it, so a slow stage holds back
+ * the one before it and at most a few batches of tokens are in flight.
+ * The parser sees the tokens as a list that waits for the lexer, and only
+ * the batch it is in and the one before are kept.  The lexer keeps its
+ * error until the parser gets to it, so of a syntax error and a later
+ * lexing error the syntax error is reported, where a compile without the
+ * pipeline reports the lexing error.
+ */
+class DamPipeline {
+	/**
+	 * About how many tokens the lexer hands over at a time.
+	 */
+	static final int BATCH = 4096;
+
+	/**
+	 * How many batches of tokens, or statements, each queue holds.
+	 */
+	static final int CAPACITY = 64;
+
+	// Ends the statements.
+	private static final Object END = new Object();
+
+	private final File file;
+	private final BlockingQueue<Object> batches = new ArrayBlockingQueue<>(CAPACITY);
+	private final BlockingQueue<Object> statements = new ArrayBlockingQueue<>(CAPACITY);
+
+	DamPipeline(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Lexes and parses the file, handing each top-level statement to
+	 * <code>each</code> on this thread in order.
+	 */
+	void run(Consumer<Stmt> each) {
+		start("dam-lexer", batches, () -> {
+			DamDiagnostic error = new DamLexer(file).lex(BATCH, batch -> put(batches, batch));
+			if (error != null) {
+				put(batches, error);
+			}
+		});
+		start("dam-parser", statements, () -> {
+			new DamParser(new TokenStream()).parse(stmt -> put(statements, stmt));
+			put(statements, END);
+		});
+
+		for (Object next = take(statements); next != END; next = take(statements)) {
+			if (next instanceof StackOverflowError) {
+				throw (StackOverflowError) next;
+			} else if (next instanceof Throwable) {
+				throw new IllegalStateException("The pipeline failed.", (Throwable) next);
+			}
+			each.accept((Stmt) next);
+		}
+	}
+
+	/**
+	 * Starts a stage, which hands whatever it throws to the next stage.  It
+	 * gets the compiler thread's stack, as the parser recurses into blocks.
+	 */
+	private static void start(String name, BlockingQueue<Object> output, Runnable stage) {
+		Thread thread = new Thread(null, () -> {
+			try {
+				stage.run();
+			} catch (Throwable e) {
+				put(output, e);
+			}
+		}, name, DamCompiler.STACK_SIZE);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void put(BlockingQueue<Object> queue, Object item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted in the pipeline.", e);
+		}
+	}
+
+	private static Object take(BlockingQueue<Object> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted in the pipeline.", e);
+		}
+	}
+
+	/**
+	 * The tokens as the parser sees them.  <code>get</code> waits for the
+	 * batch holding the token, and the parser never looks further back
+	 * than the token before the one it is on.  The size is the number of
+	 * tokens lexed so far.
+	 */
+	private class TokenStream extends AbstractList<Token> {
+		private List<Token> previous = List.of();
+		private List<Token> current = List.of();
+		private int base = 0; // the index of current's first token
+
+		@Override
+		public Token get(int index) {
+			while (index >= base + current.size()) {
+				Object next = take(batches);
+				if (next instanceof DamDiagnostic) {
+					DamDiagnostic error = (DamDiagnostic) next;
+					DamCompiler.error(error.line(), error.message());
+				} else if (next instanceof Throwable) {
+					throw new IllegalStateException("The lexer failed.", (Throwable) next);
+				}
+				@SuppressWarnings("unchecked")
+				List<Token> batch = (List<Token>) next;
+				base += current.size();
+				previous = current;
+				current = batch;
+			}
+			if (index >= base) {
+				return current.get(index - base);
+			} else if (index >= base - previous.size()) {
+				return previous.get(index - base + previous.size());
+			}
+			throw new IllegalStateException("Token " + index + " is no longer kept.");
+		}
+
+		@Override
+		public int size() {
+			return base + current.size();
+		}
+	}
+}
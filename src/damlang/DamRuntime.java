@@ -0,0 +1,416 @@
+package damlang;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+/**
+ * The <code>DamRuntime</code> is shipped next to compiled Dam programs and
+ * carries out the operations whose types the compiler could not fix.
+ *
+ * Values of a variable that holds several types are boxed as
+ * <code>Float</code>, <code>String</code>, <code>Boolean</code> or an array.
+ * Each dynamic operation in the generated code is a call site that starts
+ * out unlinked.  On its first call the site looks at the classes of its
+ * arguments, links a method specialized for exactly those classes behind a
+ * class check, and falls back to relinking when the check fails.  A site
+ * that only ever sees one combination therefore runs a type test and the
+ * specialized code; one that sees more than {@link #MAX_CACHE} combinations
+ * gives up on caching and uses the generic method, which dispatches on
+ * every call.
+ *
+ * The operations are <code>add</code>, <code>sub</code>, <code>mul</code>,
+ * <code>div</code>, the comparisons <code>eq</code>, <code>ne</code>,
+ * <code>lt</code>, <code>le</code>, <code>gt</code>, <code>ge</code>,
+ * <code>truthy</code>, <code>print</code> and the casts <code>toStr</code>,
+ * <code>toDouble</code> and <code>toBool</code>.  The specialized methods are
+ * named after the operation and the Dam type of the arguments, such as
+ * <code>addDouble</code> or <code>ltStr</code>.
+ */
+public class DamRuntime {
+	/**
+	 * How many argument-class combinations a call site caches before it
+	 * falls back to the generic operation.
+	 */
+	static final int MAX_CACHE = 4;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle FALLBACK;
+	private static final MethodHandle CHECK_CLASS;
+	private static final MethodHandle CHECK_CLASSES;
+
+	static {
+		try {
+			FALLBACK = LOOKUP.findVirtual(InlineCache.class, "fallback",
+					MethodType.methodType(Object.class, Object[].class));
+			CHECK_CLASS = LOOKUP.findStatic(DamRuntime.class, "checkClass",
+					MethodType.methodType(boolean.class, Class.class, Object.class));
+			CHECK_CLASSES = LOOKUP.findStatic(DamRuntime.class, "checkClasses",
+					MethodType.methodType(boolean.class, Class.class, Class.class,
+							Object.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * A call site with an inline cache of specialized targets.
+	 */
+	static class InlineCache extends MutableCallSite {
+		final String name;
+		int depth = 0;
+
+		InlineCache(String name, MethodType type) {
+			super(type);
+			this.name = name;
+			setTarget(FALLBACK.bindTo(this)
+					.asCollector(Object[].class, type.parameterCount())
+					.asType(type));
+		}
+
+		/**
+		 * Runs when no cached target matches: links a target for these
+		 * argument classes in front of the current one and calls it.
+		 */
+		Object fallback(Object[] args) throws Throwable {
+			MethodType type = type();
+			MethodHandle target;
+			if (depth >= MAX_CACHE) {
+				// Megamorphic: stop growing the chain of guards.
+				target = generic(name, type);
+				setTarget(target);
+			} else {
+				target = specialize(name, type, args);
+				MethodHandle guard = guardFor(args).asType(
+						type.changeReturnType(boolean.class));
+				setTarget(MethodHandles.guardWithTest(guard, target, getTarget()));
+				depth++;
+			}
+			return target.invokeWithArguments(args);
+		}
+	}
+
+	/**
+	 * The bootstrap method for a dynamic operation.
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) {
+		return new InlineCache(name, type);
+	}
+
+	/**
+	 * Links a dynamic operation for a class that keeps its call sites in
+	 * static final fields: returns an invoker that always calls the site's
+	 * current target.
+	 */
+	public static MethodHandle invoker(MethodHandles.Lookup caller, String name, String descriptor) {
+		MethodType type = MethodType.fromMethodDescriptorString(descriptor,
+				DamRuntime.class.getClassLoader());
+		return bootstrap(caller, name, type).dynamicInvoker();
+	}
+
+	private static MethodHandle guardFor(Object[] args) {
+		if (args.length == 1) {
+			return MethodHandles.insertArguments(CHECK_CLASS, 0, classOf(args[0]));
+		}
+		return MethodHandles.insertArguments(CHECK_CLASSES, 0, classOf(args[0]), classOf(args[1]));
+	}
+
+	private static Class<?> classOf(Object value) {
+		return value == null ? null : value.getClass();
+	}
+
+	private static boolean checkClass(Class<?> c, Object a) {
+		return classOf(a) == c;
+	}
+
+	private static boolean checkClasses(Class<?> c1, Class<?> c2, Object a, Object b) {
+		return classOf(a) == c1 && classOf(b) == c2;
+	}
+
+	/**
+	 * The method for an operation on these argument classes.  Operations
+	 * on mixed types have no specialized method and link to the generic
+	 * one, which reports the error.
+	 */
+	private static MethodHandle specialize(String name, MethodType type, Object[] args) {
+		String suffix = typeName(args[0]);
+		for (Object arg : args) {
+			if (!typeName(arg).equals(suffix)) {
+				return generic(name, type);
+			}
+		}
+		try {
+			return LOOKUP.findStatic(DamRuntime.class, name + suffix, type);
+		} catch (ReflectiveOperationException e) {
+			return generic(name, type);
+		}
+	}
+
+	private static MethodHandle generic(String name, MethodType type) {
+		try {
+			return LOOKUP.findStatic(DamRuntime.class, name, type);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No Dam operation " + name + type, e);
+		}
+	}
+
+	private static String typeName(Object value) {
+		if (value instanceof Float) return "Double";
+		if (value instanceof String) return "Str";
+		if (value instanceof Boolean) return "Bool";
+		if (value != null && value.getClass().isArray()) return "Array";
+		return "None";
+	}
+
+	private static String damType(Object value) {
+		if (value instanceof Float) return "double";
+		if (value instanceof String) return "str";
+		if (value instanceof Boolean) return "bool";
+		if (value == null) return "no value";
+		if (value instanceof DamDoubleMap || value instanceof DamStrMap) return "map";
+		return "array";
+	}
+
+	private static RuntimeException error(String op, Object a, Object b) {
+		return new IllegalArgumentException("Cannot apply " + op + " to '"
+				+ damType(a) + "' and '" + damType(b) + "'.");
+	}
+
+	// Specialized operations.
+
+	static Object addDouble(Object a, Object b) {
+		return (Float) a + (Float) b;
+	}
+
+	static Object subDouble(Object a, Object b) {
+		return (Float) a - (Float) b;
+	}
+
+	static Object mulDouble(Object a, Object b) {
+		return (Float) a * (Float) b;
+	}
+
+	static Object divDouble(Object a, Object b) {
+		return (Float) a / (Float) b;
+	}
+
+	static Object addStr(Object a, Object b) {
+		return ((String) a).concat((String) b);
+	}
+
+	static boolean eqDouble(Object a, Object b) {
+		return (float) (Float) a == (Float) b;
+	}
+
+	static boolean neDouble(Object a, Object b) {
+		return (float) (Float) a != (Float) b;
+	}
+
+	static boolean ltDouble(Object a, Object b) {
+		return (Float) a < (Float) b;
+	}
+
+	static boolean leDouble(Object a, Object b) {
+		return (Float) a <= (Float) b;
+	}
+
+	static boolean gtDouble(Object a, Object b) {
+		return (Float) a > (Float) b;
+	}
+
+	static boolean geDouble(Object a, Object b) {
+		return (Float) a >= (Float) b;
+	}
+
+	static boolean eqStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) == 0;
+	}
+
+	static boolean neStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) != 0;
+	}
+
+	static boolean ltStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) < 0;
+	}
+
+	static boolean leStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) <= 0;
+	}
+
+	static boolean gtStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) > 0;
+	}
+
+	static boolean geStr(Object a, Object b) {
+		return ((String) a).compareTo((String) b) >= 0;
+	}
+
+	static boolean eqBool(Object a, Object b) {
+		return (boolean) (Boolean) a == (Boolean) b;
+	}
+
+	static boolean neBool(Object a, Object b) {
+		return (boolean) (Boolean) a != (Boolean) b;
+	}
+
+	static boolean truthyDouble(Object a) {
+		return (Float) a != 0.0f;
+	}
+
+	static boolean truthyStr(Object a) {
+		return !((String) a).isEmpty();
+	}
+
+	static boolean truthyBool(Object a) {
+		return (Boolean) a;
+	}
+
+	static void printDouble(Object a) {
+		System.out.println((float) (Float) a);
+	}
+
+	static void printStr(Object a) {
+		System.out.println((String) a);
+	}
+
+	static void printBool(Object a) {
+		System.out.println((boolean) (Boolean) a);
+	}
+
+	static String toStrDouble(Object a) {
+		return DamConvert.toStr((Float) a);
+	}
+
+	static String toStrStr(Object a) {
+		return (String) a;
+	}
+
+	static String toStrBool(Object a) {
+		return String.valueOf((boolean) (Boolean) a);
+	}
+
+	static float toDoubleDouble(Object a) {
+		return (Float) a;
+	}
+
+	static float toDoubleStr(Object a) {
+		return DamConvert.toDouble((String) a);
+	}
+
+	static float toDoubleBool(Object a) {
+		return (Boolean) a ? 1f : 0f;
+	}
+
+	static boolean toBoolDouble(Object a) {
+		return truthyDouble(a);
+	}
+
+	static boolean toBoolStr(Object a) {
+		return truthyStr(a);
+	}
+
+	static boolean toBoolBool(Object a) {
+		return truthyBool(a);
+	}
+
+	// Generic operations, used by megamorphic sites and for errors.
+
+	static Object add(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return addDouble(a, b);
+		if (a instanceof String && b instanceof String) return addStr(a, b);
+		throw error("+", a, b);
+	}
+
+	static Object sub(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return subDouble(a, b);
+		throw error("-", a, b);
+	}
+
+	static Object mul(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return mulDouble(a, b);
+		throw error("*", a, b);
+	}
+
+	static Object div(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return divDouble(a, b);
+		throw error("/", a, b);
+	}
+
+	static boolean eq(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return eqDouble(a, b);
+		if (a instanceof String && b instanceof String) return eqStr(a, b);
+		if (a instanceof Boolean && b instanceof Boolean) return eqBool(a, b);
+		// Values of different types are never equal.
+		return a == b;
+	}
+
+	static boolean ne(Object a, Object b) {
+		return !eq(a, b);
+	}
+
+	static boolean lt(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return ltDouble(a, b);
+		if (a instanceof String && b instanceof String) return ltStr(a, b);
+		throw error("<", a, b);
+	}
+
+	static boolean le(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return leDouble(a, b);
+		if (a instanceof String && b instanceof String) return leStr(a, b);
+		throw error("<=", a, b);
+	}
+
+	static boolean gt(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return gtDouble(a, b);
+		if (a instanceof String && b instanceof String) return gtStr(a, b);
+		throw error(">", a, b);
+	}
+
+	static boolean ge(Object a, Object b) {
+		if (a instanceof Float && b instanceof Float) return geDouble(a, b);
+		if (a instanceof String && b instanceof String) return geStr(a, b);
+		throw error(">=", a, b);
+	}
+
+	static boolean truthy(Object a) {
+		if (a instanceof Float) return truthyDouble(a);
+		if (a instanceof String) return truthyStr(a);
+		if (a instanceof Boolean) return truthyBool(a);
+		throw new IllegalArgumentException("A '" + damType(a) + "' cannot be a condition.");
+	}
+
+	static String toStr(Object a) {
+		if (a instanceof Float) return toStrDouble(a);
+		if (a instanceof String) return toStrStr(a);
+		if (a instanceof Boolean) return toStrBool(a);
+		throw new IllegalArgumentException("Cannot convert a '" + damType(a) + "' to str.");
+	}
+
+	static float toDouble(Object a) {
+		if (a instanceof Float) return toDoubleDouble(a);
+		if (a instanceof String) return toDoubleStr(a);
+		if (a instanceof Boolean) return toDoubleBool(a);
+		throw new IllegalArgumentException("Cannot convert a '" + damType(a) + "' to double.");
+	}
+
+	static boolean toBool(Object a) {
+		if (a instanceof Float) return toBoolDouble(a);
+		if (a instanceof String) return toBoolStr(a);
+		if (a instanceof Boolean) return toBoolBool(a);
+		throw new IllegalArgumentException("Cannot convert a '" + damType(a) + "' to bool.");
+	}
+
+	static void print(Object a) {
+		if (a instanceof Float) printDouble(a);
+		else if (a instanceof String) printStr(a);
+		else if (a instanceof Boolean) printBool(a);
+		else if (a instanceof float[]) System.out.println(Arrays.toString((float[]) a));
+		else if (a instanceof boolean[]) System.out.println(Arrays.toString((boolean[]) a));
+		else if (a instanceof Object[]) System.out.println(Arrays.deepToString((Object[]) a));
+		else System.out.println(a);
+	}
+}
@@ -0,0 +1,421 @@
+package damlang;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamSimplifier</code> rewrites checked expressions into cheaper
+ * ones that always give the same value.  It runs after the
+ * <code>DamTypeChecker</code>, since most rules depend on the operands'
+ * types, and only rewrites operations whose operands have one known type.
+ *
+ * Doubles are JVM floats, and every rule gives the same float for every
+ * operand, NaN, infinities and both zeros included.  That is why
+ * <code>x + 0.0</code> is left alone (<code>-0.0 + 0.0</code> is
+ * <code>0.0</code>) while <code>x + -0.0</code> and <code>x - 0.0</code>
+ * are simplified, why only division by a power of two becomes a
+ * multiplication (its reciprocal is exact), and why <code>x * 0.0</code>
+ * and <code>x - x</code> are never folded.  <code>!(a &lt; b)</code> is
+ * not <code>a &gt;= b</code> when an operand is NaN, so it becomes the same
+ * comparison with its branch inverted instead.
+ *
+ * Constants are folded in float arithmetic, as the program would compute
+ * them, unless the result is infinite or NaN.
+ */
+public class DamSimplifier implements Expr.Visitor<Expr>, Stmt.Visitor<Void> {
+	private List<Stmt> statements;
+	private Map<String, Integer> counts = new LinkedHashMap<>();
+
+	public DamSimplifier(List<Stmt> statements) {
+		this.statements = statements;
+	}
+
+	/**
+	 * Simplifies every expression of the program in place.
+	 * @return how often each rule was applied, by rule
+	 */
+	public Map<String, Integer> simplify() {
+		for (Stmt s : statements) {
+			s.accept(this);
+		}
+		return counts;
+	}
+
+	private Expr simplify(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private Expr applied(String rule, Expr result) {
+		counts.merge(rule, 1, Integer::sum);
+		return result;
+	}
+
+	private static boolean typed(Expr expr, DamType type) {
+		return expr.type == type;
+	}
+
+	private static boolean isDouble(Expr expr, float value) {
+		return expr instanceof Literal && ((Literal) expr).value instanceof Double
+				&& Float.floatToIntBits(((Double) ((Literal) expr).value).floatValue()) == Float.floatToIntBits(value);
+	}
+
+	private static Literal literal(Object value, DamType type) {
+		Literal literal = new Literal(value);
+		literal.type = type;
+		return literal;
+	}
+
+	@Override
+	public Void visitBlockStmt(Block stmt) {
+		for (Stmt st : stmt.statements) {
+			st.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Expression stmt) {
+		stmt.expression = simplify(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(If stmt) {
+		stmt.condition = simplify(stmt.condition);
+		stmt.thenBranch.accept(this);
+		if (stmt.elseBranch != null) {
+			stmt.elseBranch.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Print stmt) {
+		stmt.expression = simplify(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitReadStmt(Read stmt) {
+		return null;
+	}
+
+	@Override
+	public Void visitLetStmt(Let stmt) {
+		stmt.initializer = simplify(stmt.initializer);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(While stmt) {
+		stmt.condition = simplify(stmt.condition);
+		stmt.body.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(For stmt) {
+		stmt.start = simplify(stmt.start);
+		stmt.end = simplify(stmt.end);
+		stmt.body.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitImportStmt(Import stmt) {
+		return null;
+	}
+
+	@Override
+	public Void visitParallelStmt(Parallel stmt) {
+		return stmt.loop.accept(this);
+	}
+
+	@Override
+	public Void visitSpawnStmt(Spawn stmt) {
+		return stmt.body.accept(this);
+	}
+
+	@Override
+	public Void visitSendStmt(Send stmt) {
+		stmt.value = simplify(stmt.value);
+		stmt.channel = simplify(stmt.channel);
+		return null;
+	}
+
+	@Override
+	public Void visitMatchStmt(Match stmt) {
+		stmt.subject = simplify(stmt.subject);
+		for (Stmt arm : stmt.arms) {
+			arm.accept(this);
+		}
+		if (stmt.otherwise != null) {
+			stmt.otherwise.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Expr visitBinaryExpr(Binary expr) {
+		expr.left = simplify(expr.left);
+		expr.right = simplify(expr.right);
+		Expr left = expr.left;
+		Expr right = expr.right;
+
+		if (typed(left, DamType.STR) && typed(right, DamType.STR) && expr.operator.type == TokenType.PLUS) {
+			if (left instanceof Literal && right instanceof Literal) {
+				return applied("fold concatenation", literal((String) ((Literal) left).value + ((Literal) right).value, DamType.STR));
+			}
+			if (left instanceof Literal && ((Literal) left).value.equals("")) return applied("\"\" + s", right);
+			if (right instanceof Literal && ((Literal) right).value.equals("")) return applied("s + \"\"", left);
+			return expr;
+		}
+		if (!typed(left, DamType.DOUBLE) || !typed(right, DamType.DOUBLE)) {
+			return expr;
+		}
+
+		switch (expr.operator.type) {
+		case PLUS:
+			if (isDouble(right, -0f)) return applied("x + -0.0", left);
+			if (isDouble(left, -0f)) return applied("x + -0.0", right);
+			break;
+		case MINUS:
+			if (isDouble(right, 0f)) return applied("x - 0.0", left);
+			break;
+		case STAR:
+			if (isDouble(right, 1f)) return applied("x * 1.0", left);
+			if (isDouble(left, 1f)) return applied("x * 1.0", right);
+			if (isDouble(right, -1f)) return applied("x * -1.0", negate(left, expr.operator));
+			if (isDouble(left, -1f)) return applied("x * -1.0", negate(right, expr.operator));
+			break;
+		case SLASH:
+			if (isDouble(right, 1f)) return applied("x / 1.0", left);
+			if (isDouble(right, -1f)) return applied("x / -1.0", negate(left, expr.operator));
+			if (right instanceof Literal && !(left instanceof Literal)) {
+				float divisor = ((Double) ((Literal) right).value).floatValue();
+				float reciprocal = 1f / divisor;
+				// Both are exact only for a power of two with a normal reciprocal.
+				if (Math.abs(divisor) == Math.scalb(1f, Math.getExponent(divisor))
+						&& Math.abs(reciprocal) >= Float.MIN_NORMAL && !Float.isInfinite(reciprocal)) {
+					expr.operator = new Token(TokenType.STAR, "*", null, expr.operator.line);
+					expr.right = literal((double) reciprocal, DamType.DOUBLE);
+					return applied("x / 2^k", expr);
+				}
+			}
+			break;
+		default:
+			return expr;
+		}
+
+		if (left instanceof Literal && right instanceof Literal) {
+			float a = ((Double) ((Literal) left).value).floatValue();
+			float b = ((Double) ((Literal) right).value).floatValue();
+			float value;
+			switch (expr.operator.type) {
+			case PLUS:	value = a + b; break;
+			case MINUS:	value = a - b; break;
+			case STAR:	value = a * b; break;
+			default:	value = a / b; break;
+			}
+			if (Float.isFinite(value)) {
+				return applied("fold arithmetic", literal((double) value, DamType.DOUBLE));
+			}
+		}
+		return expr;
+	}
+
+	/**
+	 * The double <code>-expr</code>, simplified.
+	 */
+	private Expr negate(Expr expr, Token at) {
+		Unary negation = new Unary(new Token(TokenType.MINUS, "-", null, at.line), expr);
+		negation.type = DamType.DOUBLE;
+		return unary(negation);
+	}
+
+	@Override
+	public Expr visitGroupingExpr(Grouping expr) {
+		// Nothing is generated for the parentheses themselves.
+		return simplify(expr.expression);
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitLogicalExpr(Logical expr) {
+		expr.left = simplify(expr.left);
+		expr.right = simplify(expr.right);
+		return expr;
+	}
+
+	@Override
+	public Expr visitVariableExpr(Variable expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Unary expr) {
+		expr.right = simplify(expr.right);
+		return unary(expr);
+	}
+
+	private Expr unary(Unary expr) {
+		Expr right = expr.right;
+		if (expr.operator.type == TokenType.MINUS && typed(right, DamType.DOUBLE)) {
+			if (right instanceof Literal) {
+				return applied("fold negation", literal((double) -((Double) ((Literal) right).value).floatValue(), DamType.DOUBLE));
+			}
+			if (right instanceof Unary && ((Unary) right).operator.type == TokenType.MINUS) {
+				return applied("-(-x)", ((Unary) right).right);
+			}
+		} else if (expr.operator.type == TokenType.BANG && typed(right, DamType.BOOL)) {
+			if (right instanceof Literal) {
+				return applied("fold !", literal(!((Boolean) ((Literal) right).value), DamType.BOOL));
+			}
+			if (right instanceof Unary && ((Unary) right).operator.type == TokenType.BANG) {
+				return applied("!!b", ((Unary) right).right);
+			}
+			if (DamTypeChecker.isComparison(right) && ((Binary) right).left.type != DamType.ANY
+					&& ((Binary) right).right.type != DamType.ANY) {
+				((Binary) right).negated = !((Binary) right).negated;
+				return applied("!(a < b)", right);
+			}
+		}
+		return expr;
+	}
+
+	@Override
+	public Expr visitAssignExpr(Assign expr) {
+		expr.right = simplify(expr.right);
+		return expr;
+	}
+
+	@Override
+	public Expr visitArrayLiteralExpr(ArrayLiteral expr) {
+		expr.elements.replaceAll(this::simplify);
+		return expr;
+	}
+
+	@Override
+	public Expr visitIndexExpr(Index expr) {
+		expr.array = simplify(expr.array);
+		expr.index = simplify(expr.index);
+		return expr;
+	}
+
+	@Override
+	public Expr visitSetIndexExpr(SetIndex expr) {
+		expr.array = simplify(expr.array);
+		expr.index = simplify(expr.index);
+		expr.value = simplify(expr.value);
+		return expr;
+	}
+
+	@Override
+	public Expr visitLengthExpr(Length expr) {
+		expr.array = simplify(expr.array);
+		return expr;
+	}
+
+	@Override
+	public Expr visitChannelExpr(Channel expr) {
+		expr.capacity = simplify(expr.capacity);
+		return expr;
+	}
+
+	@Override
+	public Expr visitReceiveExpr(Receive expr) {
+		expr.channel = simplify(expr.channel);
+		return expr;
+	}
+
+	/**
+	 * Casts to the type a value already has are dropped, and casts of
+	 * constants are done now, with the runtime's own conversions.  A string
+	 * that is not a number is left to fail when the program runs.
+	 */
+	@Override
+	public Expr visitCastExpr(Cast expr) {
+		expr.value = simplify(expr.value);
+		Expr value = expr.value;
+		if (value.type == expr.type) {
+			return applied("cast to own type", value);
+		}
+		if (!(value instanceof Literal) || ((Literal) value).value == null || value.type == DamType.ANY) {
+			return expr;
+		}
+
+		Object constant = ((Literal) value).value;
+		String rule = "fold " + expr.name.lexeme + "()";
+		if (expr.type == DamType.STR) {
+			String text = constant instanceof Double ? DamConvert.toStr(((Double) constant).floatValue())
+					: constant.toString();
+			return applied(rule, literal(text, DamType.STR));
+		} else if (expr.type == DamType.DOUBLE) {
+			float number;
+			if (constant instanceof Boolean) {
+				number = (Boolean) constant ? 1f : 0f;
+			} else {
+				try {
+					number = DamConvert.toDouble((String) constant);
+				} catch (NumberFormatException e) {
+					return expr;
+				}
+			}
+			// Like folded arithmetic, only finite constants are written out.
+			return Float.isFinite(number) ? applied(rule, literal((double) number, DamType.DOUBLE)) : expr;
+		} else {
+			boolean truth = constant instanceof Double ? ((Double) constant).floatValue() != 0f
+					: !((String) constant).isEmpty();
+			return applied(rule, literal(truth, DamType.BOOL));
+		}
+	}
+
+	@Override
+	public Expr visitMapLiteralExpr(MapLiteral expr) {
+		expr.keys.replaceAll(this::simplify);
+		expr.values.replaceAll(this::simplify);
+		return expr;
+	}
+
+	@Override
+	public Expr visitContainsExpr(Contains expr) {
+		expr.map = simplify(expr.map);
+		expr.key = simplify(expr.key);
+		return expr;
+	}
+}
@@ -0,0 +1,167 @@
+package damlang;
+
+/**
+ * A <code>DamStrMap</code> is a Dam map with string keys, in one open
+ * addressing table probed linearly from a Fibonacci hash of each key's
+ * hash code.  The hash codes are kept next to the keys, so a probe only
+ * compares strings whose hashes match and growing the table hashes
+ * nothing again.
+ *
+ * As in a <code>DamDoubleMap</code>, doubles and bools are kept in a
+ * <code>float[]</code>, a bool as 1 or 0, and strings in a
+ * <code>String[]</code>.
+ */
+public final class DamStrMap {
+	private final int kind;
+	private String[] keys;
+	private int[] hashes;
+	private float[] numbers;
+	private String[] strings;
+	private int size = 0;
+	private int shift;
+
+	/**
+	 * @param kind what the values are, one of the
+	 * <code>DamDoubleMap</code> value kinds
+	 * @param expected how many keys the map is made with
+	 */
+	public DamStrMap(int kind, int expected) {
+		this.kind = kind;
+		allocate(Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) * 2);
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		hashes = new int[capacity];
+		if (kind == DamDoubleMap.STR_VALUES) {
+			strings = new String[capacity];
+		} else {
+			numbers = new float[capacity];
+		}
+		shift = 32 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	/**
+	 * The slot holding the key, or the empty slot it would go in.
+	 */
+	private int find(String key, int hash) {
+		int mask = keys.length - 1;
+		int i = (hash * 0x9E3779B9) >>> shift;
+		while (keys[i] != null && (hashes[i] != hash || !keys[i].equals(key))) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * The slot holding the key.
+	 * @throws IllegalArgumentException if the map has no such key
+	 */
+	private int slotOf(String key) {
+		int i = find(key, key.hashCode());
+		if (keys[i] == null) {
+			throw new IllegalArgumentException("The map has no key \"" + key + "\".");
+		}
+		return i;
+	}
+
+	/**
+	 * The slot for the key, which is added if it is new.  Adding it may
+	 * grow the table, so the value array is only read afterwards.
+	 */
+	private int slotFor(String key) {
+		int hash = key.hashCode();
+		int i = find(key, hash);
+		if (keys[i] == null) {
+			// Kept at most half full, so probes stay short.
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				i = find(key, hash);
+			}
+			keys[i] = key;
+			hashes[i] = hash;
+			size++;
+		}
+		return i;
+	}
+
+	private void grow() {
+		String[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		float[] oldNumbers = numbers;
+		String[] oldStrings = strings;
+		allocate(oldKeys.length * 2);
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null) continue;
+			// The keys are all different, so only an empty slot is needed.
+			int i = (oldHashes[j] * 0x9E3779B9) >>> shift;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			hashes[i] = oldHashes[j];
+			if (oldStrings != null) {
+				strings[i] = oldStrings[j];
+			} else {
+				numbers[i] = oldNumbers[j];
+			}
+		}
+	}
+
+	public boolean contains(String key) {
+		return keys[find(key, key.hashCode())] != null;
+	}
+
+	public float getDouble(String key) {
+		return numbers[slotOf(key)];
+	}
+
+	public String getStr(String key) {
+		return strings[slotOf(key)];
+	}
+
+	public boolean getBool(String key) {
+		return numbers[slotOf(key)] != 0;
+	}
+
+	public void putDouble(String key, float value) {
+		int i = slotFor(key);
+		numbers[i] = value;
+	}
+
+	public void putStr(String key, String value) {
+		int i = slotFor(key);
+		strings[i] = value;
+	}
+
+	public void putBool(String key, boolean value) {
+		int i = slotFor(key);
+		numbers[i] = value ? 1 : 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The entries as <code>{key: value, ...}</code>, in no particular order.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == null) continue;
+			if (text.length() > 1) text.append(", ");
+			text.append(keys[i]).append(": ");
+			if (kind == DamDoubleMap.STR_VALUES) {
+				text.append(strings[i]);
+			} else if (kind == DamDoubleMap.BOOL_VALUES) {
+				text.append(numbers[i] != 0);
+			} else {
+				text.append(numbers[i]);
+			}
+		}
+		return text.append('}').toString();
+	}
+}
@@ -0,0 +1,63 @@
+package damlang;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The <code>DamTasks</code> runs the <code>spawn</code> blocks of a Dam
+ * program, each on a virtual thread of its own, so thousands of tasks
+ * blocked on <code>read</code> or on a channel cost little more than their
+ * stacks.  It is shipped next to compiled Dam programs that use them.
+ *
+ * The compiler turns a spawn block into a static method taking the
+ * variables the block reads from outside, whose values are copied when the
+ * task starts.  A program that spawns tasks waits for all of them before
+ * it ends, and exits with status 1 if any of them failed.
+ */
+public class DamTasks {
+	private static final Queue<Thread> tasks = new ConcurrentLinkedQueue<>();
+	private static volatile boolean failed = false;
+
+	/**
+	 * Starts a task running <code>body</code> with the given arguments.
+	 */
+	public static void spawn(MethodHandle body, Object[] captures) {
+		MethodHandle task = MethodHandles.insertArguments(body, 0, captures);
+		Thread thread = Thread.ofVirtual().unstarted(() -> run(task));
+		tasks.add(thread);
+		thread.start();
+	}
+
+	private static void run(MethodHandle task) {
+		try {
+			task.invokeExact();
+		} catch (RuntimeException | Error e) {
+			failed = true;
+			throw e;
+		} catch (Throwable t) {
+			failed = true;
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * Waits for every task, including those started by other tasks while
+	 * waiting.
+	 */
+	public static void joinAll() {
+		Thread task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+}
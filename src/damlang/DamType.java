@@ -0,0 +1,175 @@
+package damlang;
+
+/**
+ * The types of Dam values, recorded on each expression by the
+ * <code>DamTypeChecker</code>.  Dam doubles are JVM floats.
+ * <code>ANY</code> is a boxed value whose type is only known at run time.
+ * <code>INT</code> is never the type of a Dam value; it is for the
+ * compiler's own int locals, such as loop counters.  Maps are keyed by
+ * doubles or strings, with a runtime class for each kind of key.
+ */
+public enum DamType {
+	DOUBLE("double", "F"),
+	STR("str", "Ljava/lang/String;"),
+	BOOL("bool", "Z"),
+	DOUBLE_ARRAY("double[]", "[F"),
+	STR_ARRAY("str[]", "[Ljava/lang/String;"),
+	BOOL_ARRAY("bool[]", "[Z"),
+	DOUBLE_CHANNEL("channel double", "Ldamlang/DamChannel;"),
+	STR_CHANNEL("channel str", "Ldamlang/DamChannel;"),
+	BOOL_CHANNEL("channel bool", "Ldamlang/DamChannel;"),
+	DOUBLE_DOUBLE_MAP("map(double, double)", "Ldamlang/DamDoubleMap;"),
+	DOUBLE_STR_MAP("map(double, str)", "Ldamlang/DamDoubleMap;"),
+	DOUBLE_BOOL_MAP("map(double, bool)", "Ldamlang/DamDoubleMap;"),
+	STR_DOUBLE_MAP("map(str, double)", "Ldamlang/DamStrMap;"),
+	STR_STR_MAP("map(str, str)", "Ldamlang/DamStrMap;"),
+	STR_BOOL_MAP("map(str, bool)", "Ldamlang/DamStrMap;"),
+	ANY("any", "Ljava/lang/Object;"),
+	INT("int", "I");
+
+	/** The name used in Dam error messages. */
+	public final String damName;
+
+	/** The JVM type descriptor. */
+	public final String descriptor;
+
+	DamType(String damName, String descriptor) {
+		this.damName = damName;
+		this.descriptor = descriptor;
+	}
+
+	public boolean isArray() {
+		return this == DOUBLE_ARRAY || this == STR_ARRAY || this == BOOL_ARRAY;
+	}
+
+	public boolean isChannel() {
+		return this == DOUBLE_CHANNEL || this == STR_CHANNEL || this == BOOL_CHANNEL;
+	}
+
+	public boolean isMap() {
+		return keyType() != null;
+	}
+
+	/**
+	 * The type of a map's keys.
+	 */
+	public DamType keyType() {
+		switch (this) {
+		case DOUBLE_DOUBLE_MAP:
+		case DOUBLE_STR_MAP:
+		case DOUBLE_BOOL_MAP:	return DOUBLE;
+		case STR_DOUBLE_MAP:
+		case STR_STR_MAP:
+		case STR_BOOL_MAP:		return STR;
+		default:				return null;
+		}
+	}
+
+	/**
+	 * The type of an array's elements, of the values on a channel or of a
+	 * map's values.
+	 */
+	public DamType elementType() {
+		switch (this) {
+		case DOUBLE_ARRAY:	return DOUBLE;
+		case STR_ARRAY:		return STR;
+		case BOOL_ARRAY:	return BOOL;
+		case DOUBLE_CHANNEL:	return DOUBLE;
+		case STR_CHANNEL:	return STR;
+		case BOOL_CHANNEL:	return BOOL;
+		case DOUBLE_DOUBLE_MAP:	return DOUBLE;
+		case DOUBLE_STR_MAP:	return STR;
+		case DOUBLE_BOOL_MAP:	return BOOL;
+		case STR_DOUBLE_MAP:	return DOUBLE;
+		case STR_STR_MAP:		return STR;
+		case STR_BOOL_MAP:		return BOOL;
+		default:			return null;
+		}
+	}
+
+	/**
+	 * The array type with this element type, or null if there is none.
+	 */
+	public DamType arrayOf() {
+		switch (this) {
+		case DOUBLE:	return DOUBLE_ARRAY;
+		case STR:		return STR_ARRAY;
+		case BOOL:		return BOOL_ARRAY;
+		default:		return null;
+		}
+	}
+
+	/**
+	 * The channel type with this element type, or null if there is none.
+	 */
+	public DamType channelOf() {
+		switch (this) {
+		case DOUBLE:	return DOUBLE_CHANNEL;
+		case STR:		return STR_CHANNEL;
+		case BOOL:		return BOOL_CHANNEL;
+		default:		return null;
+		}
+	}
+
+	/**
+	 * The map type from this key type to the given value type, or null if
+	 * there is none.
+	 */
+	public DamType mapOf(DamType valueType) {
+		for (DamType type : values()) {
+			if (type.keyType() == this && type.elementType() == valueType) return type;
+		}
+		return null;
+	}
+
+	/**
+	 * The type with the given Dam name, or null if there is none.
+	 */
+	public static DamType named(String damName) {
+		for (DamType type : values()) {
+			if (type.damName.equals(damName)) return type;
+		}
+		return null;
+	}
+
+	/**
+	 * The opcode that loads a local of this type.
+	 */
+	public int loadOpcode() {
+		if (this == DOUBLE) return DamCode.FLOAD;
+		if (this == BOOL || this == INT) return DamCode.ILOAD;
+		return DamCode.ALOAD;
+	}
+
+	/**
+	 * The opcode that stores into a local of this type.
+	 */
+	public int storeOpcode() {
+		if (this == DOUBLE) return DamCode.FSTORE;
+		if (this == BOOL || this == INT) return DamCode.ISTORE;
+		return DamCode.ASTORE;
+	}
+
+	/**
+	 * The opcode that loads an element of an array of this element type.
+	 */
+	public int arrayLoadOpcode() {
+		if (this == DOUBLE) return DamCode.FALOAD;
+		if (this == BOOL) return DamCode.BALOAD;
+		return DamCode.AALOAD;
+	}
+
+	/**
+	 * The opcode that stores an element into an array of this element type.
+	 */
+	public int arrayStoreOpcode() {
+		if (this == DOUBLE) return DamCode.FASTORE;
+		if (this == BOOL) return DamCode.BASTORE;
+		return DamCode.AASTORE;
+	}
+
+	@Override
+	public String toString() {
+		return damName;
+	}
+}
@@ -0,0 +1,809 @@
+package damlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamTypeChecker</code> is the semantic-analysis pass that runs
+ * between the <code>DamParser</code> and the <code>DamGenerator</code>.
+ *
+ * It records a <code>DamType</code> on every expression, resolves every
+ * variable reference to its <code>DamEnvironment.Slot</code> and allocates
+ * the locals the generator needs for loops.  Variables imported from other
+ * modules are resolved to the module instead, and are read-only.
+ *
+ * The body of a <code>parallel for</code> runs on several threads at once,
+ * so it may only read the variables from outside it, which are recorded as
+ * the loop's captures, apart from the one it reduces into.  Variables it
+ * defines itself belong to it and cannot be used after the loop.  The body
+ * of a <code>spawn</code> runs alongside the rest of the program and
+ * follows the same rules.  Errors are collected rather
+ * than reported one at a time, so a program with several mistakes gets
+ * them all in one run.  Once the checker has succeeded the generator
+ * only reads what is stored on the nodes.
+ */
+public class DamTypeChecker implements Expr.Visitor<DamType>, Stmt.Visitor<Void> {
+	private List<Stmt> statements;
+	private DamEnvironment env = new DamEnvironment();
+	private DamTypeFlow flow;
+	private Map<String, DamType> importedTypes = new HashMap<>();
+	private List<String> errors = new ArrayList<>();
+	private Set<String> loopVariables = new HashSet<>();
+	private Map<String, DamModule> imported = new HashMap<>();
+
+	// The parallel loop or spawn block being checked, if any.
+	private Stmt concurrent;
+	private String reduced;
+	private Set<String> privates = new HashSet<>();
+	private Map<String, DamEnvironment.Slot> captures = new LinkedHashMap<>();
+	private Map<String, String> concurrentVariables = new HashMap<>();
+
+	public DamTypeChecker(List<Stmt> statements) {
+		this.statements = statements;
+		flow = new DamTypeFlow(statements, importedTypes);
+	}
+
+	/**
+	 * Starts on the statements added to the program so far, ahead of
+	 * <code>check</code>, so the pipelined compiler can work on them while
+	 * the rest of the file is still being parsed.
+	 */
+	public void take() {
+		flow.build();
+	}
+
+	/**
+	 * Checks the program, exiting with every error found if there are any.
+	 * @return the environment holding every variable's slot
+	 */
+	public DamEnvironment check() {
+		// Work out every variable's types up front so that each one gets a
+		// single slot: unboxed when it only ever holds one type, otherwise
+		// a boxed ANY.  Local 0 is the String[] passed to main.
+		Set<String> modules = new HashSet<>();
+		for (Stmt s : statements) {
+			if (!(s instanceof Import)) continue;
+			DamModule module = ((Import) s).module;
+			if (!modules.add(module.name)) {
+				error(((Import) s).name, module.name + " is already imported.");
+				continue;
+			}
+			for (Map.Entry<String, DamType> export : module.exports.entrySet()) {
+				DamModule other = imported.putIfAbsent(export.getKey(), module);
+				if (other != null) {
+					error(((Import) s).name, export.getKey() + " is exported by both "
+							+ other.name + " and " + module.name + ".");
+				}
+				importedTypes.put(export.getKey(), export.getValue());
+			}
+		}
+		flow.analyze();
+		for (Map.Entry<String, Set<DamType>> var : flow.variables().entrySet()) {
+			Set<DamType> types = var.getValue();
+			if (types.isEmpty()) continue;
+			env.define(var.getKey(), types.size() == 1 ? types.iterator().next() : DamType.ANY);
+		}
+		env.declare("args");
+
+		for (Stmt s : statements) {
+			s.accept(this);
+		}
+
+		if (!errors.isEmpty()) {
+			DamCompiler.errors(errors);
+		}
+		return env;
+	}
+
+	/**
+	 * Adds the variables a module exports, those defined by its top-level
+	 * <code>let</code>s, to its interface.
+	 */
+	public void exportTo(DamModule module) {
+		for (Stmt s : statements) {
+			if (s instanceof Let && ((Let) s).slot != null) {
+				module.exports.put(((Let) s).name.lexeme, ((Let) s).slot.type);
+			}
+		}
+	}
+
+	/**
+	 * True for the operators that compare two values.
+	 */
+	static boolean isComparison(Expr expr) {
+		if (!(expr instanceof Binary)) return false;
+
+		switch (((Binary) expr).operator.type) {
+		case BANG_EQUAL:
+		case EQUAL_EQUAL:
+		case GREATER:
+		case GREATER_EQUAL:
+		case LESS:
+		case LESS_EQUAL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private DamType error(Token token, String msg) {
+		errors.add("Line " + token.line + ": " + msg);
+		return null;
+	}
+
+	private DamType error(String msg) {
+		errors.add("Error: " + msg);
+		return null;
+	}
+
+	/**
+	 * Records an expression's type.  A null type means an error has already
+	 * been reported for it, and checks that depend on it are skipped.
+	 */
+	private DamType typed(Expr expr, DamType type) {
+		expr.type = type;
+		return type;
+	}
+
+	private DamEnvironment.Slot resolve(Token name) {
+		if (imported.containsKey(name.lexeme)) {
+			return null; // reported by checkAssignable
+		}
+		if (concurrentVariables.containsKey(name.lexeme)) {
+			error(name, name.lexeme + " belongs to " + concurrentVariables.get(name.lexeme)
+					+ " and cannot be used outside it.");
+			return null;
+		}
+		if (!env.isDeclared(name.lexeme)) {
+			error(name, "Undefined variable " + name.lexeme);
+			return null;
+		}
+		return env.get(name.lexeme);
+	}
+
+	private void checkAssignable(Token name) {
+		if (imported.containsKey(name.lexeme)) {
+			error(name, "Cannot assign to " + name.lexeme + ", which is imported from "
+					+ imported.get(name.lexeme).name + ".");
+		} else if (isShared(name.lexeme)) {
+			error(name, "Cannot assign to " + name.lexeme + " inside a "
+					+ (concurrent instanceof Spawn ? "spawn block, which shares it with the rest of the program."
+							: "parallel loop, where every iteration shares it."));
+		} else if (loopVariables.contains(name.lexeme)) {
+			error(name, "Cannot assign to a loop variable inside its loop.");
+		}
+	}
+
+	/**
+	 * Reports a store into a map from outside a parallel loop or spawn
+	 * block.  Unlike an array, whose elements are separate, a map's table
+	 * is shared by every key and can grow, so concurrent puts race.
+	 */
+	private void checkSharedMap(Expr map, Token bracket) {
+		while (map instanceof Grouping) {
+			map = ((Grouping) map).expression;
+		}
+		if (map instanceof Variable && isShared(((Variable) map).name.lexeme)) {
+			String name = ((Variable) map).name.lexeme;
+			error(bracket, "Cannot store into the map " + name + " inside a "
+					+ (concurrent instanceof Spawn ? "spawn block, which shares it with the rest of the program."
+							: "parallel loop, where every iteration shares it."));
+		}
+	}
+
+	/**
+	 * True inside a parallel loop or spawn block for a variable from outside
+	 * it, other than the one a loop reduces into.
+	 */
+	private boolean isShared(String name) {
+		return concurrent != null && !privates.contains(name) && !name.equals(reduced);
+	}
+
+	/**
+	 * Notes a variable being defined, which inside a parallel loop or spawn
+	 * block makes it the body's own unless it is shared.
+	 */
+	private void defineInBody(Token name) {
+		if (concurrent == null || privates.contains(name.lexeme)) return;
+
+		if (env.isDeclared(name.lexeme)) {
+			checkAssignable(name);
+		} else {
+			privates.add(name.lexeme);
+		}
+	}
+
+	/**
+	 * Makes a variable usable from here on.  A variable that belonged to an
+	 * earlier parallel loop or spawn block is a new one from here on.
+	 */
+	private void declare(Token name) {
+		env.declare(name.lexeme);
+		concurrentVariables.remove(name.lexeme);
+	}
+
+	private void checkCondition(Expr condition) {
+		DamType type = condition.accept(this);
+		if (type != null && (type.isArray() || type.isChannel() || type.isMap())) {
+			error("The condition is wrong: " + type);
+		}
+	}
+
+	@Override
+	public Void visitBlockStmt(Block stmt) {
+		for (Stmt st : stmt.statements) {
+			st.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Expression stmt) {
+		stmt.expression.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(If stmt) {
+		checkCondition(stmt.condition);
+		stmt.thenBranch.accept(this);
+		if (stmt.elseBranch != null) {
+			stmt.elseBranch.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Print stmt) {
+		DamType type = stmt.expression.accept(this);
+		if (type != null && type.isChannel()) {
+			error("Cannot print a channel.");
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitReadStmt(Read stmt) {
+		stmt.slot = resolve(stmt.name);
+		checkAssignable(stmt.name);
+		return null;
+	}
+
+	@Override
+	public Void visitImportStmt(Import stmt) {
+		return null;
+	}
+
+	@Override
+	public Void visitLetStmt(Let stmt) {
+		if (imported.containsKey(stmt.name.lexeme)) {
+			error(stmt.name, stmt.name.lexeme + " is already imported from "
+					+ imported.get(stmt.name.lexeme).name + ".");
+		} else if (loopVariables.contains(stmt.name.lexeme)) {
+			error(stmt.name, "Cannot redeclare a loop variable inside its loop.");
+		}
+		DamType type = stmt.initializer.accept(this);
+		defineInBody(stmt.name);
+		declare(stmt.name);
+		stmt.slot = env.get(stmt.name.lexeme);
+		if (stmt.slot == null && type != null) {
+			error(stmt.name, "Cannot work out the type of " + stmt.name.lexeme + ".");
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(While stmt) {
+		checkCondition(stmt.condition);
+		stmt.body.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(For stmt) {
+		checkBounds(stmt);
+		checkLoop(stmt);
+		return null;
+	}
+
+	private void checkBounds(For stmt) {
+		DamType start = stmt.start.accept(this);
+		DamType end = stmt.end.accept(this);
+		if ((start != null && start != DamType.DOUBLE) || (end != null && end != DamType.DOUBLE)) {
+			error(stmt.name, "Loop bounds must be doubles.");
+		}
+	}
+
+	/**
+	 * Checks a counted loop apart from its bounds.
+	 */
+	private void checkLoop(For stmt) {
+		if (imported.containsKey(stmt.name.lexeme)) {
+			checkAssignable(stmt.name);
+		}
+		defineInBody(stmt.name);
+		stmt.counter = env.newSlot(DamType.INT).index;
+		stmt.limit = env.newSlot(DamType.INT).index;
+		declare(stmt.name);
+		stmt.slot = env.get(stmt.name.lexeme);
+
+		if (!loopVariables.add(stmt.name.lexeme)) {
+			error(stmt.name, "Loop variable is already in use by an enclosing loop.");
+			stmt.body.accept(this);
+			return;
+		}
+		stmt.body.accept(this);
+		loopVariables.remove(stmt.name.lexeme);
+	}
+
+	@Override
+	public Void visitParallelStmt(Parallel stmt) {
+		Token name = stmt.loop.name;
+		if (concurrent != null) {
+			error(name, concurrent instanceof Spawn ? "A spawn block cannot contain a parallel loop."
+					: "Parallel loops cannot be nested.");
+			return stmt.loop.accept(this);
+		}
+		if (env.isDeclared(name.lexeme)) {
+			error(name, "A parallel loop needs a new loop variable, but "
+					+ name.lexeme + " is already in use.");
+		}
+		if (stmt.result != null) {
+			stmt.slot = resolve(stmt.result);
+			if (stmt.slot != null && stmt.slot.type != DamType.DOUBLE) {
+				error(stmt.result, "Can only reduce into a double variable.");
+			}
+		}
+
+		// The body's method gets the range in two more locals.
+		stmt.from = env.newSlot(DamType.INT).index;
+		stmt.to = env.newSlot(DamType.INT).index;
+
+		// The bounds are evaluated before the loop starts, outside it.
+		checkBounds(stmt.loop);
+		concurrent = stmt;
+		reduced = stmt.result == null ? null : stmt.result.lexeme;
+		privates.add(name.lexeme);
+		checkLoop(stmt.loop);
+		concurrent = null;
+		reduced = null;
+
+		stmt.captures = endBody("the parallel loop on line " + name.line);
+		return null;
+	}
+
+	@Override
+	public Void visitSpawnStmt(Spawn stmt) {
+		if (concurrent != null) {
+			error(stmt.keyword, concurrent instanceof Spawn ? "Spawn blocks cannot be nested."
+					: "A parallel loop cannot contain a spawn block.");
+			return stmt.body.accept(this);
+		}
+
+		concurrent = stmt;
+		stmt.body.accept(this);
+		concurrent = null;
+
+		// The captures are passed to the body's method one by one.
+		stmt.captures = endBody("the spawn block on line " + stmt.line);
+		if (stmt.captures.size() > 255) {
+			error(stmt.keyword, "A spawn block can read at most 255 variables from outside it.");
+		}
+		return null;
+	}
+
+	/**
+	 * Finishes a parallel loop or spawn block, returning its captures.  Its
+	 * own variables go out of scope, so a later loop or block can use the
+	 * names again.
+	 */
+	private List<DamEnvironment.Slot> endBody(String owner) {
+		List<DamEnvironment.Slot> body = new ArrayList<>(captures.values());
+		for (String variable : privates) {
+			env.undeclare(variable);
+			concurrentVariables.put(variable, owner);
+		}
+		privates.clear();
+		captures.clear();
+		return body;
+	}
+
+	@Override
+	public Void visitSendStmt(Send stmt) {
+		DamType value = stmt.value.accept(this);
+		DamType channel = checkChannel(stmt.channel, stmt.keyword);
+		if (value != null && channel != null && value != DamType.ANY && value != channel.elementType()) {
+			error(stmt.keyword, "Cannot send '" + value + "' on a '" + channel + "'.");
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitMatchStmt(Match stmt) {
+		DamType type = stmt.subject.accept(this);
+		if (type != null && type != DamType.DOUBLE && type != DamType.STR && type != DamType.BOOL) {
+			error(stmt.keyword, "Can only match a double, str or bool, not '" + type + "'.");
+			type = null;
+		}
+		if (type != null) {
+			stmt.slot = env.newSlot(type);
+		}
+
+		Set<Object> seen = new HashSet<>();
+		for (List<Token> constants : stmt.values) {
+			for (Token constant : constants) {
+				Object value = caseValue(constant);
+				DamType caseType = value instanceof Float ? DamType.DOUBLE
+						: value instanceof String ? DamType.STR : DamType.BOOL;
+				if (type != null && caseType != type) {
+					error(constant, "Cannot match a '" + type + "' against a '" + caseType + "' case.");
+				} else if (!seen.add(value)) {
+					error(constant, "Duplicate case " + constant.lexeme + ".");
+				}
+			}
+		}
+		for (Stmt arm : stmt.arms) {
+			arm.accept(this);
+		}
+		if (stmt.otherwise != null) {
+			stmt.otherwise.accept(this);
+		}
+		return null;
+	}
+
+	/**
+	 * The value a case constant matches: a Float, as doubles are floats at
+	 * run time and <code>-0.0 == 0.0</code>, a String or a Boolean.
+	 */
+	static Object caseValue(Token constant) {
+		switch (constant.type) {
+		case NUMBER:	return ((Double) constant.literal).floatValue() + 0f;
+		case TRUE:		return true;
+		case FALSE:		return false;
+		default:		return constant.literal;
+		}
+	}
+
+	@Override
+	public DamType visitBinaryExpr(Binary expr) {
+		DamType ltype = expr.left.accept(this);
+		DamType rtype = expr.right.accept(this);
+		if (ltype == null || rtype == null) {
+			return typed(expr, null);
+		}
+
+		boolean comparison = isComparison(expr);
+		if (ltype == DamType.ANY || rtype == DamType.ANY) {
+			// Decided at run time.
+			if (ltype.isArray() || rtype.isArray()) {
+				return typed(expr, error(expr.operator, "Cannot apply "
+						+ expr.operator.lexeme + " to arrays here."));
+			} else if (ltype.isChannel() || rtype.isChannel()) {
+				return typed(expr, error(expr.operator, "Cannot apply "
+						+ expr.operator.lexeme + " to channels here."));
+			} else if (ltype.isMap() || rtype.isMap()) {
+				return typed(expr, error(expr.operator, "Cannot apply "
+						+ expr.operator.lexeme + " to maps here."));
+			}
+			return typed(expr, comparison ? DamType.BOOL : DamType.ANY);
+		}
+
+		if (ltype != rtype) {
+			return typed(expr, error(expr.operator, "Type mismatch.  Cannot apply "
+					+ expr.operator.lexeme + " to '" + ltype + "' and '" + rtype + "'."));
+		}
+
+		if (comparison) {
+			boolean equality = expr.operator.type == TokenType.EQUAL_EQUAL
+					|| expr.operator.type == TokenType.BANG_EQUAL;
+			if (ltype != DamType.DOUBLE && ltype != DamType.STR && !equality) {
+				return typed(expr, error(expr.operator, "Cannot apply "
+						+ expr.operator.lexeme + " to " + ltype + "."));
+			}
+			return typed(expr, DamType.BOOL);
+		}
+
+		if (ltype == DamType.DOUBLE
+				|| (ltype == DamType.STR && expr.operator.type == TokenType.PLUS)) {
+			return typed(expr, ltype);
+		}
+		return typed(expr, error(expr.operator, "Cannot apply "
+				+ expr.operator.lexeme + " to " + ltype + "."));
+	}
+
+	@Override
+	public DamType visitGroupingExpr(Grouping expr) {
+		return typed(expr, expr.expression.accept(this));
+	}
+
+	@Override
+	public DamType visitLiteralExpr(Literal expr) {
+		if (expr.value instanceof Double) return typed(expr, DamType.DOUBLE);
+		if (expr.value instanceof String) return typed(expr, DamType.STR);
+		if (expr.value instanceof Boolean) return typed(expr, DamType.BOOL);
+		return typed(expr, error("null has no type."));
+	}
+
+	@Override
+	public DamType visitLogicalExpr(Logical expr) {
+		DamType ltype = expr.left.accept(this);
+		DamType rtype = expr.right.accept(this);
+		if ((ltype != null && ltype != DamType.BOOL) || (rtype != null && rtype != DamType.BOOL)) {
+			return typed(expr, error(expr.operator, "The value needs to be a bool"));
+		}
+		return typed(expr, DamType.BOOL);
+	}
+
+	@Override
+	public DamType visitVariableExpr(Variable expr) {
+		expr.module = imported.get(expr.name.lexeme);
+		if (expr.module != null) {
+			return typed(expr, expr.module.exports.get(expr.name.lexeme));
+		}
+
+		expr.slot = resolve(expr.name);
+		if (expr.slot == null) {
+			return typed(expr, null);
+		}
+		if (isShared(expr.name.lexeme)) {
+			captures.put(expr.name.lexeme, expr.slot);
+		}
+
+		// Where only one of its types can reach, a boxed variable is used
+		// like any other.  Elsewhere it stays boxed and operations on it
+		// are dynamic.
+		Set<DamType> types = flow.typesOf(expr);
+		if (types.isEmpty()) {
+			return typed(expr, error(expr.name, "Variable has no value here."));
+		}
+		return typed(expr, types.size() == 1 ? types.iterator().next() : DamType.ANY);
+	}
+
+	@Override
+	public DamType visitUnaryExpr(Unary expr) {
+		DamType rtype = expr.right.accept(this);
+		if (rtype == null) {
+			return typed(expr, null);
+		}
+
+		if (expr.operator.type == TokenType.BANG) {
+			if (rtype != DamType.BOOL) {
+				return typed(expr, error(expr.operator, "Cannot apply '!' to non-boolean type."));
+			}
+		} else if (rtype != DamType.DOUBLE) {
+			return typed(expr, error(expr.operator, "Cannot negate a non double type."));
+		}
+		return typed(expr, rtype);
+	}
+
+	@Override
+	public DamType visitAssignExpr(Assign expr) {
+		DamType rtype = expr.right.accept(this);
+		expr.slot = resolve(expr.name);
+		checkAssignable(expr.name);
+		return typed(expr, rtype);
+	}
+
+	@Override
+	public DamType visitArrayLiteralExpr(ArrayLiteral expr) {
+		if (expr.elements.isEmpty()) {
+			return typed(expr, error(expr.bracket, "Cannot infer the element type of an empty array."));
+		}
+
+		DamType elemType = null;
+		for (Expr element : expr.elements) {
+			DamType type = element.accept(this);
+			if (type == null) {
+				return typed(expr, null);
+			} else if (elemType == null) {
+				elemType = type;
+			} else if (type != elemType) {
+				return typed(expr, error(expr.bracket, "Array elements must all be '"
+						+ elemType + "', found '" + type + "'."));
+			}
+		}
+
+		if (elemType == DamType.ANY) {
+			return typed(expr, error(expr.bracket, "The type of an array element must be known."));
+		} else if (elemType.arrayOf() == null) {
+			return typed(expr, error(expr.bracket, "Arrays of '" + elemType + "' are not supported."));
+		}
+		return typed(expr, elemType.arrayOf());
+	}
+
+	@Override
+	public DamType visitIndexExpr(Index expr) {
+		return typed(expr, checkIndex(expr.array, expr.index, expr.bracket));
+	}
+
+	@Override
+	public DamType visitSetIndexExpr(SetIndex expr) {
+		DamType elemType = checkIndex(expr.array, expr.index, expr.bracket);
+		DamType valueType = expr.value.accept(this);
+		if (elemType != null && expr.array.type.isMap()) {
+			checkSharedMap(expr.array, expr.bracket);
+		}
+		if (elemType != null && valueType != null && valueType != elemType) {
+			String container = expr.array.type.isMap() ? "a map" : "an array";
+			return typed(expr, error(expr.bracket, "Cannot store '" + valueType
+					+ "' in " + container + " of '" + elemType + "'."));
+		}
+		return typed(expr, elemType);
+	}
+
+	@Override
+	public DamType visitLengthExpr(Length expr) {
+		DamType type = expr.array.accept(this);
+		if (type != null && !type.isArray() && !type.isMap()) {
+			return typed(expr, error(expr.name, "Cannot take the length of '" + type + "'."));
+		}
+		return typed(expr, DamType.DOUBLE);
+	}
+
+	/**
+	 * Checks an array and an index into it, or a map and a key, returning
+	 * the element or value type.
+	 */
+	private DamType checkIndex(Expr array, Expr index, Token bracket) {
+		DamType type = array.accept(this);
+		if (type != null && type.isMap()) {
+			checkKey(type, index, bracket);
+			return type.elementType();
+		}
+		DamType indexType = index.accept(this);
+		if (indexType != null && indexType != DamType.DOUBLE) {
+			error(bracket, "Array index must be a double.");
+		}
+		if (type == null) {
+			return null;
+		} else if (!type.isArray()) {
+			return error(bracket, "Cannot index into '" + type + "'.");
+		}
+		return type.elementType();
+	}
+
+	private void checkKey(DamType map, Expr key, Token token) {
+		DamType keyType = key.accept(this);
+		if (keyType != null && keyType != map.keyType()) {
+			error(token, "A key of a '" + map + "' must be a " + map.keyType() + ", not '" + keyType + "'.");
+		}
+	}
+
+	@Override
+	public DamType visitMapLiteralExpr(MapLiteral expr) {
+		if (expr.keyType != null) {
+			DamType key = DamType.named(expr.keyType.lexeme);
+			if (key != DamType.DOUBLE && key != DamType.STR) {
+				return typed(expr, error(expr.keyType, "Map keys can only be double or str, not '"
+						+ expr.keyType.lexeme + "'."));
+			}
+			DamType value = DamType.named(expr.valueType.lexeme);
+			if (value == null || key.mapOf(value) == null) {
+				return typed(expr, error(expr.valueType, "Map values can only be double, str or bool, not '"
+						+ expr.valueType.lexeme + "'."));
+			}
+			return typed(expr, key.mapOf(value));
+		}
+
+		DamType keyType = entriesType(expr.keys, expr.brace, "keys");
+		DamType valueType = entriesType(expr.values, expr.brace, "values");
+		if (keyType == null || valueType == null) {
+			return typed(expr, null);
+		} else if (keyType != DamType.DOUBLE && keyType != DamType.STR) {
+			return typed(expr, error(expr.brace, "Map keys can only be double or str, not '" + keyType + "'."));
+		} else if (keyType.mapOf(valueType) == null) {
+			return typed(expr, error(expr.brace, "Map values can only be double, str or bool, not '"
+					+ valueType + "'."));
+		}
+		return typed(expr, keyType.mapOf(valueType));
+	}
+
+	/**
+	 * The one type of all of a map literal's keys or values.
+	 */
+	private DamType entriesType(List<Expr> entries, Token brace, String what) {
+		DamType entriesType = null;
+		boolean failed = false;
+		for (Expr entry : entries) {
+			DamType type = entry.accept(this);
+			if (type == null) {
+				failed = true;
+			} else if (entriesType == null) {
+				entriesType = type;
+			} else if (type != entriesType && !failed) {
+				failed = true;
+				error(brace, "Map " + what + " must all be '" + entriesType + "', found '" + type + "'.");
+			}
+		}
+		return failed ? null : entriesType;
+	}
+
+	@Override
+	public DamType visitContainsExpr(Contains expr) {
+		DamType type = expr.map.accept(this);
+		if (type != null && !type.isMap()) {
+			expr.key.accept(this);
+			return typed(expr, error(expr.name, "Only maps have 'contains', not '" + type + "'."));
+		} else if (type != null) {
+			checkKey(type, expr.key, expr.name);
+		} else {
+			expr.key.accept(this);
+		}
+		return typed(expr, DamType.BOOL);
+	}
+
+	@Override
+	public DamType visitChannelExpr(Channel expr) {
+		DamType capacity = expr.capacity.accept(this);
+		if (capacity != null && capacity != DamType.DOUBLE) {
+			error(expr.keyword, "Channel capacity must be a double.");
+		}
+		DamType element = DamType.named(expr.elementType.lexeme);
+		if (element == null || element.channelOf() == null) {
+			return typed(expr, error(expr.elementType, "Channels can only carry double, str or bool, not '"
+					+ expr.elementType.lexeme + "'."));
+		}
+		return typed(expr, element.channelOf());
+	}
+
+	@Override
+	public DamType visitReceiveExpr(Receive expr) {
+		DamType channel = checkChannel(expr.channel, expr.keyword);
+		return typed(expr, channel == null ? null : channel.elementType());
+	}
+
+	/**
+	 * Checks the channel of a send or receive, returning its type.
+	 */
+	private DamType checkChannel(Expr channel, Token keyword) {
+		DamType type = channel.accept(this);
+		if (type != null && !type.isChannel()) {
+			return error(keyword, "Cannot " + keyword.lexeme + " on '" + type + "', which is not a channel.");
+		}
+		return type;
+	}
+
+	@Override
+	public DamType visitCastExpr(Cast expr) {
+		DamType type = expr.value.accept(this);
+		if (type != null && (type.isArray() || type.isChannel() || type.isMap())) {
+			error(expr.name, "Cannot convert a '" + type + "' to " + expr.name.lexeme + ".");
+		}
+		return typed(expr, DamType.named(expr.name.lexeme));
+	}
+}
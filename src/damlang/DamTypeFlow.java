@@ -0,0 +1,597 @@
+package damlang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamTypeFlow</code> works out which types each variable can
+ * hold at every point of a program.
+ *
+ * The statements are split into a control-flow graph of basic blocks and
+ * a forward dataflow analysis runs over it until nothing changes.  Where
+ * control flow joins (after an if, at a loop header) the incoming type sets
+ * are merged, so a variable retyped on one branch or inside a loop body is
+ * seen with both types exactly where it can have either.
+ *
+ * Tracking every variable in every block costs blocks times variables, so
+ * a cheaper flow-insensitive pass runs first.  A variable it finds holding a
+ * single type, first defined at the top level of the program, has that type
+ * everywhere it can be used and is left out of the dataflow states; only the
+ * rest are tracked block by block.
+ *
+ * Variables imported from other modules have the one type they are
+ * exported with, and cannot be assigned, so they are never tracked.
+ *
+ * The <code>DamTypeChecker</code> uses the results in two ways: a variable
+ * that only ever holds one type gets an unboxed slot of that type, and every
+ * use of a variable knows which types can reach it.
+ */
+public class DamTypeFlow implements Stmt.Visitor<Void>, Expr.Visitor<Set<DamType>> {
+	/**
+	 * A straight-line run of statements and conditions.  Nodes are simple
+	 * statements (let, print, read, send, expression statements), condition
+	 * expressions, or a <code>For</code> standing for the loop variable
+	 * being set.
+	 */
+	private static class BasicBlock {
+		List<Object> nodes = new ArrayList<>();
+		List<BasicBlock> successors = new ArrayList<>();
+		Map<String, Set<DamType>> in = null; // null until some path reaches it
+	}
+
+	private List<Stmt> statements;
+	private Map<String, DamType> imported;
+	private List<BasicBlock> blocks = new ArrayList<>();
+	private BasicBlock entry;
+	private int built = 0;
+	private BasicBlock current;
+	private int depth = 0;
+	private Set<String> defined = new HashSet<>();
+	private Set<String> nested = new HashSet<>();
+
+	private boolean global;
+	private boolean changed;
+	private Set<String> tracked = new HashSet<>();
+	private Map<String, Set<DamType>> state;
+	private Map<Expr, Set<DamType>> exprTypes = new HashMap<>();
+	private Map<String, Set<DamType>> varTypes = new LinkedHashMap<>();
+
+	public DamTypeFlow(List<Stmt> statements, Map<String, DamType> imported) {
+		this.statements = statements;
+		this.imported = imported;
+	}
+
+	/**
+	 * Adds the statements appended to the program since the last call to
+	 * the control-flow graph.  The pipelined compiler calls this while the
+	 * rest of the file is parsed; <code>analyze</code> adds any left.
+	 * Building the graph looks at no types, imported or not.
+	 */
+	public void build() {
+		if (entry == null) {
+			varTypes.put("args", single(DamType.STR_ARRAY));
+			entry = newBlock();
+			current = entry;
+		}
+		while (built < statements.size()) {
+			statements.get(built++).accept(this);
+		}
+	}
+
+	/**
+	 * Builds the rest of the control-flow graph and runs the analysis to a
+	 * fixed point.
+	 */
+	public void analyze() {
+		build();
+
+		// Flow-insensitive: every variable's types anywhere, to a fixed point.
+		global = true;
+		do {
+			changed = false;
+			for (BasicBlock block : blocks) {
+				for (Object node : block.nodes) {
+					transfer(node);
+				}
+			}
+		} while (changed);
+		global = false;
+
+		for (Map.Entry<String, Set<DamType>> var : varTypes.entrySet()) {
+			if (var.getValue().size() != 1 || nested.contains(var.getKey())) {
+				tracked.add(var.getKey());
+				var.getValue().clear();
+			}
+		}
+
+		entry.in = new HashMap<>();
+
+		Deque<BasicBlock> worklist = new ArrayDeque<>();
+		worklist.add(entry);
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.poll();
+			state = copy(block.in);
+			for (Object node : block.nodes) {
+				transfer(node);
+			}
+			for (BasicBlock succ : block.successors) {
+				if (merge(succ)) {
+					worklist.add(succ);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The types an expression can have where it is evaluated.  Empty for
+	 * expressions that never get a type, such as uses of undefined variables.
+	 */
+	public Set<DamType> typesOf(Expr expr) {
+		return exprTypes.getOrDefault(expr, EnumSet.noneOf(DamType.class));
+	}
+
+	/**
+	 * Every variable in the order first assigned, with all the types it
+	 * holds anywhere in the program.
+	 */
+	public Map<String, Set<DamType>> variables() {
+		return varTypes;
+	}
+
+	private void transfer(Object node) {
+		if (node instanceof Let) {
+			Let let = (Let) node;
+			set(let.name.lexeme, let.initializer.accept(this));
+		} else if (node instanceof Read) {
+			set(((Read) node).name.lexeme, single(DamType.STR));
+		} else if (node instanceof For) {
+			set(((For) node).name.lexeme, single(DamType.DOUBLE));
+		} else if (node instanceof Expression) {
+			((Expression) node).expression.accept(this);
+		} else if (node instanceof Print) {
+			((Print) node).expression.accept(this);
+		} else if (node instanceof Send) {
+			((Send) node).value.accept(this);
+			((Send) node).channel.accept(this);
+		} else {
+			((Expr) node).accept(this);
+		}
+	}
+
+	private void set(String name, Set<DamType> types) {
+		changed |= varTypes.computeIfAbsent(name, k -> EnumSet.noneOf(DamType.class)).addAll(types);
+		if (!global && tracked.contains(name)) {
+			state.put(name, EnumSet.copyOf(types));
+		}
+	}
+
+	private Set<DamType> lookup(String name) {
+		Set<DamType> types = global || !tracked.contains(name) ? varTypes.get(name) : state.get(name);
+		if (types == null && imported.containsKey(name)) {
+			return single(imported.get(name));
+		}
+		return types == null ? EnumSet.noneOf(DamType.class) : types;
+	}
+
+	/**
+	 * Notes a variable being defined, remembering the ones whose first
+	 * definition only runs on some paths.
+	 */
+	private void define(String name) {
+		if (defined.add(name)) {
+			varTypes.put(name, EnumSet.noneOf(DamType.class));
+			if (depth > 0) nested.add(name);
+		}
+	}
+
+	/**
+	 * Merges the current state into a successor's entry state, returning
+	 * true if the successor learned anything new.
+	 */
+	private boolean merge(BasicBlock succ) {
+		if (succ.in == null) {
+			succ.in = copy(state);
+			return true;
+		}
+
+		boolean changed = false;
+		for (Map.Entry<String, Set<DamType>> var : state.entrySet()) {
+			changed |= succ.in.computeIfAbsent(var.getKey(), k -> EnumSet.noneOf(DamType.class))
+					.addAll(var.getValue());
+		}
+		return changed;
+	}
+
+	private static Map<String, Set<DamType>> copy(Map<String, Set<DamType>> from) {
+		Map<String, Set<DamType>> to = new HashMap<>();
+		for (Map.Entry<String, Set<DamType>> var : from.entrySet()) {
+			to.put(var.getKey(), EnumSet.copyOf(var.getValue()));
+		}
+		return to;
+	}
+
+	private static Set<DamType> single(DamType type) {
+		return EnumSet.of(type);
+	}
+
+	private Set<DamType> record(Expr expr, Set<DamType> types) {
+		if (global) return types;
+		exprTypes.computeIfAbsent(expr, k -> EnumSet.noneOf(DamType.class)).addAll(types);
+		return types;
+	}
+
+	private BasicBlock newBlock() {
+		BasicBlock block = new BasicBlock();
+		blocks.add(block);
+		return block;
+	}
+
+	private BasicBlock newBlock(BasicBlock pred) {
+		BasicBlock block = newBlock();
+		pred.successors.add(block);
+		return block;
+	}
+
+	// Building the graph.
+
+	@Override
+	public Void visitBlockStmt(Block stmt) {
+		for (Stmt st : stmt.statements) {
+			st.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Expression stmt) {
+		current.nodes.add(stmt);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(If stmt) {
+		current.nodes.add(stmt.condition);
+		BasicBlock condition = current;
+		BasicBlock join = newBlock();
+
+		depth++;
+		current = newBlock(condition);
+		stmt.thenBranch.accept(this);
+		current.successors.add(join);
+
+		if (stmt.elseBranch != null) {
+			current = newBlock(condition);
+			stmt.elseBranch.accept(this);
+			current.successors.add(join);
+		} else {
+			condition.successors.add(join);
+		}
+		depth--;
+
+		current = join;
+		return null;
+	}
+
+	@Override
+	public Void visitMatchStmt(Match stmt) {
+		current.nodes.add(stmt.subject);
+		BasicBlock subject = current;
+		BasicBlock join = newBlock();
+
+		depth++;
+		for (Stmt arm : stmt.arms) {
+			current = newBlock(subject);
+			arm.accept(this);
+			current.successors.add(join);
+		}
+		if (stmt.otherwise != null) {
+			current = newBlock(subject);
+			stmt.otherwise.accept(this);
+			current.successors.add(join);
+		} else {
+			subject.successors.add(join);
+		}
+		depth--;
+
+		current = join;
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Print stmt) {
+		current.nodes.add(stmt);
+		return null;
+	}
+
+	@Override
+	public Void visitReadStmt(Read stmt) {
+		current.nodes.add(stmt);
+		return null;
+	}
+
+	@Override
+	public Void visitLetStmt(Let stmt) {
+		define(stmt.name.lexeme);
+		current.nodes.add(stmt);
+		return null;
+	}
+
+	@Override
+	public Void visitImportStmt(Import stmt) {
+		return null;
+	}
+
+	@Override
+	public Void visitParallelStmt(Parallel stmt) {
+		return stmt.loop.accept(this);
+	}
+
+	/**
+	 * A spawned task runs at some later point, or not at all before the
+	 * variables it defines are next used, so it is a branch that may be
+	 * skipped.  It cannot assign the variables from outside it.
+	 */
+	@Override
+	public Void visitSpawnStmt(Spawn stmt) {
+		BasicBlock spawner = current;
+		BasicBlock join = newBlock();
+
+		depth++;
+		current = newBlock(spawner);
+		stmt.body.accept(this);
+		current.successors.add(join);
+		depth--;
+
+		spawner.successors.add(join);
+		current = join;
+		return null;
+	}
+
+	@Override
+	public Void visitSendStmt(Send stmt) {
+		current.nodes.add(stmt);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(While stmt) {
+		BasicBlock header = newBlock(current);
+		header.nodes.add(stmt.condition);
+
+		depth++;
+		current = newBlock(header);
+		stmt.body.accept(this);
+		current.successors.add(header);
+		depth--;
+
+		current = newBlock(header);
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(For stmt) {
+		define(stmt.name.lexeme);
+		current.nodes.add(stmt.start);
+		current.nodes.add(stmt.end);
+		current.nodes.add(stmt);
+		BasicBlock header = newBlock(current);
+
+		depth++;
+		current = newBlock(header);
+		current.nodes.add(stmt);
+		stmt.body.accept(this);
+		current.successors.add(header);
+		depth--;
+
+		current = newBlock(header);
+		return null;
+	}
+
+	// Evaluating expression types against the current state.
+
+	@Override
+	public Set<DamType> visitBinaryExpr(Binary expr) {
+		Set<DamType> left = expr.left.accept(this);
+		Set<DamType> right = expr.right.accept(this);
+
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		switch (expr.operator.type) {
+		case PLUS:
+		case MINUS:
+		case STAR:
+		case SLASH:
+			for (DamType type : left) {
+				if (right.contains(type) && (type == DamType.DOUBLE
+						|| (type == DamType.STR && expr.operator.type == TokenType.PLUS))) {
+					types.add(type);
+				}
+			}
+			break;
+		default:
+			types.add(DamType.BOOL);
+		}
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitGroupingExpr(Grouping expr) {
+		return record(expr, expr.expression.accept(this));
+	}
+
+	@Override
+	public Set<DamType> visitLiteralExpr(Literal expr) {
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		if (expr.value instanceof Double) types.add(DamType.DOUBLE);
+		else if (expr.value instanceof String) types.add(DamType.STR);
+		else if (expr.value instanceof Boolean) types.add(DamType.BOOL);
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitLogicalExpr(Logical expr) {
+		expr.left.accept(this);
+		if (global) {
+			expr.right.accept(this);
+			return record(expr, single(DamType.BOOL));
+		}
+
+		// The right operand only runs sometimes, so whatever it assigns
+		// joins with the state after the left operand.
+		Map<String, Set<DamType>> skipped = copy(state);
+		expr.right.accept(this);
+		for (Map.Entry<String, Set<DamType>> var : skipped.entrySet()) {
+			state.computeIfAbsent(var.getKey(), k -> EnumSet.noneOf(DamType.class)).addAll(var.getValue());
+		}
+
+		return record(expr, single(DamType.BOOL));
+	}
+
+	@Override
+	public Set<DamType> visitVariableExpr(Variable expr) {
+		return record(expr, lookup(expr.name.lexeme));
+	}
+
+	@Override
+	public Set<DamType> visitUnaryExpr(Unary expr) {
+		expr.right.accept(this);
+		if (expr.operator.type == TokenType.BANG) {
+			return record(expr, single(DamType.BOOL));
+		}
+		return record(expr, single(DamType.DOUBLE));
+	}
+
+	@Override
+	public Set<DamType> visitAssignExpr(Assign expr) {
+		Set<DamType> types = expr.right.accept(this);
+		set(expr.name.lexeme, types);
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitArrayLiteralExpr(ArrayLiteral expr) {
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		for (Expr element : expr.elements) {
+			for (DamType type : element.accept(this)) {
+				if (type.arrayOf() != null) types.add(type.arrayOf());
+			}
+		}
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitIndexExpr(Index expr) {
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		for (DamType type : expr.array.accept(this)) {
+			if (type.isArray() || type.isMap()) types.add(type.elementType());
+		}
+		expr.index.accept(this);
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitSetIndexExpr(SetIndex expr) {
+		expr.array.accept(this);
+		expr.index.accept(this);
+		return record(expr, expr.value.accept(this));
+	}
+
+	@Override
+	public Set<DamType> visitLengthExpr(Length expr) {
+		expr.array.accept(this);
+		return record(expr, single(DamType.DOUBLE));
+	}
+
+	@Override
+	public Set<DamType> visitChannelExpr(Channel expr) {
+		expr.capacity.accept(this);
+		DamType element = DamType.named(expr.elementType.lexeme);
+		if (element == null || element.channelOf() == null) {
+			return record(expr, EnumSet.noneOf(DamType.class));
+		}
+		return record(expr, single(element.channelOf()));
+	}
+
+	@Override
+	public Set<DamType> visitReceiveExpr(Receive expr) {
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		for (DamType type : expr.channel.accept(this)) {
+			if (type.isChannel()) types.add(type.elementType());
+		}
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitCastExpr(Cast expr) {
+		expr.value.accept(this);
+		return record(expr, single(DamType.named(expr.name.lexeme)));
+	}
+
+	@Override
+	public Set<DamType> visitMapLiteralExpr(MapLiteral expr) {
+		if (expr.keyType != null) {
+			DamType key = DamType.named(expr.keyType.lexeme);
+			DamType value = DamType.named(expr.valueType.lexeme);
+			DamType map = key == null || value == null ? null : key.mapOf(value);
+			return record(expr, map == null ? EnumSet.noneOf(DamType.class) : single(map));
+		}
+
+		Set<DamType> keys = EnumSet.noneOf(DamType.class);
+		Set<DamType> values = EnumSet.noneOf(DamType.class);
+		for (int i = 0; i < expr.keys.size(); i++) {
+			keys.addAll(expr.keys.get(i).accept(this));
+			values.addAll(expr.values.get(i).accept(this));
+		}
+		Set<DamType> types = EnumSet.noneOf(DamType.class);
+		for (DamType key : keys) {
+			for (DamType value : values) {
+				if (key.mapOf(value) != null) types.add(key.mapOf(value));
+			}
+		}
+		return record(expr, types);
+	}
+
+	@Override
+	public Set<DamType> visitContainsExpr(Contains expr) {
+		expr.map.accept(this);
+		expr.key.accept(this);
+		return record(expr, single(DamType.BOOL));
+	}
+}
@@ -0,0 +1,467 @@
+package damlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamUnroller</code> unrolls counted <code>while</code> loops
+ * whose trip count is known when compiling:
+ * <pre>
+ * let x = 0;
+ * while (x &lt; 5) {
+ *     ...
+ *     x = x + 1;
+ * }
+ * </pre>
+ * The loop must come right after the statement setting its variable to a
+ * constant, compare the variable with a constant, and end its body with the
+ * only change to the variable, by a constant step.  The trip count is found
+ * by running the loop's float arithmetic, so it is exact even where the
+ * steps round.
+ *
+ * A loop of up to <code>MAX_FULL_TRIPS</code> trips becomes that many
+ * copies of its body.  A longer one keeps a loop running <code>factor</code>
+ * copies of the body per trip, up to the last value of the variable a whole
+ * trip reaches, followed by the copies left over.  Copies are kept within a
+ * budget, since HotSpot does not compile methods of more than 8000 bytes of
+ * bytecode at all.
+ */
+public class DamUnroller implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+	private static final int MAX_FULL_TRIPS = 16;
+	private static final int MAX_TRIPS = 1 << 24;
+	private static final int LOOP_BUDGET = 400;
+	private static final int TOTAL_BUDGET = 2000;
+
+	private List<Stmt> statements;
+	private int factor;
+	private int grown = 0;
+	private int full = 0;
+	private int partial = 0;
+
+	// The variable of the loop being looked at, for visiting its body.
+	private DamEnvironment.Slot counter;
+
+	/**
+	 * @param factor how many copies of the body a partially unrolled loop
+	 * runs per trip
+	 */
+	public DamUnroller(List<Stmt> statements, int factor) {
+		this.statements = statements;
+		this.factor = factor;
+	}
+
+	/**
+	 * Unrolls the loops it can, innermost first.
+	 * @return how many loops were unrolled fully and partially
+	 */
+	public int[] unroll() {
+		unrollWithin(statements);
+		return new int[] { full, partial };
+	}
+
+	private void unrollWithin(List<Stmt> list) {
+		for (int i = 0; i < list.size(); i++) {
+			Stmt stmt = list.get(i);
+			unrollWithin(stmt);
+			if (i > 0 && stmt instanceof While) {
+				Stmt unrolled = unroll((While) stmt, list.get(i - 1));
+				if (unrolled != null) {
+					list.set(i, unrolled);
+				}
+			}
+		}
+	}
+
+	private void unrollWithin(Stmt stmt) {
+		if (stmt instanceof Block) {
+			unrollWithin(((Block) stmt).statements);
+		} else if (stmt instanceof If) {
+			unrollWithin(((If) stmt).thenBranch);
+			if (((If) stmt).elseBranch != null) {
+				unrollWithin(((If) stmt).elseBranch);
+			}
+		} else if (stmt instanceof While) {
+			unrollWithin(((While) stmt).body);
+		} else if (stmt instanceof For) {
+			unrollWithin(((For) stmt).body);
+		} else if (stmt instanceof Parallel) {
+			unrollWithin(((Parallel) stmt).loop.body);
+		} else if (stmt instanceof Spawn) {
+			unrollWithin(((Spawn) stmt).body);
+		} else if (stmt instanceof Match) {
+			for (Stmt arm : ((Match) stmt).arms) {
+				unrollWithin(arm);
+			}
+			if (((Match) stmt).otherwise != null) {
+				unrollWithin(((Match) stmt).otherwise);
+			}
+		}
+	}
+
+	private static Expr ungrouped(Expr expr) {
+		while (expr instanceof Grouping) {
+			expr = ((Grouping) expr).expression;
+		}
+		return expr;
+	}
+
+	/**
+	 * The value of a double constant, or null.
+	 */
+	private static Float constant(Expr expr) {
+		expr = ungrouped(expr);
+		if (expr instanceof Literal && ((Literal) expr).value instanceof Double) {
+			return ((Double) ((Literal) expr).value).floatValue();
+		}
+		return null;
+	}
+
+	private static boolean isCounter(Expr expr, DamEnvironment.Slot slot) {
+		expr = ungrouped(expr);
+		return expr instanceof Variable && ((Variable) expr).slot == slot && expr.type == DamType.DOUBLE;
+	}
+
+	/**
+	 * The value <code>previous</code> sets the variable to, or null.
+	 */
+	private static Float initial(Stmt previous, DamEnvironment.Slot slot) {
+		if (previous instanceof Let && ((Let) previous).slot == slot) {
+			return constant(((Let) previous).initializer);
+		}
+		if (previous instanceof Expression && ((Expression) previous).expression instanceof Assign) {
+			Assign assign = (Assign) ((Expression) previous).expression;
+			return assign.slot == slot ? constant(assign.right) : null;
+		}
+		return null;
+	}
+
+	private static boolean holds(TokenType comparison, float value, float bound) {
+		switch (comparison) {
+		case LESS:			return value < bound;
+		case LESS_EQUAL:	return value <= bound;
+		case GREATER:		return value > bound;
+		case GREATER_EQUAL:	return value >= bound;
+		default:			return value != bound;
+		}
+	}
+
+	/**
+	 * Returns what replaces the loop, or null to leave it alone.
+	 */
+	private Stmt unroll(While loop, Stmt previous) {
+		if (factor < 2) return null;
+
+		Expr condition = ungrouped(loop.condition);
+		if (!(condition instanceof Binary)) return null;
+		Binary comparison = (Binary) condition;
+		TokenType operator = comparison.operator.type;
+		if (comparison.negated || !DamTypeChecker.isComparison(comparison) || operator == TokenType.EQUAL_EQUAL
+				|| !(ungrouped(comparison.left) instanceof Variable)) {
+			return null;
+		}
+		Variable variable = (Variable) ungrouped(comparison.left);
+		counter = variable.slot;
+		Float bound = constant(comparison.right);
+		Float start = initial(previous, counter);
+		if (variable.module != null || variable.type != DamType.DOUBLE || counter.type != DamType.DOUBLE
+				|| bound == null || start == null) {
+			return null;
+		}
+
+		List<Stmt> body = loop.body instanceof Block ? ((Block) loop.body).statements : List.of(loop.body);
+		if (body.isEmpty() || !(body.get(body.size() - 1) instanceof Expression)) return null;
+		Expr last = ((Expression) body.get(body.size() - 1)).expression;
+		if (!(last instanceof Assign) || ((Assign) last).slot != counter
+				|| !(ungrouped(((Assign) last).right) instanceof Binary)) {
+			return null;
+		}
+		Binary step = (Binary) ungrouped(((Assign) last).right);
+		boolean add = step.operator.type == TokenType.PLUS;
+		Float by;
+		if (add && isCounter(step.left, counter)) {
+			by = constant(step.right);
+		} else if (add && isCounter(step.right, counter)) {
+			by = constant(step.left);
+		} else if (step.operator.type == TokenType.MINUS && isCounter(step.left, counter)) {
+			by = constant(step.right);
+		} else {
+			return null;
+		}
+		if (by == null) return null;
+		for (Stmt s : body.subList(0, body.size() - 1)) {
+			if (s.accept(this)) return null;
+		}
+
+		// Run the loop's arithmetic.  Each step must move the variable the
+		// same way, or the loop might never end.
+		int trips = 0;
+		float value = start;
+		float direction = 0;
+		while (holds(operator, value, bound)) {
+			float next = add ? value + by : value - by;
+			if (next == value || Float.isNaN(next) || direction * (next - value) < 0 || ++trips > MAX_TRIPS) {
+				return null;
+			}
+			direction = next - value;
+			value = next;
+		}
+
+		DamCopier copier = new DamCopier();
+		copier.copy(loop.body);
+		int size = copier.nodes();
+
+		List<Stmt> unrolled = new ArrayList<>();
+		if (trips <= MAX_FULL_TRIPS && fits(Math.max(trips - 1, 0) * size)) {
+			for (int i = 0; i < trips; i++) {
+				unrolled.add(i == 0 ? loop.body : copier.copy(loop.body));
+			}
+			full++;
+		} else {
+			int perTrip = factor;
+			while (perTrip >= 2 && trips / perTrip >= 2 && !fits((2 * perTrip - 2) * size)) {
+				perTrip /= 2;
+			}
+			if (perTrip < 2 || trips / perTrip < 2) return null;
+
+			// The variable takes the same values as before, and only the
+			// value it has after the last whole trip stops the loop.
+			float end = start;
+			for (int i = 0; i < trips / perTrip * perTrip; i++) {
+				end = add ? end + by : end - by;
+			}
+			List<Stmt> copies = new ArrayList<>();
+			copies.add(loop.body);
+			for (int i = 1; i < perTrip; i++) {
+				copies.add(copier.copy(loop.body));
+			}
+			Variable test = (Variable) copier.copy(variable);
+			Token at = comparison.operator;
+			Binary whole = new Binary(test, direction > 0
+					? new Token(TokenType.LESS, "<", null, at.line)
+					: new Token(TokenType.GREATER, ">", null, at.line), literal(end));
+			whole.type = DamType.BOOL;
+			While unrolledLoop = new While(whole, block(copies, loop.body.line));
+			unrolledLoop.line = loop.line;
+			unrolled.add(unrolledLoop);
+			for (int i = 0; i < trips % perTrip; i++) {
+				unrolled.add(copier.copy(loop.body));
+			}
+			partial++;
+		}
+		return block(unrolled, loop.line);
+	}
+
+	/**
+	 * Counts <code>nodes</code> more against the budget if they fit.
+	 */
+	private boolean fits(int nodes) {
+		if (nodes > LOOP_BUDGET || grown + nodes > TOTAL_BUDGET) return false;
+		grown += nodes;
+		return true;
+	}
+
+	private static Literal literal(float value) {
+		Literal literal = new Literal((double) value);
+		literal.type = DamType.DOUBLE;
+		return literal;
+	}
+
+	private static Block block(List<Stmt> statements, int line) {
+		Block block = new Block(statements);
+		block.line = line;
+		return block;
+	}
+
+	// The visitors tell whether a statement or expression of a loop body
+	// stops it from being unrolled: it changes the loop variable, or it is
+	// compiled to a method of its own.
+
+	@Override
+	public Boolean visitBlockStmt(Block stmt) {
+		for (Stmt st : stmt.statements) {
+			if (st.accept(this)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Boolean visitExpressionStmt(Expression stmt) {
+		return stmt.expression.accept(this);
+	}
+
+	@Override
+	public Boolean visitIfStmt(If stmt) {
+		return stmt.condition.accept(this) || stmt.thenBranch.accept(this)
+				|| (stmt.elseBranch != null && stmt.elseBranch.accept(this));
+	}
+
+	@Override
+	public Boolean visitPrintStmt(Print stmt) {
+		return stmt.expression.accept(this);
+	}
+
+	@Override
+	public Boolean visitReadStmt(Read stmt) {
+		return stmt.slot == counter;
+	}
+
+	@Override
+	public Boolean visitLetStmt(Let stmt) {
+		return stmt.slot == counter || stmt.initializer.accept(this);
+	}
+
+	@Override
+	public Boolean visitWhileStmt(While stmt) {
+		return stmt.condition.accept(this) || stmt.body.accept(this);
+	}
+
+	@Override
+	public Boolean visitForStmt(For stmt) {
+		return stmt.slot == counter || stmt.start.accept(this) || stmt.end.accept(this) || stmt.body.accept(this);
+	}
+
+	@Override
+	public Boolean visitImportStmt(Import stmt) {
+		return true;
+	}
+
+	@Override
+	public Boolean visitParallelStmt(Parallel stmt) {
+		return true;
+	}
+
+	@Override
+	public Boolean visitSpawnStmt(Spawn stmt) {
+		return true;
+	}
+
+	@Override
+	public Boolean visitSendStmt(Send stmt) {
+		return stmt.value.accept(this) || stmt.channel.accept(this);
+	}
+
+	@Override
+	public Boolean visitMatchStmt(Match stmt) {
+		if (stmt.subject.accept(this)) return true;
+		for (Stmt arm : stmt.arms) {
+			if (arm.accept(this)) return true;
+		}
+		return stmt.otherwise != null && stmt.otherwise.accept(this);
+	}
+
+	@Override
+	public Boolean visitBinaryExpr(Binary expr) {
+		return expr.left.accept(this) || expr.right.accept(this);
+	}
+
+	@Override
+	public Boolean visitGroupingExpr(Grouping expr) {
+		return expr.expression.accept(this);
+	}
+
+	@Override
+	public Boolean visitLiteralExpr(Literal expr) {
+		return false;
+	}
+
+	@Override
+	public Boolean visitLogicalExpr(Logical expr) {
+		return expr.left.accept(this) || expr.right.accept(this);
+	}
+
+	@Override
+	public Boolean visitVariableExpr(Variable expr) {
+		return false;
+	}
+
+	@Override
+	public Boolean visitUnaryExpr(Unary expr) {
+		return expr.right.accept(this);
+	}
+
+	@Override
+	public Boolean visitAssignExpr(Assign expr) {
+		return expr.slot == counter || expr.right.accept(this);
+	}
+
+	@Override
+	public Boolean visitArrayLiteralExpr(ArrayLiteral expr) {
+		for (Expr element : expr.elements) {
+			if (element.accept(this)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Boolean visitIndexExpr(Index expr) {
+		return expr.array.accept(this) || expr.index.accept(this);
+	}
+
+	@Override
+	public Boolean visitSetIndexExpr(SetIndex expr) {
+		return expr.array.accept(this) || expr.index.accept(this) || expr.value.accept(this);
+	}
+
+	@Override
+	public Boolean visitLengthExpr(Length expr) {
+		return expr.array.accept(this);
+	}
+
+	@Override
+	public Boolean visitChannelExpr(Channel expr) {
+		return expr.capacity.accept(this);
+	}
+
+	@Override
+	public Boolean visitReceiveExpr(Receive expr) {
+		return expr.channel.accept(this);
+	}
+
+	@Override
+	public Boolean visitCastExpr(Cast expr) {
+		return expr.value.accept(this);
+	}
+
+	@Override
+	public Boolean visitMapLiteralExpr(MapLiteral expr) {
+		for (int i = 0; i < expr.keys.size(); i++) {
+			if (expr.keys.get(i).accept(this) || expr.values.get(i).accept(this)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Boolean visitContainsExpr(Contains expr) {
+		return expr.map.accept(this) || expr.key.accept(this);
+	}
+}
@@ -0,0 +1,453 @@
+package damlang;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import damlang.Expr.ArrayLiteral;
+import damlang.Expr.Assign;
+import damlang.Expr.Binary;
+import damlang.Expr.Cast;
+import damlang.Expr.Channel;
+import damlang.Expr.Contains;
+import damlang.Expr.Grouping;
+import damlang.Expr.Index;
+import damlang.Expr.Length;
+import damlang.Expr.Literal;
+import damlang.Expr.Logical;
+import damlang.Expr.MapLiteral;
+import damlang.Expr.Receive;
+import damlang.Expr.SetIndex;
+import damlang.Expr.Unary;
+import damlang.Expr.Variable;
+import damlang.Stmt.Block;
+import damlang.Stmt.Expression;
+import damlang.Stmt.For;
+import damlang.Stmt.If;
+import damlang.Stmt.Import;
+import damlang.Stmt.Let;
+import damlang.Stmt.Match;
+import damlang.Stmt.Parallel;
+import damlang.Stmt.Print;
+import damlang.Stmt.Read;
+import damlang.Stmt.Send;
+import damlang.Stmt.Spawn;
+import damlang.Stmt.While;
+
+/**
+ * The <code>DamValueNumbering</code> removes repeated computations within
+ * a basic block.  It runs between the <code>DamTypeChecker</code> and the
+ * <code>DamGenerator</code>.
+ *
+ * Every value gets a number: a variable's changes each time the variable
+ * is assigned or read into, and a computation's is made from its operator
+ * and its operands' numbers, so two computations with the same number give
+ * the same value.  Only pure computations are numbered: arithmetic on
+ * doubles, string concatenation, negation and <code>!</code>.  The first
+ * one with a number that comes up again keeps its result in a temporary
+ * local, and the later ones load it instead of computing it.  A block's
+ * temporaries are handed out again in the next block.
+ *
+ * Expressions are visited in the order the generator evaluates them.
+ * The operands of a computation are visited before it is known whether
+ * the computation itself can be reused; if it can, what they recorded is
+ * undone, since they will not be evaluated.  The right operand of
+ * <code>and</code> and <code>or</code> might not run, so what it computes
+ * is forgotten after it.
+ */
+public class DamValueNumbering implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+	private static final int NONE = -1;
+
+	private record Key(TokenType operator, int left, int right) {}
+
+	/**
+	 * A change that is undone if the expression containing it is reused:
+	 * a computation becoming available, or <code>reuser</code> using one.
+	 */
+	private record Change(Expr holder, int number, Expr reuser) {}
+
+	private List<Stmt> statements;
+	private DamEnvironment env;
+	private int next = 0;
+	private Map<String, Integer> variables = new HashMap<>();
+	private Map<Object, Integer> constants = new HashMap<>();
+	private Map<Key, Integer> computations = new HashMap<>();
+
+	// The current block: the computation holding each available number,
+	// how often each holder is reused, and what reuses it.  Holders are
+	// kept in the order they were met, which is the order they get their
+	// temporaries in, so the slots do not depend on identity hash codes.
+	private Map<Integer, Expr> available = new HashMap<>();
+	private Map<Expr, Integer> uses = new LinkedHashMap<>();
+	private Map<Expr, Expr> reuses = new IdentityHashMap<>();
+	private List<Change> changes = new ArrayList<>();
+
+	private Map<DamType, List<DamEnvironment.Slot>> temps = new EnumMap<>(DamType.class);
+	private int reused = 0;
+
+	public DamValueNumbering(List<Stmt> statements, DamEnvironment env) {
+		this.statements = statements;
+		this.env = env;
+	}
+
+	/**
+	 * Marks the computations to keep and to reuse.
+	 * @return how many computations are reused
+	 */
+	public int number() {
+		for (Stmt s : statements) {
+			s.accept(this);
+		}
+		endBlock();
+		return reused;
+	}
+
+	/**
+	 * Gives the reused computations of the block temporaries and starts
+	 * a new block.
+	 */
+	private void endBlock() {
+		Map<DamType, Integer> taken = new EnumMap<>(DamType.class);
+		for (Map.Entry<Expr, Integer> holder : uses.entrySet()) {
+			if (holder.getValue() == 0) continue;
+
+			Expr expr = holder.getKey();
+			List<DamEnvironment.Slot> pool = temps.computeIfAbsent(expr.type, t -> new ArrayList<>());
+			int index = taken.merge(expr.type, 1, Integer::sum) - 1;
+			if (index == pool.size()) {
+				pool.add(env.newSlot(expr.type));
+			}
+			setTemp(expr, pool.get(index), false);
+		}
+		for (Map.Entry<Expr, Expr> reuse : reuses.entrySet()) {
+			DamEnvironment.Slot temp = tempOf(reuse.getValue());
+			if (temp != null) {
+				setTemp(reuse.getKey(), temp, true);
+				reused++;
+			}
+		}
+
+		variables.clear();
+		available.clear();
+		uses.clear();
+		reuses.clear();
+		changes.clear();
+	}
+
+	private static void setTemp(Expr expr, DamEnvironment.Slot temp, boolean reuse) {
+		if (expr instanceof Binary) {
+			((Binary) expr).temp = temp;
+			((Binary) expr).reuse = reuse;
+		} else {
+			((Unary) expr).temp = temp;
+			((Unary) expr).reuse = reuse;
+		}
+	}
+
+	private static DamEnvironment.Slot tempOf(Expr expr) {
+		return expr instanceof Binary ? ((Binary) expr).temp : ((Unary) expr).temp;
+	}
+
+	private int fresh() {
+		return next++;
+	}
+
+	private void assigned(String name) {
+		variables.put(name, fresh());
+	}
+
+	/**
+	 * Records a computation with the given number, whose operands were
+	 * visited since <code>mark</code>, and returns the number.
+	 */
+	private int computed(Expr expr, int number, int mark) {
+		Expr holder = available.get(number);
+		if (holder == null) {
+			available.put(number, expr);
+			uses.put(expr, 0);
+			changes.add(new Change(expr, number, null));
+			return number;
+		}
+
+		// The operands are not evaluated after all.
+		while (changes.size() > mark) {
+			Change change = changes.remove(changes.size() - 1);
+			if (change.reuser != null) {
+				uses.merge(change.holder, -1, Integer::sum);
+				reuses.remove(change.reuser);
+			} else {
+				available.remove(change.number, change.holder);
+				uses.remove(change.holder);
+			}
+		}
+		uses.merge(holder, 1, Integer::sum);
+		changes.add(new Change(holder, number, expr));
+		reuses.put(expr, holder);
+		return number;
+	}
+
+	@Override
+	public Void visitBlockStmt(Block stmt) {
+		for (Stmt st : stmt.statements) {
+			st.accept(this);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Expression stmt) {
+		stmt.expression.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(If stmt) {
+		stmt.condition.accept(this);
+		endBlock();
+		stmt.thenBranch.accept(this);
+		endBlock();
+		if (stmt.elseBranch != null) {
+			stmt.elseBranch.accept(this);
+			endBlock();
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Print stmt) {
+		stmt.expression.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitReadStmt(Read stmt) {
+		assigned(stmt.name.lexeme);
+		return null;
+	}
+
+	@Override
+	public Void visitLetStmt(Let stmt) {
+		stmt.initializer.accept(this);
+		assigned(stmt.name.lexeme);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(While stmt) {
+		endBlock();
+		stmt.condition.accept(this);
+		endBlock();
+		stmt.body.accept(this);
+		endBlock();
+		return null;
+	}
+
+	@Override
+	public Void visitForStmt(For stmt) {
+		stmt.start.accept(this);
+		stmt.end.accept(this);
+		endBlock();
+		stmt.body.accept(this);
+		endBlock();
+		return null;
+	}
+
+	@Override
+	public Void visitImportStmt(Import stmt) {
+		return null;
+	}
+
+	@Override
+	public Void visitParallelStmt(Parallel stmt) {
+		return stmt.loop.accept(this);
+	}
+
+	@Override
+	public Void visitSpawnStmt(Spawn stmt) {
+		endBlock();
+		stmt.body.accept(this);
+		endBlock();
+		return null;
+	}
+
+	@Override
+	public Void visitSendStmt(Send stmt) {
+		stmt.value.accept(this);
+		stmt.channel.accept(this);
+		return null;
+	}
+
+	@Override
+	public Void visitMatchStmt(Match stmt) {
+		stmt.subject.accept(this);
+		endBlock();
+		for (Stmt arm : stmt.arms) {
+			arm.accept(this);
+			endBlock();
+		}
+		if (stmt.otherwise != null) {
+			stmt.otherwise.accept(this);
+			endBlock();
+		}
+		return null;
+	}
+
+	@Override
+	public Integer visitBinaryExpr(Binary expr) {
+		int mark = changes.size();
+		int left = expr.left.accept(this);
+		int right = expr.right.accept(this);
+		if (left == NONE || right == NONE || (expr.type != DamType.DOUBLE && expr.type != DamType.STR)) {
+			return NONE;
+		}
+
+		TokenType operator = expr.operator.type;
+		switch (operator) {
+		case PLUS:
+			// Adding doubles commutes; joining strings does not.
+			if (expr.type == DamType.STR) break;
+			return commuted(expr, operator, left, right, mark);
+		case STAR:
+			return commuted(expr, operator, left, right, mark);
+		case MINUS:
+		case SLASH:
+			break;
+		default:
+			return NONE;
+		}
+		return computed(expr, computations.computeIfAbsent(new Key(operator, left, right), k -> fresh()), mark);
+	}
+
+	/**
+	 * Numbers a commutative operation with its operands in order, so
+	 * <code>a * b</code> and <code>b * a</code> get the same number.
+	 */
+	private int commuted(Binary expr, TokenType operator, int left, int right, int mark) {
+		Key key = new Key(operator, Math.min(left, right), Math.max(left, right));
+		return computed(expr, computations.computeIfAbsent(key, k -> fresh()), mark);
+	}
+
+	@Override
+	public Integer visitGroupingExpr(Grouping expr) {
+		return expr.expression.accept(this);
+	}
+
+	@Override
+	public Integer visitLiteralExpr(Literal expr) {
+		return expr.value == null ? NONE : constants.computeIfAbsent(expr.value, v -> fresh());
+	}
+
+	/**
+	 * Both operands are numbered, but what the right one computes might
+	 * not have been, and the variables it assigns might or might not have
+	 * changed.
+	 */
+	@Override
+	public Integer visitLogicalExpr(Logical expr) {
+		expr.left.accept(this);
+		Map<Integer, Expr> before = new HashMap<>(available);
+		Map<String, Integer> values = new HashMap<>(variables);
+		expr.right.accept(this);
+		available = before;
+		for (Map.Entry<String, Integer> variable : variables.entrySet()) {
+			if (!variable.getValue().equals(values.get(variable.getKey()))) {
+				variable.setValue(fresh());
+			}
+		}
+		return NONE;
+	}
+
+	@Override
+	public Integer visitVariableExpr(Variable expr) {
+		if (expr.type == DamType.ANY) return NONE;
+		return variables.computeIfAbsent(expr.name.lexeme, v -> fresh());
+	}
+
+	@Override
+	public Integer visitUnaryExpr(Unary expr) {
+		int mark = changes.size();
+		int right = expr.right.accept(this);
+		if (right == NONE) return NONE;
+
+		TokenType operator = expr.operator.type;
+		if ((operator == TokenType.MINUS && expr.type == DamType.DOUBLE)
+				|| (operator == TokenType.BANG && expr.type == DamType.BOOL)) {
+			return computed(expr, computations.computeIfAbsent(new Key(operator, right, NONE), k -> fresh()), mark);
+		}
+		return NONE;
+	}
+
+	@Override
+	public Integer visitAssignExpr(Assign expr) {
+		expr.right.accept(this);
+		assigned(expr.name.lexeme);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitArrayLiteralExpr(ArrayLiteral expr) {
+		for (Expr element : expr.elements) {
+			element.accept(this);
+		}
+		return NONE;
+	}
+
+	@Override
+	public Integer visitIndexExpr(Index expr) {
+		expr.array.accept(this);
+		expr.index.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitSetIndexExpr(SetIndex expr) {
+		expr.array.accept(this);
+		expr.index.accept(this);
+		expr.value.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitLengthExpr(Length expr) {
+		expr.array.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitChannelExpr(Channel expr) {
+		expr.capacity.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitReceiveExpr(Receive expr) {
+		expr.channel.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitCastExpr(Cast expr) {
+		expr.value.accept(this);
+		return NONE;
+	}
+
+	@Override
+	public Integer visitMapLiteralExpr(MapLiteral expr) {
+		for (int i = 0; i < expr.keys.size(); i++) {
+			expr.keys.get(i).accept(this);
+			expr.values.get(i).accept(this);
+		}
+		return NONE;
+	}
+
+	@Override
+	public Integer visitContainsExpr(Contains expr) {
+		expr.map.accept(this);
+		expr.key.accept(this);
+		return NONE;
+	}
+}
@@ -11,10 +11,21 @@ abstract class Expr {
         T visitVariableExpr(Variable expr);
         T visitUnaryExpr(Unary expr);
         T visitAssignExpr(Assign expr);
+        T visitArrayLiteralExpr(ArrayLiteral expr);
+        T visitIndexExpr(Index expr);
+        T visitSetIndexExpr(SetIndex expr);
+        T visitLengthExpr(Length expr);
+        T visitChannelExpr(Channel expr);
+        T visitReceiveExpr(Receive expr);
+        T visitCastExpr(Cast expr);
+        T visitMapLiteralExpr(MapLiteral expr);
+        T visitContainsExpr(Contains expr);
     }
 
     abstract <T> T accept(Visitor<T> visitor);
 
+    DamType type;
+
 
     static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
@@ -31,6 +42,9 @@ abstract class Expr {
         Expr left;
         Token operator;
         Expr right;
+        DamEnvironment.Slot temp;
+        boolean reuse;
+        boolean negated;
     }
 
     static class Grouping extends Expr {
@@ -87,6 +101,8 @@ abstract class Expr {
         }
 
         Token name;
+        DamEnvironment.Slot slot;
+        DamModule module;
     }
 
     static class Unary extends Expr {
@@ -102,6 +118,8 @@ abstract class Expr {
 
         Token operator;
         Expr right;
+        DamEnvironment.Slot temp;
+        boolean reuse;
     }
 
     static class Assign extends Expr {
@@ -117,5 +135,157 @@ abstract class Expr {
 
         Token name;
         Expr right;
+        DamEnvironment.Slot slot;
+    }
+
+    static class ArrayLiteral extends Expr {
+        ArrayLiteral(Token bracket, List<Expr> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitArrayLiteralExpr(this);
+        }
+
+        Token bracket;
+        List<Expr> elements;
+    }
+
+    static class Index extends Expr {
+        Index(Expr array, Token bracket, Expr index) {
+            this.array = array;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+
+        Expr array;
+        Token bracket;
+        Expr index;
+    }
+
+    static class SetIndex extends Expr {
+        SetIndex(Expr array, Token bracket, Expr index, Expr value) {
+            this.array = array;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitSetIndexExpr(this);
+        }
+
+        Expr array;
+        Token bracket;
+        Expr index;
+        Expr value;
+    }
+
+    static class Length extends Expr {
+        Length(Expr array, Token name) {
+            this.array = array;
+            this.name = name;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitLengthExpr(this);
+        }
+
+        Expr array;
+        Token name;
+    }
+
+    static class Channel extends Expr {
+        Channel(Token keyword, Token elementType, Expr capacity) {
+            this.keyword = keyword;
+            this.elementType = elementType;
+            this.capacity = capacity;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitChannelExpr(this);
+        }
+
+        Token keyword;
+        Token elementType;
+        Expr capacity;
+    }
+
+    static class Receive extends Expr {
+        Receive(Token keyword, Expr channel) {
+            this.keyword = keyword;
+            this.channel = channel;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitReceiveExpr(this);
+        }
+
+        Token keyword;
+        Expr channel;
+    }
+
+    static class Cast extends Expr {
+        Cast(Token name, Expr value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitCastExpr(this);
+        }
+
+        Token name;
+        Expr value;
+    }
+
+    static class MapLiteral extends Expr {
+        MapLiteral(Token brace, Token keyType, Token valueType, List<Expr> keys, List<Expr> values) {
+            this.brace = brace;
+            this.keyType = keyType;
+            this.valueType = valueType;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitMapLiteralExpr(this);
+        }
+
+        Token brace;
+        Token keyType;
+        Token valueType;
+        List<Expr> keys;
+        List<Expr> values;
+    }
+
+    static class Contains extends Expr {
+        Contains(Expr map, Token name, Expr key) {
+            this.map = map;
+            this.name = name;
+            this.key = key;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitContainsExpr(this);
+        }
+
+        Expr map;
+        Token name;
+        Expr key;
     }
 }
\ No newline at end of file
@@ -11,10 +11,18 @@ abstract class Stmt {
         T visitReadStmt(Read stmt);
         T visitLetStmt(Let stmt);
         T visitWhileStmt(While stmt);
+        T visitForStmt(For stmt);
+        T visitImportStmt(Import stmt);
+        T visitParallelStmt(Parallel stmt);
+        T visitSpawnStmt(Spawn stmt);
+        T visitSendStmt(Send stmt);
+        T visitMatchStmt(Match stmt);
     }
 
     abstract <T> T accept(Visitor<T> visitor);
 
+    int line;
+
 
     static class Block extends Stmt {
         Block(List<Stmt> statements) {
@@ -73,12 +81,17 @@ abstract class Stmt {
     }
 
     static class Read extends Stmt {
-        Read(Token name) { this.name = name; }
+        Read(Token name) {
+            this.name = name;
+        }
 
         @Override
-        <T> T accept(Visitor<T> visitor) { return visitor.visitReadStmt(this);}
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitReadStmt(this);
+        }
 
         Token name;
+        DamEnvironment.Slot slot;
     }
 
     static class Let extends Stmt {
@@ -94,6 +107,7 @@ abstract class Stmt {
 
         Token name;
         Expr initializer;
+        DamEnvironment.Slot slot;
     }
 
     static class While extends Stmt {
@@ -110,4 +124,116 @@ abstract class Stmt {
         Expr condition;
         Stmt body;
     }
+
+    static class For extends Stmt {
+        For(Token name, Expr start, Expr end, Stmt body) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        Token name;
+        Expr start;
+        Expr end;
+        Stmt body;
+        DamEnvironment.Slot slot;
+        int counter;
+        int limit;
+    }
+
+    static class Import extends Stmt {
+        Import(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitImportStmt(this);
+        }
+
+        Token name;
+        DamModule module;
+    }
+
+    static class Parallel extends Stmt {
+        Parallel(For loop, Token reduction, Token result) {
+            this.loop = loop;
+            this.reduction = reduction;
+            this.result = result;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitParallelStmt(this);
+        }
+
+        For loop;
+        Token reduction;
+        Token result;
+        List<DamEnvironment.Slot> captures;
+        DamEnvironment.Slot slot;
+        int from;
+        int to;
+    }
+
+    static class Spawn extends Stmt {
+        Spawn(Token keyword, Stmt body) {
+            this.keyword = keyword;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitSpawnStmt(this);
+        }
+
+        Token keyword;
+        Stmt body;
+        List<DamEnvironment.Slot> captures;
+    }
+
+    static class Send extends Stmt {
+        Send(Token keyword, Expr value, Expr channel) {
+            this.keyword = keyword;
+            this.value = value;
+            this.channel = channel;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitSendStmt(this);
+        }
+
+        Token keyword;
+        Expr value;
+        Expr channel;
+    }
+
+    static class Match extends Stmt {
+        Match(Token keyword, Expr subject, List<List<Token>> values, List<Stmt> arms, Stmt otherwise) {
+            this.keyword = keyword;
+            this.subject = subject;
+            this.values = values;
+            this.arms = arms;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitMatchStmt(this);
+        }
+
+        Token keyword;
+        Expr subject;
+        List<List<Token>> values;
+        List<Stmt> arms;
+        Stmt otherwise;
+        DamEnvironment.Slot slot;
+    }
 }
\ No newline at end of file
@@ -3,7 +3,8 @@ package damlang;
 public enum TokenType {
 	// Single-character tokens.
 	LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
-	COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
+	LEFT_BRACKET, RIGHT_BRACKET,
+	COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR, COLON,
 
 	// Boolean-related tokens.
 	BANG, BANG_EQUAL,
@@ -17,7 +18,8 @@ public enum TokenType {
 
 	// Keywords.
 	AND, ELSE, FALSE, FOR, IF, LET, NULL, OR,
-	PRINT, RETURN, TO, TRUE, WHILE, READ,
+	PRINT, RETURN, TO, TRUE, WHILE, READ, IMPORT, PARALLEL,
+	SPAWN, SEND, RECEIVE, CHANNEL, MATCH, CASE,
 
 	EOF
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A steady-state harness for one compiled Dam program, run with the
+ * source launcher by <code>bench-runtime.py</code>:
+ *
+ * <pre>java -cp CLASSES tools/DamBench.java prog [--input FILE] [--warmup S] [--rounds N] [--round-time S]</pre>
+ *
+ * One op is one call of the program's <code>main</code>.  Ops are run for
+ * the warmup time, so the JIT has compiled <code>main</code> and what it
+ * calls, and then for each round, with the ops per second and the bytes
+ * allocated per op of every round measured.  The program's output goes to
+ * a stream that only counts it, and its input, if any, is handed out a
+ * line per read, as from a terminal: each <code>read</code> makes its own
+ * <code>Scanner</code>, which would drop the rest of a bigger buffer.
+ *
+ * The results are printed as <code>name value</code> lines.  Allocation is
+ * counted on the calling thread only, so it leaves out parallel loops and
+ * spawned tasks.  The harness itself allocates one small
+ * <code>LineStream</code> per op.
+ */
+public class DamBench {
+	private static final long NANOS = 1_000_000_000L;
+
+	/**
+	 * Counts what the program prints, so printing is not optimized away.
+	 */
+	private static class CountingStream extends OutputStream {
+		long bytes = 0;
+
+		@Override
+		public void write(int b) {
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			bytes += len;
+		}
+	}
+
+	/**
+	 * Returns its bytes no further than the end of the next line per read.
+	 */
+	private static class LineStream extends InputStream {
+		private final byte[] data;
+		private int position = 0;
+
+		LineStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (position == data.length) return -1;
+			int n = 0;
+			while (n < len && position < data.length) {
+				byte c = data[position++];
+				b[off + n++] = c;
+				if (c == '\n') break;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) throws Throwable {
+		if (args.length == 0) {
+			System.err.println("java -cp CLASSES DamBench.java <class> [--input FILE] [--warmup S] [--rounds N] [--round-time S]");
+			System.exit(1);
+		}
+		String className = args[0];
+		byte[] input = new byte[0];
+		double warmup = 3;
+		int rounds = 5;
+		double roundTime = 1;
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 == args.length) {
+				System.err.println("No value for " + args[i]);
+				System.exit(1);
+			}
+			switch (args[i]) {
+			case "--input":			input = Files.readAllBytes(Paths.get(args[i + 1])); break;
+			case "--warmup":		warmup = Double.parseDouble(args[i + 1]); break;
+			case "--rounds":		rounds = Integer.parseInt(args[i + 1]); break;
+			case "--round-time":	roundTime = Double.parseDouble(args[i + 1]); break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		MethodHandle main = MethodHandles.lookup().findStatic(Class.forName(className), "main",
+				MethodType.methodType(void.class, String[].class));
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		PrintStream out = System.out;
+		InputStream in = System.in;
+		CountingStream sink = new CountingStream();
+		String[] programArgs = new String[0];
+		try {
+			System.setOut(new PrintStream(sink, false));
+
+			long warmupOps = 0;
+			long end = System.nanoTime() + (long) (warmup * NANOS);
+			do {
+				System.setIn(new LineStream(input));
+				main.invokeExact(programArgs);
+				warmupOps++;
+			} while (System.nanoTime() < end);
+			long outputPerOp = sink.bytes / warmupOps;
+
+			double[] rates = new double[rounds];
+			double allocated = 0;
+			long totalOps = 0;
+			for (int r = 0; r < rounds; r++) {
+				long ops = 0;
+				long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+				long start = System.nanoTime();
+				end = start + (long) (roundTime * NANOS);
+				long now;
+				do {
+					System.setIn(new LineStream(input));
+					main.invokeExact(programArgs);
+					ops++;
+				} while ((now = System.nanoTime()) < end);
+				allocated += threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+				rates[r] = ops * (double) NANOS / (now - start);
+				totalOps += ops;
+			}
+
+			double mean = 0;
+			for (double rate : rates) {
+				mean += rate / rounds;
+			}
+			double variance = 0;
+			for (double rate : rates) {
+				variance += (rate - mean) * (rate - mean) / Math.max(1, rounds - 1);
+			}
+			out.printf("ops_per_sec %.3f%n", mean);
+			out.printf("ops_per_sec_error %.3f%n", Math.sqrt(variance));
+			out.printf("alloc_bytes_per_op %.1f%n", allocated / totalOps);
+			out.printf("output_bytes_per_op %d%n", outputPerOp);
+			out.printf("ops %d%n", totalOps);
+		} finally {
+			System.setOut(out);
+			System.setIn(in);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+"""Runtime benchmark suite for compiled Dam programs.
+
+Compiles each workload in tools/bench (numeric loops, string building,
+branching, printing, reading and maps) with every set of compiler options,
+and runs each class in its own JVM under DamBench, a steady-state harness
+that calls the program's main over and over: first for a warmup, then for
+several timed rounds.  It reports the ops (runs of main) per second, with
+the spread over the rounds, and the bytes allocated per op.
+
+With --json the measurements are written out, and with --baseline an
+earlier --json file is compared against: every workload and option set
+measured in both is printed with its change, and the run fails if any got
+slower by more than the tolerance, so a code generation change can be
+checked against the numbers from before it.
+
+usage: python3 bench-runtime.py [--workloads numeric,read] [--configs default,jasmin]
+                                [--classpath CP] [--json out.json] [--baseline old.json]
+"""
+
+import argparse
+import json
+import os
+import subprocess
+import sys
+import tempfile
+from pathlib import Path
+
+ROOT = Path(__file__).resolve().parent.parent
+WORKLOADS = ROOT / "tools" / "bench"
+HARNESS = ROOT / "tools" / "DamBench.java"
+DEFAULT_CLASSPATH = os.pathsep.join([
+    str(ROOT / "out" / "production" / "DamLang"),
+    str(ROOT / "lib" / "jasmin.jar"),
+])
+
+# Compiler options that change the generated code.
+CONFIGS = {
+    "default": [],
+    "jasmin": ["--jasmin"],
+    "no-simplify": ["--no-simplify"],
+    "no-cse": ["--no-cse"],
+    "no-unroll": ["--unroll", "1"],
+}
+
+# Standard input for the workloads that read, fed a line per read.
+INPUTS = {
+    "read": "".join(f"{i}\n" for i in range(1000)),
+}
+
+
+def compile_workload(java, classpath, source, options, directory):
+    """Compiles one workload into directory, next to its runtime classes."""
+    directory.mkdir(parents=True, exist_ok=True)
+    target = directory / source.name
+    target.write_text(source.read_text())
+    proc = subprocess.run([java, "-cp", classpath, "damlang.DamCompiler"] + options + [target.name],
+                          cwd=directory, capture_output=True, text=True)
+    if proc.returncode != 0 or not (directory / f"{source.stem}.class").exists():
+        print(proc.stdout + proc.stderr, file=sys.stderr)
+        raise RuntimeError(f"DamCompiler {' '.join(options)} failed on {source.name}")
+
+
+def measure(java, heap, directory, name, input_file, args):
+    """Runs one compiled workload under DamBench; returns its measurements."""
+    cmd = [java, f"-Xmx{heap}", "-cp", str(directory), str(HARNESS), name,
+           "--warmup", str(args.warmup), "--rounds", str(args.rounds),
+           "--round-time", str(args.round_time)]
+    if input_file is not None:
+        cmd += ["--input", str(input_file)]
+    proc = subprocess.run(cmd, capture_output=True, text=True)
+    if proc.returncode != 0:
+        print(proc.stderr, file=sys.stderr)
+        raise RuntimeError(f"{name} failed under DamBench")
+
+    result = {}
+    for line in proc.stdout.splitlines():
+        parts = line.split()
+        if len(parts) == 2:
+            result[parts[0]] = float(parts[1])
+    return result
+
+
+def compare(results, baseline, tolerance):
+    """Prints the change from the baseline; returns the regressed keys."""
+    before = {(r["workload"], r["config"]): r for r in baseline["results"]}
+    regressions = []
+    print(f"\nchange from the baseline (slower by more than {tolerance:.0%} fails):")
+    for r in results:
+        old = before.get((r["workload"], r["config"]))
+        if old is None:
+            continue
+        speed = r["ops_per_sec"] / old["ops_per_sec"] - 1
+        alloc = r["alloc_bytes_per_op"] - old["alloc_bytes_per_op"]
+        verdict = "ok"
+        if speed < -tolerance:
+            verdict = "SLOWER"
+            regressions.append(f"{r['workload']}/{r['config']}")
+        print(f"  {r['workload']:<10} {r['config']:<12} {speed:+8.1%}  {alloc:+12.0f} B/op  {verdict}")
+    return regressions
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--workloads", help="comma-separated workload names; all of tools/bench by default")
+    parser.add_argument("--configs", default=",".join(CONFIGS),
+                        help=f"comma-separated option sets out of {', '.join(CONFIGS)}")
+    parser.add_argument("--warmup", type=float, default=5, help="seconds of warmup before measuring")
+    parser.add_argument("--rounds", type=int, default=5, help="measured rounds")
+    parser.add_argument("--round-time", type=float, default=2, help="seconds per round")
+    parser.add_argument("--tolerance", type=float, default=0.1,
+                        help="allowed slowdown against --baseline before the run fails")
+    parser.add_argument("--java", default="java")
+    parser.add_argument("--heap", default="1g", help="heap of the benchmarked program")
+    parser.add_argument("--classpath", default=DEFAULT_CLASSPATH)
+    parser.add_argument("--json", help="also write the measurements here")
+    parser.add_argument("--baseline", help="measurements from an earlier --json to compare against")
+    args = parser.parse_args()
+    # The compiler runs in the temporary directory, so make the classpath absolute.
+    args.classpath = os.pathsep.join(str(Path(p).resolve()) for p in args.classpath.split(os.pathsep))
+
+    sources = sorted(WORKLOADS.glob("*.dam"))
+    if args.workloads:
+        wanted = args.workloads.split(",")
+        sources = [s for s in sources if s.stem in wanted]
+        missing = set(wanted) - {s.stem for s in sources}
+        if missing:
+            parser.error(f"no workload {', '.join(sorted(missing))} in {WORKLOADS}")
+    configs = args.configs.split(",")
+    for config in configs:
+        if config not in CONFIGS:
+            parser.error(f"unknown option set {config}")
+
+    results = []
+    print(f"{'workload':<10} {'options':<12} {'ops/s':>12} {'±':>9} {'B/op':>12}")
+    with tempfile.TemporaryDirectory() as tmp:
+        for source in sources:
+            input_file = None
+            if source.stem in INPUTS:
+                input_file = Path(tmp) / f"{source.stem}.in"
+                input_file.write_text(INPUTS[source.stem])
+            for config in configs:
+                directory = Path(tmp) / config / source.stem
+                compile_workload(args.java, args.classpath, source, CONFIGS[config], directory)
+                result = measure(args.java, args.heap, directory, source.stem, input_file, args)
+                result.update(workload=source.stem, config=config)
+                results.append(result)
+                print(f"{source.stem:<10} {config:<12} {result['ops_per_sec']:12.1f} "
+                      f"{result['ops_per_sec_error']:9.1f} {result['alloc_bytes_per_op']:12.0f}")
+
+    if args.json:
+        with open(args.json, "w") as f:
+            json.dump({"results": results}, f, indent=2)
+
+    if args.baseline:
+        with open(args.baseline) as f:
+            regressions = compare(results, json.load(f), args.tolerance)
+        if regressions:
+            print(f"\nFAIL: {', '.join(regressions)} got slower")
+            sys.exit(1)
+        print("\nPASS")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,217 @@
+"""Scaling regression suite for the Dam compiler.
+
+Generates Dam programs from 10^2 up to 10^6 statements, two sizes per
+decade, compiles each with DamCompiler --timings, and records the wall time
+of every compiler phase and the peak RSS of the compiler process.  A power
+law t = a * n^k is fitted to each phase over the larger sizes, and the run
+fails if any phase (or the memory growth) has an exponent above 1 + the
+tolerance, i.e. grows faster than linearly, or has too few sizes to fit.
+
+The programs mix the shapes that have hurt before: many variables in
+straight-line code, deeply nested if/while blocks, and long and/or chains.
+
+Programs too big for a single JVM method cannot be assembled, so above
+--assemble-limit statements the compiler is run with --no-assemble and the
+assemble phase is only fitted over the sizes that were assembled.  The
+defaults leave two of those in the fit.
+
+usage: python3 bench-scaling.py [--max 1000000] [--classpath CP] [--heap 4g] [--stream] [--pipeline] [--json out.json]
+"""
+
+import argparse
+import json
+import math
+import os
+import subprocess
+import sys
+import tempfile
+import time
+from pathlib import Path
+
+ROOT = Path(__file__).resolve().parent.parent
+DEFAULT_CLASSPATH = os.pathsep.join([
+    str(ROOT / "out" / "production" / "DamLang"),
+    str(ROOT / "lib" / "jasmin.jar"),
+])
+
+VARIABLES = 2000     # distinct variable names; JVM methods allow 65535 locals
+NESTING = 40         # depth of the nested if/while towers
+CHAIN = 48           # operands in each and/or chain
+
+
+def generate(n, path):
+    """Writes a Dam program of about n statements to path."""
+    nvars = min(VARIABLES, max(1, n // 4))
+    count = 0
+    with open(path, "w") as f:
+        for i in range(nvars):
+            f.write(f"let v{i} = {i};\n")
+            count += 1
+        f.write("let b = true;\n")
+        count += 1
+
+        i = 0
+        while count < n:
+            shape = i % 4
+            if shape == 0:
+                # Straight-line arithmetic over many variables.
+                for j in range(min(50, n - count)):
+                    k = (i * 31 + j) % nvars
+                    f.write(f"v{k} = v{(k * 7 + 3) % nvars} * 2 + {j} - v{(k + 1) % nvars};\n")
+                    count += 1
+            elif shape == 1:
+                # A tower of nested ifs and whiles.
+                depth = min(NESTING, max(1, (n - count) // 2))
+                for d in range(depth):
+                    k = (i + d) % nvars
+                    if d % 2 == 0:
+                        f.write(f"if (v{k} < {d}) {{\n")
+                    else:
+                        f.write(f"while (v{k} > {d}) {{\n")
+                    f.write(f"v{k} = v{k} - 1;\n")
+                    count += 2
+                f.write("}\n" * depth)
+            elif shape == 2:
+                # A long and/or chain.
+                terms = []
+                for j in range(CHAIN):
+                    k = (i * 17 + j) % nvars
+                    op = ["<", ">", "==", "!="][j % 4]
+                    terms.append(f"v{k} {op} {j}")
+                ops = [" and " if j % 3 else " or " for j in range(CHAIN - 1)]
+                chain = terms[0] + "".join(o + t for o, t in zip(ops, terms[1:]))
+                f.write(f"b = {chain};\n")
+                f.write("if (b) {\n")
+                f.write(f"print v{i % nvars};\n")
+                f.write("}\n")
+                count += 3
+            else:
+                f.write(f"print v{i % nvars} + 1;\n")
+                count += 1
+            i += 1
+    return count
+
+
+def run(java, heap, classpath, source, assemble, options):
+    """Compiles one program; returns (wall seconds, peak RSS KiB, phase ms)."""
+    cmd = [java, f"-Xmx{heap}", "-cp", classpath, "damlang.DamCompiler", "--timings"] + options
+    if not assemble:
+        cmd.append("--no-assemble")
+    cmd.append(str(source))
+
+    start = time.perf_counter()
+    proc = subprocess.Popen(cmd, cwd=source.parent, stdout=subprocess.DEVNULL,
+                            stderr=subprocess.PIPE, text=True)
+    stderr = proc.stderr.read()
+    _, status, usage = os.wait4(proc.pid, 0)
+    proc.returncode = os.waitstatus_to_exitcode(status)
+    wall = time.perf_counter() - start
+
+    if proc.returncode != 0:
+        print(stderr, file=sys.stderr)
+        raise RuntimeError(f"DamCompiler failed on {source.name}")
+
+    phases = {}
+    for line in stderr.splitlines():
+        parts = line.split()
+        if len(parts) == 4 and parts[0] == "phase":
+            phases[parts[1]] = float(parts[2])
+    return wall, usage.ru_maxrss, phases
+
+
+def fit_exponent(points):
+    """Least-squares slope of log y against log n."""
+    points = [(n, y) for n, y in points if y > 0]
+    if len(points) < 2:
+        return None
+    xs = [math.log(n) for n, _ in points]
+    ys = [math.log(y) for _, y in points]
+    mx = sum(xs) / len(xs)
+    my = sum(ys) / len(ys)
+    sxx = sum((x - mx) ** 2 for x in xs)
+    sxy = sum((x - mx) * (y - my) for x, y in zip(xs, ys))
+    return sxy / sxx
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--min", type=int, default=100, help="smallest program (statements)")
+    parser.add_argument("--max", type=int, default=1_000_000, help="largest program (statements)")
+    parser.add_argument("--fit-from", type=int, default=1_000,
+                        help="only fit sizes at least this big; smaller ones are JVM startup")
+    parser.add_argument("--assemble-limit", type=int, default=3_000,
+                        help="largest program that is also assembled; bigger ones overflow a JVM method")
+    parser.add_argument("--tolerance", type=float, default=0.2,
+                        help="allowed exponent above 1.0 before a phase counts as superlinear")
+    parser.add_argument("--repeat", type=int, default=3, help="runs per size; the fastest is kept")
+    parser.add_argument("--java", default="java")
+    parser.add_argument("--heap", default="4g", help="compiler heap; the 10^6 program needs a few GiB")
+    parser.add_argument("--classpath", default=DEFAULT_CLASSPATH)
+    parser.add_argument("--stream", action="store_true", help="compile with --stream")
+    parser.add_argument("--pipeline", action="store_true", help="compile with --pipeline")
+    parser.add_argument("--json", help="also write the measurements here")
+    args = parser.parse_args()
+    # The compiler runs in the temporary directory, so make the classpath absolute.
+    args.classpath = os.pathsep.join(str(Path(p).resolve()) for p in args.classpath.split(os.pathsep))
+
+    sizes = []
+    n = args.min
+    while n <= args.max:
+        sizes += [size for size in (n, 3 * n) if size <= args.max]
+        n *= 10
+
+    results = []
+    with tempfile.TemporaryDirectory() as tmp:
+        for n in sizes:
+            source = Path(tmp) / f"scale{n}.dam"
+            statements = generate(n, source)
+            assemble = n <= args.assemble_limit
+            best = None
+            for _ in range(args.repeat):
+                options = (["--stream"] if args.stream else []) + (["--pipeline"] if args.pipeline else [])
+                wall, rss, phases = run(args.java, args.heap, args.classpath, source, assemble, options)
+                if best is None or wall < best["wall"]:
+                    best = {"wall": wall, "phases": phases}
+                best["rss"] = max(best.get("rss", 0), rss)
+            best.update(n=n, statements=statements, bytes=source.stat().st_size, assembled=assemble)
+            results.append(best)
+            phase_text = "  ".join(f"{k} {v:9.1f}" for k, v in best["phases"].items())
+            print(f"{n:>9} stmts  {best['wall']:8.2f} s  {best['rss'] / 1024:8.1f} MiB  ms: {phase_text}")
+
+    failures = []
+    limit = 1.0 + args.tolerance
+    fitted = [r for r in results if r["n"] >= args.fit_from]
+    print(f"\ngrowth exponents over n >= {args.fit_from} (limit {limit:.2f}):")
+
+    curves = {"wall": [(r["n"], r["wall"]) for r in fitted]}
+    for phase in sorted({p for r in results for p in r["phases"]}):
+        # Without a class file to write the assemble phase does less work.
+        curves[phase] = [(r["n"], r["phases"][phase]) for r in fitted
+                         if phase in r["phases"] and (phase != "assemble" or r["assembled"])]
+    base_rss = results[0]["rss"]
+    curves["rss"] = [(r["n"], r["rss"] - base_rss) for r in fitted]
+
+    for name, points in curves.items():
+        k = fit_exponent(points)
+        if k is None:
+            # A phase that cannot be fitted cannot be checked, so it fails.
+            print(f"  {name:<10} not enough points  FAIL")
+            failures.append(name)
+            continue
+        verdict = "ok" if k <= limit else "SUPERLINEAR"
+        print(f"  {name:<10} n^{k:.2f}  {verdict}")
+        if k > limit:
+            failures.append(name)
+
+    if args.json:
+        with open(args.json, "w") as f:
+            json.dump({"results": results, "failures": failures}, f, indent=2)
+
+    if failures:
+        print(f"\nFAIL: {', '.join(failures)} grow faster than linearly or could not be fitted")
+        sys.exit(1)
+    print("\nPASS")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,257 @@
+"""Class-data-sharing (AppCDS) archives for the Dam compiler and Dam programs.
+
+Most of a short compile, or of a short Dam program, is JVM startup: loading
+and verifying the classes of DamCompiler and jasmin.jar, or of the program
+and its runtime support.  An AppCDS archive holds those classes already
+parsed and verified, and the JVM maps it at startup instead.
+
+  train    Compiles the samples (with and without --jasmin) while recording
+           the classes loaded, merges the class lists and dumps a static
+           archive for the compiler, next to a jar of the compiler classes
+           (CDS only archives classes from jars) and a `damc` launcher that
+           runs the compiler with the archive.
+
+  bundle   Compiles a Dam program and packs its class, the classes of the
+           modules it imports and the runtime support classes shipped next
+           to it into one jar, runs it once to record a dynamic archive on
+           top of the JDK's default one, and writes a launcher script.
+
+Both then time the startup with and without the archive and report the
+difference.  An archive only fits the JDK that made it and the jar paths it
+was made with, so train or bundle again after moving either; a stale archive
+is ignored by the JVM rather than failing.
+
+usage: python3 cds.py train [--samples DIR] [--out DIR] [--classpath CP]
+       python3 cds.py bundle prog.dam [--input FILE] [--out DIR] [--classpath CP]
+"""
+
+import argparse
+import os
+import re
+import shutil
+import statistics
+import subprocess
+import sys
+import tempfile
+import time
+import zipfile
+from pathlib import Path
+
+ROOT = Path(__file__).resolve().parent.parent
+DEFAULT_CLASSPATH = os.pathsep.join([
+    str(ROOT / "out" / "production" / "DamLang"),
+    str(ROOT / "lib" / "jasmin.jar"),
+])
+
+IMPORT = re.compile(r"^\s*import\s+(\w+)\s*;", re.MULTILINE)
+
+
+def jar_directory(directory, jar, main_class=None):
+    """Packs the class files under a directory into a jar."""
+    with zipfile.ZipFile(jar, "w", zipfile.ZIP_DEFLATED) as z:
+        manifest = "Manifest-Version: 1.0\n"
+        if main_class:
+            manifest += f"Main-Class: {main_class}\n"
+        z.writestr("META-INF/MANIFEST.MF", manifest)
+        for path in sorted(Path(directory).rglob("*.class")):
+            z.write(path, path.relative_to(directory).as_posix())
+
+
+def compiler_classpath(classpath, out):
+    """The classpath with each directory of classes replaced by a jar."""
+    entries = []
+    for i, entry in enumerate(classpath.split(os.pathsep)):
+        path = Path(entry).resolve()
+        if path.is_dir():
+            jar = out / ("dam-compiler.jar" if i == 0 else f"dam-compiler-{i}.jar")
+            jar_directory(path, jar)
+            path = jar
+        entries.append(str(path))
+    return os.pathsep.join(entries)
+
+
+def merge_class_lists(lists, merged):
+    """Merges class lists from several runs.  The ids in each list only
+    mean something within its run, so they are dropped; they are only
+    needed for classes from custom class loaders, which Dam does not use."""
+    lines = []
+    seen = set()
+    for class_list in lists:
+        for line in Path(class_list).read_text().splitlines():
+            if not line or line.startswith("#") or " source: " in line:
+                continue
+            line = re.sub(r" id: \d+$", "", line)
+            if line not in seen:
+                seen.add(line)
+                lines.append(line)
+    Path(merged).write_text("\n".join(lines) + "\n")
+    return len(lines)
+
+
+def timed(cmd, cwd, stdin=None, repeat=5):
+    """Runs a command several times; returns the median wall seconds."""
+    times = []
+    for _ in range(repeat):
+        with open(stdin) if stdin else open(os.devnull) as input_file:
+            start = time.perf_counter()
+            proc = subprocess.run(cmd, cwd=cwd, stdin=input_file,
+                                  stdout=subprocess.DEVNULL, stderr=subprocess.PIPE, text=True)
+            times.append(time.perf_counter() - start)
+        if proc.returncode != 0:
+            print(proc.stderr, file=sys.stderr)
+            raise RuntimeError(f"{' '.join(cmd)} failed")
+    return statistics.median(times)
+
+
+def shared_classes(cmd, cwd, stdin=None):
+    """Counts the classes a run loads and how many came from an archive."""
+    log = Path(cwd) / "class-load.log"
+    with open(stdin) if stdin else open(os.devnull) as input_file:
+        subprocess.run(cmd[:1] + [f"-Xlog:class+load=info:file={log}"] + cmd[1:], cwd=cwd,
+                       stdin=input_file, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    lines = [l for l in log.read_text().splitlines() if " source: " in l]
+    log.unlink()
+    return sum("shared objects file" in l for l in lines), len(lines)
+
+
+def report(name, baseline, archived, shared):
+    saved = baseline - archived
+    print(f"  {name:<24} {baseline * 1000:7.1f} ms -> {archived * 1000:7.1f} ms"
+          f"  saved {saved * 1000:6.1f} ms ({saved / baseline:5.1%})"
+          f"  {shared[0]}/{shared[1]} classes shared")
+    return saved
+
+
+def train(args):
+    out = Path(args.out).resolve()
+    out.mkdir(parents=True, exist_ok=True)
+    classpath = compiler_classpath(args.classpath, out)
+    samples = sorted(Path(args.samples).resolve().glob("*.dam"))
+    if not samples:
+        sys.exit(f"No .dam samples in {args.samples}")
+
+    archive = out / "dam-compiler.jsa"
+    class_list = out / "dam-compiler.classlist"
+    with tempfile.TemporaryDirectory() as tmp:
+        # Record what each compile loads, both ways of writing the class.
+        lists = []
+        for sample in samples:
+            for options in ([], ["--jasmin"]):
+                shutil.copy(sample, tmp)
+                recorded = Path(tmp) / f"{len(lists)}.classlist"
+                proc = subprocess.run([args.java, f"-XX:DumpLoadedClassList={recorded}",
+                                       "-cp", classpath, "damlang.DamCompiler"] + options + [sample.name],
+                                      cwd=tmp, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE, text=True)
+                if proc.returncode != 0:
+                    print(f"warning: {sample.name} {' '.join(options)} did not compile:\n{proc.stderr}",
+                          file=sys.stderr)
+                lists.append(recorded)
+        count = merge_class_lists(lists, class_list)
+        print(f"recorded {count} classes and lambda forms from {len(samples)} samples")
+
+        subprocess.run([args.java, "-Xshare:dump", f"-XX:SharedClassListFile={class_list}",
+                        f"-XX:SharedArchiveFile={archive}", "-cp", classpath],
+                       check=True, stdout=subprocess.DEVNULL)
+        print(f"wrote {archive} ({archive.stat().st_size / 2**20:.1f} MiB)")
+
+        launcher = out / "damc"
+        launcher.write_text("#!/bin/sh\n"
+                            f"exec {args.java} -XX:SharedArchiveFile={archive} -cp {classpath} "
+                            "damlang.DamCompiler \"$@\"\n")
+        launcher.chmod(0o755)
+        print(f"wrote {launcher}")
+
+        print(f"\ncompile time, median of {args.repeat} (JDK default CDS -> compiler archive):")
+        total = 0.0
+        for sample in samples:
+            shutil.copy(sample, tmp)
+            plain = [args.java, "-cp", classpath, "damlang.DamCompiler", sample.name]
+            shared = [args.java, f"-XX:SharedArchiveFile={archive}"] + plain[1:]
+            total += report(sample.name, timed(plain, tmp, repeat=args.repeat),
+                            timed(shared, tmp, repeat=args.repeat), shared_classes(shared, tmp))
+        print(f"  {'total saved':<24} {total * 1000:7.1f} ms")
+
+
+def imported_classes(source, found=None):
+    """The class files of the modules a program imports, transitively."""
+    found = {} if found is None else found
+    for name in IMPORT.findall(source.read_text()):
+        module = source.parent / f"{name}.dam"
+        if name not in found and module.exists():
+            found[name] = source.parent / f"{name}.class"
+            imported_classes(module, found)
+    return list(found.values())
+
+
+def bundle(args):
+    source = Path(args.program).resolve()
+    name = source.stem
+    out = Path(args.out).resolve() if args.out else source.parent
+    out.mkdir(parents=True, exist_ok=True)
+    stdin = Path(args.input).resolve() if args.input else None
+
+    proc = subprocess.run([args.java, "-cp", args.classpath, "damlang.DamCompiler", source.name],
+                          cwd=source.parent, stderr=subprocess.PIPE, stdout=subprocess.DEVNULL, text=True)
+    if proc.returncode != 0:
+        sys.exit(proc.stderr)
+
+    jar = out / f"{name}.jar"
+    archive = out / f"{name}.jsa"
+    with tempfile.TemporaryDirectory() as tmp:
+        shutil.copy(source.parent / f"{name}.class", tmp)
+        for module in imported_classes(source):
+            shutil.copy(module, tmp)
+        runtime = source.parent / "damlang"
+        if runtime.is_dir():
+            shutil.copytree(runtime, Path(tmp) / "damlang")
+        jar_directory(tmp, jar, main_class=name)
+    print(f"wrote {jar}")
+
+    # One training run records the program's classes and the method
+    # handles its dynamic operations link.
+    with open(stdin) if stdin else open(os.devnull) as input_file:
+        subprocess.run([args.java, f"-XX:ArchiveClassesAtExit={archive}", "-jar", str(jar)],
+                       cwd=out, stdin=input_file, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    if not archive.exists():
+        sys.exit(f"The training run of {name} did not write {archive}")
+    print(f"wrote {archive} ({archive.stat().st_size / 2**20:.1f} MiB)")
+
+    launcher = out / name
+    launcher.write_text("#!/bin/sh\n"
+                        f"exec {args.java} -XX:SharedArchiveFile={archive} -jar {jar} \"$@\"\n")
+    launcher.chmod(0o755)
+    print(f"wrote {launcher}")
+
+    print(f"\nrun time, median of {args.repeat} (JDK default CDS -> program archive):")
+    plain = [args.java, "-jar", str(jar)]
+    shared = [args.java, f"-XX:SharedArchiveFile={archive}", "-jar", str(jar)]
+    report(name, timed(plain, out, stdin, args.repeat), timed(shared, out, stdin, args.repeat),
+           shared_classes(shared, out, stdin))
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument("--java", default="java")
+    parser.add_argument("--classpath", default=DEFAULT_CLASSPATH)
+    parser.add_argument("--repeat", type=int, default=5, help="timed runs; the median is kept")
+    commands = parser.add_subparsers(dest="command", required=True)
+
+    train_parser = commands.add_parser("train", help="archive the compiler")
+    train_parser.add_argument("--samples", default=str(ROOT / "samples"), help="the .dam files to compile")
+    train_parser.add_argument("--out", default=str(ROOT / "out" / "cds"))
+
+    bundle_parser = commands.add_parser("bundle", help="archive a compiled Dam program")
+    bundle_parser.add_argument("program", help="the .dam file")
+    bundle_parser.add_argument("--input", help="stdin for the training and timed runs")
+    bundle_parser.add_argument("--out", help="where to put the bundle; next to the program by default")
+
+    args = parser.parse_args()
+    args.classpath = os.pathsep.join(str(Path(p).resolve()) for p in args.classpath.split(os.pathsep))
+    if args.command == "train":
+        train(args)
+    else:
+        bundle(args)
+
+
+if __name__ == "__main__":
+    main()
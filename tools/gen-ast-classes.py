@@ -7,8 +7,15 @@ classes = {
         "Expression"    : ["Expr expression"],
         "If"            : ["Expr condition", "Stmt thenBranch", "Stmt elseBranch"],
         "Print"         : ["Expr expression"],
+        "Read"          : ["Token name"],
         "Let"           : ["Token name", "Expr initializer"],
         "While"         : ["Expr condition", "Stmt body"],
+        "For"           : ["Token name", "Expr start", "Expr end", "Stmt body"],
+        "Import"        : ["Token name"],
+        "Parallel"      : ["For loop", "Token reduction", "Token result"],
+        "Spawn"         : ["Token keyword", "Stmt body"],
+        "Send"          : ["Token keyword", "Expr value", "Expr channel"],
+        "Match"         : ["Token keyword", "Expr subject", "List<List<Token>> values", "List<Stmt> arms", "Stmt otherwise"],
     },
     "Expr" : {
         "Binary"        : ["Expr left", "Token operator", "Expr right"],
@@ -18,9 +25,40 @@ classes = {
         "Variable"      : ["Token name"],
         "Unary"         : ["Token operator", "Expr right"],
         "Assign"        : ["Token name", "Expr right"],
+        "ArrayLiteral"  : ["Token bracket", "List<Expr> elements"],
+        "Index"         : ["Expr array", "Token bracket", "Expr index"],
+        "SetIndex"      : ["Expr array", "Token bracket", "Expr index", "Expr value"],
+        "Length"        : ["Expr array", "Token name"],
+        "Channel"       : ["Token keyword", "Token elementType", "Expr capacity"],
+        "Receive"       : ["Token keyword", "Expr channel"],
+        "Cast"          : ["Token name", "Expr value"],
+        "MapLiteral"    : ["Token brace", "Token keyType", "Token valueType", "List<Expr> keys", "List<Expr> values"],
+        "Contains"      : ["Expr map", "Token name", "Expr key"],
     },
 }
 
+# Fields filled in after construction: a statement's line by DamParser,
+# the temporaries of Binary and Unary by DamValueNumbering, a negated
+# comparison by DamSimplifier, the rest by DamTypeChecker.  They are not constructor parameters.
+base_fields = {
+    "Stmt" : ["int line"],
+    "Expr" : ["DamType type"],
+}
+
+resolved_fields = {
+    "Read"          : ["DamEnvironment.Slot slot"],
+    "Let"           : ["DamEnvironment.Slot slot"],
+    "For"           : ["DamEnvironment.Slot slot", "int counter", "int limit"],
+    "Import"        : ["DamModule module"],
+    "Parallel"      : ["List<DamEnvironment.Slot> captures", "DamEnvironment.Slot slot", "int from", "int to"],
+    "Spawn"         : ["List<DamEnvironment.Slot> captures"],
+    "Match"         : ["DamEnvironment.Slot slot"],
+    "Variable"      : ["DamEnvironment.Slot slot", "DamModule module"],
+    "Binary"        : ["DamEnvironment.Slot temp", "boolean reuse", "boolean negated"],
+    "Unary"         : ["DamEnvironment.Slot temp", "boolean reuse"],
+    "Assign"        : ["DamEnvironment.Slot slot"],
+}
+
 DEFAULT_DIR=Path("../src/damlang")
 
 tdir = DEFAULT_DIR
@@ -52,8 +90,10 @@ f"        T visit{clazz}{abstract_class}({clazz} {lower});\n"
         f.write("""    }
 
     abstract <T> T accept(Visitor<T> visitor);
-
 """)
+        for type_var in base_fields.get(abstract_class, []):
+            f.write(f"\n    {type_var};\n")
+        f.write("\n")
 
         for clazz in classes[abstract_class]:
             props = classes[abstract_class][clazz]
@@ -72,7 +112,7 @@ f"        T visit{clazz}{abstract_class}({clazz} {lower});\n"
         }}
 
 """)
-            for type_var in props:
+            for type_var in props + resolved_fields.get(clazz, []):
                 f.write(f"        {type_var};\n")
 
             # End the subclass